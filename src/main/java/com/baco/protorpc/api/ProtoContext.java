@@ -0,0 +1,203 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.api;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline and cancellation of the calls running on a thread.
+ *
+ * On the client, calls made while a context is attached carry the time
+ * left before its deadline, and stop waiting when it passes:
+ *
+ * <pre>
+ * ProtoContext previous = ProtoContext.attach(ProtoContext.withTimeout(200));
+ * try {
+ *     service.find(id);
+ * } finally {
+ *     ProtoContext.detach(previous);
+ * }
+ * </pre>
+ *
+ * On the server, service methods run with the context of their call
+ * attached, so long operations can check isCancelled and stop early; the
+ * call is cancelled when its deadline passes or the caller gives up. Calls
+ * made by service code to other services inherit the deadline.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoContext {
+
+    private static final ThreadLocal<ProtoContext> CURRENT = new ThreadLocal<ProtoContext>();
+
+    private final ProtoContext parent;
+    private final long deadlineNanos;
+    private volatile boolean cancelled;
+
+    private ProtoContext(final ProtoContext parent, final long timeoutMillis) {
+        long deadline = timeoutMillis > 0 ? System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        /* 0 means no deadline, keep real deadlines away from it */
+        if (timeoutMillis > 0 && deadline == 0) {
+            deadline = 1;
+        }
+        if (parent != null && parent.deadlineNanos != 0 && (deadline == 0
+                || parent.deadlineNanos - deadline < 0)) {
+            deadline = parent.deadlineNanos;
+        }
+        this.parent = parent;
+        this.deadlineNanos = deadline;
+    }
+
+    /**
+     * Creates a context whose deadline is the given time from now, or the
+     * deadline of the current context if it comes first. Cancelling the
+     * current context cancels it too.
+     *
+     * @param timeoutMillis Time left, 0 or less for no deadline of its own
+     * @return The context, not attached
+     */
+    public static ProtoContext withTimeout(final long timeoutMillis) {
+        return new ProtoContext(CURRENT.get(), timeoutMillis);
+    }
+
+    /**
+     * Creates a context within this one, it's cancelled with this one and
+     * its deadline is never later
+     *
+     * @param timeoutMillis Time left, 0 or less for no deadline of its own
+     * @return The context, not attached
+     */
+    public ProtoContext child(final long timeoutMillis) {
+        return new ProtoContext(this, timeoutMillis);
+    }
+
+    /**
+     * Returns the context attached to the current thread
+     *
+     * @return The context or null
+     */
+    public static ProtoContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Attaches a context to the current thread
+     *
+     * @param context The context
+     * @return The context attached before, to be restored with detach
+     */
+    public static ProtoContext attach(final ProtoContext context) {
+        ProtoContext previous = CURRENT.get();
+        CURRENT.set(context);
+        return previous;
+    }
+
+    /**
+     * Restores the context attached before
+     *
+     * @param previous The value returned by attach
+     */
+    public static void detach(final ProtoContext previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * True if the call running on the current thread was cancelled
+     *
+     * @return False when there's no context
+     */
+    public static boolean isCurrentCancelled() {
+        ProtoContext context = CURRENT.get();
+        return context != null && context.isCancelled();
+    }
+
+    /**
+     * Returns the deadline as a System.nanoTime value
+     *
+     * @return The deadline, 0 for none
+     */
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * Returns the time left before the deadline
+     *
+     * @return The milliseconds left, Long.MAX_VALUE for no deadline
+     */
+    public long getRemainingMillis() {
+        if (deadlineNanos == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos
+                - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos != 0 && deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Marks the call as abandoned by its caller
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * True if the caller gave up or the deadline passed
+     *
+     * @return True if the result won't be used
+     */
+    public boolean isCancelled() {
+        return cancelled || isExpired() || (parent != null && parent.
+                isCancelled());
+    }
+
+    /**
+     * Stops a long operation whose result won't be used
+     *
+     * @throws CancellationException If the call was cancelled
+     */
+    public void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException(isExpired()
+                    ? "Call deadline exceeded" : "Call cancelled");
+        }
+    }
+
+}
@@ -31,6 +31,7 @@
 package com.baco.protorpc.api;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -46,10 +47,22 @@ public class ProtoSession implements Serializable {
         return valueMap.get(key);
     }
     
+    /**
+     * Read only view of the session values
+     * @return The values by key
+     */
+    public final Map<String, String> getValues() {
+        return Collections.unmodifiableMap(valueMap);
+    }
+    
     protected void setValue(String key, String value) {
         valueMap.put(key, value);
     }
     
+    protected void removeValue(String key) {
+        valueMap.remove(key);
+    }
+    
     protected void clearValues() {
         valueMap.clear();
     }
@@ -0,0 +1,149 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes of a session against a version the server already holds
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoSessionDelta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, String> changed;
+    private final List<String> removed;
+
+    private ProtoSessionDelta(final Map<String, String> changed,
+            final List<String> removed) {
+        this.changed = changed;
+        this.removed = removed;
+    }
+
+    /**
+     * Computes the changes between two versions of the session values
+     *
+     * @param base The values the server holds
+     * @param current The values to send
+     * @return The changes, empty if both versions are equal
+     */
+    public static ProtoSessionDelta between(final Map<String, String> base,
+            final Map<String, String> current) {
+        Map<String, String> changed = new HashMap<String, String>();
+        List<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            if (!entry.getValue().equals(base.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : base.keySet()) {
+            if (!current.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+        return new ProtoSessionDelta(changed, removed);
+    }
+
+    /**
+     * Creates a session holding a copy of the given values
+     *
+     * @param values The session values
+     * @return The session
+     */
+    public static ProtoSession snapshot(final Map<String, String> values) {
+        ProtoSession session = new ProtoSession();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            session.setValue(entry.getKey(), entry.getValue());
+        }
+        return session;
+    }
+
+    /**
+     * Applies the changes to a copy of a session
+     *
+     * @param base The session the changes were computed against
+     * @return A new session with the changes applied
+     */
+    public ProtoSession applyTo(final ProtoSession base) {
+        ProtoSession session = snapshot(base.getValues());
+        if (removed != null) {
+            for (String key : removed) {
+                session.removeValue(key);
+            }
+        }
+        if (changed != null) {
+            for (Map.Entry<String, String> entry : changed.entrySet()) {
+                session.setValue(entry.getKey(), entry.getValue());
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Applies the changes to a copy of the session values
+     *
+     * @param base The values the changes were computed against
+     * @return New values with the changes applied
+     */
+    public Map<String, String> applyTo(final Map<String, String> base) {
+        Map<String, String> values = new HashMap<String, String>(base);
+        if (removed != null) {
+            for (String key : removed) {
+                values.remove(key);
+            }
+        }
+        if (changed != null) {
+            values.putAll(changed);
+        }
+        return values;
+    }
+
+    /**
+     * Number of changed and removed keys
+     *
+     * @return The change count
+     */
+    public int size() {
+        return (changed != null ? changed.size() : 0)
+                + (removed != null ? removed.size() : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+}
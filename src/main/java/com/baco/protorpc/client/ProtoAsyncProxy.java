@@ -0,0 +1,161 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.util.ProtoConfig;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Invocation handler of asynchronous service views.
+ *
+ * Every method of the asynchronous interface is mapped to the service method
+ * with the same name and parameters, a trailing ProtoCallback parameter is
+ * not sent. Methods return a Future or ProtoFuture, or void when they take a
+ * callback.
+ *
+ * @author deiby.nahuat
+ */
+class ProtoAsyncProxy
+        implements InvocationHandler {
+
+    private static Executor defaultExecutor;
+
+    private final ProtoProxy proxy;
+    private final Class<?> service;
+    private final Map<Method, Method> methods = new HashMap<Method, Method>();
+    private final Executor executor;
+    private final long timeoutMillis;
+
+    ProtoAsyncProxy(final ProtoProxy proxy, final Class<?> asyncIface,
+            final Class<?> service, final Executor executor,
+            final long timeoutMillis) {
+        this.proxy = proxy;
+        this.service = service;
+        this.executor = executor != null ? executor : getDefaultExecutor();
+        this.timeoutMillis = timeoutMillis;
+        for (Method method : asyncIface.getMethods()) {
+            boolean callback = hasCallback(method);
+            Class<?> returnType = method.getReturnType();
+            if (!(callback && returnType == void.class)
+                    && !returnType.isAssignableFrom(ProtoCallFuture.class)) {
+                throw new IllegalArgumentException("Method " + method.
+                        getName() + " must return a Future or take a "
+                        + "ProtoCallback");
+            }
+            Class<?>[] params = method.getParameterTypes();
+            try {
+                methods.put(method, service.getMethod(method.getName(),
+                        callback ? Arrays.copyOf(params, params.length - 1)
+                                : params));
+            } catch (NoSuchMethodException ex) {
+                throw new IllegalArgumentException("Service " + service.
+                        getName() + " has no method matching " + method, ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the executor used when the factory has none, a pool of
+     * protorpc.client.async.threads daemon threads
+     */
+    static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            int threads = Math.max(1, ProtoConfig.getClientAsyncThreads());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "protorpc-async-"
+                                    + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            defaultExecutor = pool;
+        }
+        return defaultExecutor;
+    }
+
+    @Override
+    public Object invoke(Object instance, Method method, Object[] args)
+            throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(instance, method, args);
+        }
+        Method target = methods.get(method);
+        Object[] callArgs = args;
+        ProtoCallFuture<Object> future = new ProtoCallFuture<Object>(executor);
+        if (hasCallback(method)) {
+            callArgs = Arrays.copyOf(args, args.length - 1);
+            /* Gets the result of the service method, as the view declares */
+            @SuppressWarnings("unchecked")
+            ProtoCallback<Object> callback
+                    = (ProtoCallback<Object>) args[args.length - 1];
+            if (callback != null) {
+                future.addCallback(callback);
+            }
+        }
+        proxy.invokeAsync(target, callArgs, future, executor, timeoutMillis);
+        return method.getReturnType() == void.class ? null : future;
+    }
+
+    private Object invokeObjectMethod(Object instance, Method method,
+            Object[] args) {
+        if (method.getName().equals("equals")) {
+            return instance == args[0];
+        }
+        if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(instance);
+        }
+        return "ProtoAsyncProxy[" + service.getName() + "]";
+    }
+
+    private static boolean hasCallback(Method method) {
+        Class<?>[] params = method.getParameterTypes();
+        return params.length > 0
+                && params[params.length - 1] == ProtoCallback.class;
+    }
+
+}
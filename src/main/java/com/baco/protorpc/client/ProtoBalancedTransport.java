@@ -0,0 +1,441 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport spreading calls over several endpoints of the same service.
+ *
+ * Each call picks two random endpoints and uses the one with the lower
+ * latency estimate times its calls in flight plus one. The estimate is a
+ * peak EWMA: it jumps to slower samples right away and decays towards
+ * faster ones. Endpoints failing consecutively, or whose estimate goes
+ * over the slow threshold, are ejected for a while; once the ejection
+ * ends a single call probes them and restores them if it succeeds, or
+ * ejects them again for twice as long. The last endpoint up isn't ejected
+ * for being slow, and when every endpoint is ejected the one closest to
+ * the end of its ejection is used.
+ *
+ * The url given by the proxy is ignored, calls go to the endpoint urls.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoBalancedTransport
+        implements ProtoTransport {
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+    private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long MAX_EJECTION_MILLIS = 60000;
+
+    private final List<Endpoint> endpoints;
+    private final ProtoTransport delegate;
+    private int failureThreshold = 3;
+    private long ejectionMillis = 5000;
+    private long slowThresholdMillis;
+
+    /**
+     * Creates a transport sending calls through the shared pooled http
+     * transport
+     *
+     * @param urls The endpoint urls
+     */
+    public ProtoBalancedTransport(final List<URL> urls) {
+        this(urls, null);
+    }
+
+    /**
+     * Creates a transport
+     *
+     * @param urls The endpoint urls
+     * @param delegate Transport carrying the calls, null for the shared
+     * pooled http transport. It isn't closed with this transport.
+     */
+    public ProtoBalancedTransport(final List<URL> urls,
+            final ProtoTransport delegate) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "At least one endpoint is required");
+        }
+        List<Endpoint> list = new ArrayList<Endpoint>(urls.size());
+        for (URL url : urls) {
+            list.add(new Endpoint(url));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.delegate = delegate;
+    }
+
+    /**
+     * Sets the consecutive failures that eject an endpoint
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+    }
+
+    /**
+     * Sets the time an endpoint is ejected the first time, repeated
+     * ejections double it up to a minute
+     */
+    public void setEjectionMillis(long ejectionMillis) {
+        this.ejectionMillis = Math.max(1, ejectionMillis);
+    }
+
+    /**
+     * Sets the latency estimate that ejects an endpoint, 0 disables it
+     */
+    public void setSlowThresholdMillis(long slowThresholdMillis) {
+        this.slowThresholdMillis = Math.max(0, slowThresholdMillis);
+    }
+
+    /**
+     * Returns the endpoints and their current state
+     *
+     * @return The endpoints
+     */
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    @Override
+    public InputStream exchange(URL url, byte[] request, int timeoutMillis)
+            throws IOException {
+        return exchange(request, timeoutMillis, null, null);
+    }
+
+    /**
+     * Sends a request avoiding an endpoint when there are others, the
+     * chosen endpoint is stored in the holder before sending
+     */
+    InputStream exchange(byte[] request, int timeoutMillis, Endpoint avoid,
+            AtomicReference<Endpoint> chosen) throws IOException {
+        long now = System.nanoTime();
+        Endpoint endpoint = choose(now, avoid);
+        if (chosen != null) {
+            chosen.set(endpoint);
+        }
+        endpoint.inFlight.incrementAndGet();
+        InputStream response;
+        try {
+            response = getDelegate().exchange(endpoint.url, request,
+                    timeoutMillis);
+        } catch (IOException ex) {
+            endpoint.inFlight.decrementAndGet();
+            onFailure(endpoint, System.nanoTime());
+            throw ex;
+        } catch (RuntimeException ex) {
+            /* A failed probe must eject the endpoint again */
+            endpoint.inFlight.decrementAndGet();
+            onFailure(endpoint, System.nanoTime());
+            throw ex;
+        }
+        return new CompletionStream(response, endpoint, now);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private ProtoTransport getDelegate() {
+        return delegate != null ? delegate : ProtoPooledHttpTransport.
+                getDefault();
+    }
+
+    /**
+     * Picks the better of two random endpoints, an endpoint whose ejection
+     * ended is picked right away to be probed
+     */
+    private Endpoint choose(long now, Endpoint avoid) {
+        int size = endpoints.size();
+        int excluded = avoid != null && size > 1 ? endpoints.indexOf(avoid)
+                : -1;
+        int choices = excluded >= 0 ? size - 1 : size;
+        if (choices == 1) {
+            Endpoint only = candidate(0, excluded);
+            only.tryProbe(now);
+            return only;
+        }
+        Random random = ThreadLocalRandom.current();
+        int first = random.nextInt(choices);
+        int second = random.nextInt(choices - 1);
+        if (second >= first) {
+            second++;
+        }
+        Endpoint a = candidate(first, excluded);
+        Endpoint b = candidate(second, excluded);
+        if (a.tryProbe(now)) {
+            return a;
+        }
+        if (b.tryProbe(now)) {
+            return b;
+        }
+        boolean aUp = a.isUp();
+        boolean bUp = b.isUp();
+        if (aUp && bUp) {
+            return a.cost(now) <= b.cost(now) ? a : b;
+        }
+        if (aUp || bUp) {
+            return aUp ? a : b;
+        }
+        /*
+         * Both picks are down, look for any other endpoint
+         */
+        Endpoint best = null;
+        Endpoint soonest = null;
+        int start = random.nextInt(choices);
+        for (int i = 0; i < choices; i++) {
+            Endpoint candidate = candidate((start + i) % choices, excluded);
+            if (candidate.tryProbe(now)) {
+                return candidate;
+            }
+            if (candidate.isUp()) {
+                if (best == null || candidate.cost(now) < best.cost(now)) {
+                    best = candidate;
+                }
+            } else if (soonest == null
+                    || candidate.ejectedUntil - soonest.ejectedUntil < 0) {
+                soonest = candidate;
+            }
+        }
+        return best != null ? best : soonest;
+    }
+
+    /**
+     * Returns the endpoint at a position skipping the excluded one
+     */
+    private Endpoint candidate(int index, int excluded) {
+        return endpoints.get(excluded >= 0 && index >= excluded ? index + 1
+                : index);
+    }
+
+    private void onSuccess(Endpoint endpoint, long latencyNanos, long now) {
+        endpoint.record(latencyNanos, now);
+        endpoint.failures.set(0);
+        if (slowThresholdMillis > 0 && endpoint.ewmaNanos
+                > TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis)
+                && hasOtherUp(endpoint)) {
+            eject(endpoint, now, "slow");
+            return;
+        }
+        if (endpoint.probing.compareAndSet(true, false)) {
+            endpoint.ejections = 0;
+            LOG.log(Level.INFO, "Endpoint {0} restored", endpoint.url);
+        }
+    }
+
+    /**
+     * True if another endpoint can take the calls, slow endpoints are kept
+     * when they're the last ones up
+     */
+    private boolean hasOtherUp(Endpoint endpoint) {
+        for (Endpoint other : endpoints) {
+            if (other != endpoint && other.isUp()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onFailure(Endpoint endpoint, long now) {
+        if (endpoint.probing.get()
+                || endpoint.failures.incrementAndGet() >= failureThreshold) {
+            eject(endpoint, now, "failing");
+        }
+    }
+
+    private void eject(Endpoint endpoint, long now, String reason) {
+        synchronized (endpoint) {
+            long duration = Math.min(MAX_EJECTION_MILLIS, ejectionMillis
+                    << Math.min(endpoint.ejections, 16));
+            endpoint.ejections++;
+            endpoint.ejectedUntil = now + TimeUnit.MILLISECONDS.toNanos(
+                    duration);
+            endpoint.failures.set(0);
+            endpoint.probing.set(false);
+            LOG.log(Level.WARNING, "Endpoint {0} is {1}, ejected for {2}ms",
+                    new Object[]{endpoint.url, reason, duration});
+        }
+    }
+
+    /**
+     * An endpoint and its latency estimate
+     */
+    public static final class Endpoint {
+
+        private final URL url;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        private volatile long ewmaNanos;
+        private volatile long lastSample;
+        private volatile long ejectedUntil;
+        private int ejections;
+
+        private Endpoint(URL url) {
+            this.url = url;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public double getLatencyMillis() {
+            return ewmaNanos / 1000000d;
+        }
+
+        public boolean isEjected() {
+            return ejectedUntil != 0 || probing.get();
+        }
+
+        /**
+         * True if the endpoint isn't ejected nor being probed
+         */
+        private boolean isUp() {
+            return ejectedUntil == 0 && !probing.get();
+        }
+
+        /**
+         * Takes the probe slot if the ejection ended
+         */
+        private synchronized boolean tryProbe(long now) {
+            if (ejectedUntil == 0 || ejectedUntil - now > 0
+                    || !probing.compareAndSet(false, true)) {
+                return false;
+            }
+            ejectedUntil = 0;
+            return true;
+        }
+
+        private long cost(long now) {
+            return Math.max(1, decayed(now)) * (inFlight.get() + 1);
+        }
+
+        /**
+         * Estimate decayed since the last sample
+         */
+        private long decayed(long now) {
+            long estimate = ewmaNanos;
+            long elapsed = now - lastSample;
+            if (estimate == 0 || elapsed <= 0) {
+                return estimate;
+            }
+            return (long) (estimate * Math.exp(-(double) elapsed
+                    / DECAY_NANOS));
+        }
+
+        private synchronized void record(long latencyNanos, long now) {
+            long current = decayed(now);
+            if (latencyNanos > current) {
+                ewmaNanos = latencyNanos;
+            } else {
+                double weight = Math.exp(-(double) (now - lastSample)
+                        / DECAY_NANOS);
+                ewmaNanos = (long) (ewmaNanos * weight + latencyNanos
+                        * (1 - weight));
+            }
+            lastSample = now;
+        }
+
+    }
+
+    /**
+     * Response body completing the call on close, the latency spans until
+     * then since servers may send the headers before running the call
+     */
+    private final class CompletionStream
+            extends FilterInputStream {
+
+        private final Endpoint endpoint;
+        private final long start;
+        private boolean failed;
+        private boolean closed;
+
+        CompletionStream(InputStream in, Endpoint endpoint, long start) {
+            super(in);
+            this.endpoint = endpoint;
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException ex) {
+                failed = true;
+                throw ex;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException ex) {
+                failed = true;
+                throw ex;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                endpoint.inFlight.decrementAndGet();
+                long end = System.nanoTime();
+                if (failed) {
+                    onFailure(endpoint, end);
+                } else {
+                    onSuccess(endpoint, end - start, end);
+                }
+            }
+            super.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.exceptions.ProtoException;
+import com.baco.protorpc.util.ProtoEncoders;
+import com.baco.protorpc.util.ProtoStreamSupport;
+import com.baco.protorpc.util.RequestEnvelope;
+import com.baco.protorpc.util.ResponseEnvelope;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects calls made on its proxies and sends them in a single request.
+ *
+ * Calls on a batch proxy are only recorded and return null (or zero for
+ * primitives). {@link #execute()} sends every recorded call with one
+ * handshake and session, the server runs them in parallel and results are
+ * read by call index. A batch can be reused after execute, it's not thread
+ * safe.
+ *
+ * <pre>
+ * ProtoBatch batch = factory.createBatch(url, exHandler, sesRetriever);
+ * Service svc = batch.getProxy(Service.class);
+ * svc.getUser(id);
+ * svc.getOrders(id);
+ * batch.execute();
+ * User user = (User) batch.getResult(0);
+ * </pre>
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoBatch {
+
+    private final ProtoProxy transport;
+    private final ClassLoader loader;
+    private final Map<Method, String> methodMap = new ConcurrentHashMap<Method, String>();
+    private final List<RequestEnvelope> calls = new ArrayList<RequestEnvelope>();
+    private final List<Method> methods = new ArrayList<Method>();
+    private ResponseEnvelope[] responses;
+    private Method[] executedMethods;
+
+    protected ProtoBatch(final ProtoProxy transport, final ClassLoader loader) {
+        this.transport = transport;
+        this.loader = loader;
+    }
+
+    /**
+     * Creates a proxy recording calls into this batch
+     *
+     * @param <T> The service interface class
+     * @param iface The service interface
+     * @return A proxy using the service interface as a facade
+     */
+    public <T> T getProxy(Class<T> iface) {
+        if (iface == null) {
+            throw new NullPointerException(
+                    "Service interface class must not be null");
+        }
+        return iface.cast(Proxy.newProxyInstance(loader, new Class<?>[]{iface},
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        String uniqueName = methodMap.get(method);
+                        if (uniqueName == null) {
+                            uniqueName = ProtoEncoders.getMethodNameAsSha1(
+                                    method);
+                            methodMap.put(method, uniqueName);
+                        }
+                        methods.add(method);
+                        calls.add(new RequestEnvelope(uniqueName, null,
+                                (args != null && args.length > 0) ? args
+                                        : null));
+                        return defaultValue(method.getReturnType());
+                    }
+                }));
+    }
+
+    /**
+     * Number of calls recorded since the last execute
+     *
+     * @return The call count
+     */
+    public int size() {
+        return calls.size();
+    }
+
+    /**
+     * Sends the recorded calls and waits for all responses. If the batch
+     * couldn't be sent, every call result reports the transport error.
+     */
+    public void execute() {
+        RequestEnvelope[] requests = calls.toArray(
+                new RequestEnvelope[calls.size()]);
+        executedMethods = methods.toArray(new Method[methods.size()]);
+        calls.clear();
+        methods.clear();
+        try {
+            responses = requests.length > 0 ? transport.invokeBatch(requests)
+                    : new ResponseEnvelope[0];
+        } catch (ProtoException ex) {
+            responses = new ResponseEnvelope[requests.length];
+            ResponseEnvelope failure = new ResponseEnvelope(1, null, ex);
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = failure;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the call failed
+     *
+     * @param index The call index
+     * @return True if the call ended with an error
+     */
+    public boolean isFailed(int index) {
+        return getResponse(index).getStatus() > 0;
+    }
+
+    /**
+     * Returns the call error
+     *
+     * @param index The call index
+     * @return The error or null if the call succeeded
+     */
+    public ProtoException getException(int index) {
+        return getResponse(index).getThrowable();
+    }
+
+    /**
+     * Returns the call result. Errors are handed to the exception handler or
+     * thrown if there's none. Streamed results are received whole and
+     * converted to the method return type.
+     *
+     * @param index The call index
+     * @return The result, null if the call failed and the error was handled
+     * @throws ProtoException If the call failed and there's no handler
+     */
+    public Object getResult(int index) throws ProtoException {
+        ResponseEnvelope response = getResponse(index);
+        if (response.getStatus() > 0) {
+            ProtoRemoteExceptionHandler exHandler = transport.
+                    getExceptionHandler();
+            if (exHandler != null) {
+                exHandler.processException(response.getThrowable());
+                return null;
+            }
+            throw response.getThrowable();
+        }
+        Class<?> returnType = executedMethods[index].getReturnType();
+        if (ProtoStreamSupport.isStreamType(returnType)) {
+            return ProtoStreamSupport.fromList((List<?>) response.getResult(),
+                    returnType);
+        }
+        return response.getResult();
+    }
+
+    private ResponseEnvelope getResponse(int index) {
+        if (responses == null) {
+            throw new IllegalStateException("Batch was not executed");
+        }
+        return responses[index];
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == char.class) {
+            return Character.valueOf((char) 0);
+        }
+        if (type == long.class) {
+            return Long.valueOf(0l);
+        }
+        if (type == float.class) {
+            return Float.valueOf(0f);
+        }
+        if (type == double.class) {
+            return Double.valueOf(0d);
+        }
+        if (type == byte.class) {
+            return Byte.valueOf((byte) 0);
+        }
+        if (type == short.class) {
+            return Short.valueOf((short) 0);
+        }
+        return Integer.valueOf(0);
+    }
+
+}
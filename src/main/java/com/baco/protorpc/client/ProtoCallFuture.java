@@ -0,0 +1,247 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Future completed by the proxy when the response of a call is decoded
+ *
+ * @param <T> The result type
+ * @author deiby.nahuat
+ */
+final class ProtoCallFuture<T>
+        implements ProtoFuture<T> {
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+    private static final ScheduledThreadPoolExecutor TIMER;
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "protorpc-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Executor executor;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private List<ProtoCallback<? super T>> callbacks
+            = new ArrayList<ProtoCallback<? super T>>(2);
+    private int state = PENDING;
+    private T result;
+    private Throwable failure;
+    private volatile Future<?> task;
+    private volatile ScheduledFuture<?> timeout;
+
+    ProtoCallFuture(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Schedules a task on the timer shared by asynchronous calls
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return TIMER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task if the call isn't completed within the given time
+     */
+    void expireAfter(long timeoutMillis, Runnable onTimeout) {
+        timeout = schedule(onTimeout, timeoutMillis);
+        if (isDone()) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Sets the task executing the call, cancelled along with the future
+     */
+    void setTask(Future<?> task) {
+        this.task = task;
+        if (isCancelled()) {
+            task.cancel(true);
+        }
+    }
+
+    boolean complete(T value) {
+        return finish(COMPLETED, value, null);
+    }
+
+    boolean fail(Throwable cause) {
+        return finish(FAILED, null, cause);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!finish(CANCELLED, null, null)) {
+            return false;
+        }
+        Future<?> current = task;
+        if (current != null) {
+            current.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    @Override
+    public void addCallback(ProtoCallback<? super T> callback) {
+        synchronized (this) {
+            if (state == PENDING) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        dispatch(callback);
+    }
+
+    private boolean finish(int newState, T value, Throwable cause) {
+        List<ProtoCallback<? super T>> pending;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            state = newState;
+            result = value;
+            failure = cause;
+            pending = callbacks;
+            callbacks = null;
+        }
+        latch.countDown();
+        ScheduledFuture<?> current = timeout;
+        if (current != null) {
+            current.cancel(false);
+        }
+        for (ProtoCallback<? super T> callback : pending) {
+            dispatch(callback);
+        }
+        return true;
+    }
+
+    private synchronized T report() throws ExecutionException {
+        if (state == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (state == FAILED) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+
+    /**
+     * Runs a callback on the executor, in the current thread if the executor
+     * rejects it
+     */
+    private void dispatch(final ProtoCallback<? super T> callback) {
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                notifyCallback(callback);
+            }
+        };
+        try {
+            executor.execute(notification);
+        } catch (RejectedExecutionException ex) {
+            notification.run();
+        }
+    }
+
+    private void notifyCallback(ProtoCallback<? super T> callback) {
+        int finalState;
+        T value;
+        Throwable cause;
+        synchronized (this) {
+            finalState = state;
+            value = result;
+            cause = failure;
+        }
+        try {
+            if (finalState == COMPLETED) {
+                callback.onSuccess(value);
+            } else if (finalState == CANCELLED) {
+                callback.onFailure(new CancellationException());
+            } else {
+                callback.onFailure(cause);
+            }
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Call callback failed", ex);
+        }
+    }
+
+}
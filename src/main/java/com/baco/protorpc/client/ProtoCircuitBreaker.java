@@ -0,0 +1,209 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.util.ProtoStripedCounter;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of a single endpoint.
+ *
+ * While closed, the outcome of the last calls is kept in a window; once
+ * enough calls were made and the share of failed or slow ones reaches its
+ * threshold the breaker opens and calls are rejected right away. After the
+ * open time a few trial calls are let through: if all of them succeed the
+ * breaker closes again, otherwise it opens once more.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoCircuitBreaker {
+
+    public enum State {
+
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private final URL endpoint;
+    private final ProtoCircuitBreakerTransport owner;
+    private final byte[] outcomes;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+    private State state = State.CLOSED;
+    private long openUntil;
+    private int trialsLeft;
+    private int trialsPassed;
+    private final ProtoStripedCounter rejected = new ProtoStripedCounter();
+
+    ProtoCircuitBreaker(final URL endpoint,
+            final ProtoCircuitBreakerTransport owner, final int windowSize) {
+        this.endpoint = endpoint;
+        this.owner = owner;
+        this.outcomes = new byte[Math.max(1, windowSize)];
+    }
+
+    /**
+     * Takes a call permit
+     *
+     * @return False if the call must be rejected
+     */
+    boolean acquire(long now) {
+        State from;
+        State to;
+        boolean permitted;
+        synchronized (this) {
+            from = state;
+            if (state == State.OPEN && now - openUntil >= 0) {
+                state = State.HALF_OPEN;
+                trialsLeft = owner.getHalfOpenCalls();
+                trialsPassed = 0;
+            }
+            if (state == State.HALF_OPEN) {
+                permitted = trialsLeft > 0;
+                if (permitted) {
+                    trialsLeft--;
+                }
+            } else {
+                permitted = state == State.CLOSED;
+            }
+            to = state;
+        }
+        if (from != to) {
+            owner.stateChanged(this, from, to);
+        }
+        if (!permitted) {
+            rejected.increment();
+        }
+        return permitted;
+    }
+
+    /**
+     * Records the outcome of a permitted call
+     */
+    void record(long latencyNanos, boolean failed, long now) {
+        long slowNanos = TimeUnit.MILLISECONDS.toNanos(owner.
+                getSlowCallMillis());
+        boolean slow = slowNanos > 0 && latencyNanos >= slowNanos;
+        State from;
+        State to;
+        synchronized (this) {
+            from = state;
+            if (state == State.HALF_OPEN) {
+                if (failed || slow) {
+                    open(now);
+                } else if (++trialsPassed >= owner.getHalfOpenCalls()) {
+                    close();
+                }
+            } else if (state == State.CLOSED) {
+                add((byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0)));
+                if (recorded >= Math.min(outcomes.length, owner.
+                        getMinimumCalls()) && (failures * 100
+                        >= owner.getFailureRatePercent() * recorded
+                        || slowCalls * 100 >= owner.getSlowCallRatePercent()
+                        * recorded)) {
+                    open(now);
+                }
+            }
+            to = state;
+        }
+        if (from != to) {
+            owner.stateChanged(this, from, to);
+        }
+    }
+
+    private void add(byte outcome) {
+        if (recorded == outcomes.length) {
+            byte eldest = outcomes[next];
+            failures -= eldest & FAILED;
+            slowCalls -= (eldest & SLOW) >> 1;
+        } else {
+            recorded++;
+        }
+        outcomes[next] = outcome;
+        failures += outcome & FAILED;
+        slowCalls += (outcome & SLOW) >> 1;
+        next = (next + 1) % outcomes.length;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openUntil = now + TimeUnit.MILLISECONDS.toNanos(owner.getOpenMillis());
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    public URL getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the share of failed calls in the window
+     *
+     * @return The failure rate between 0 and 1
+     */
+    public synchronized double getFailureRate() {
+        return recorded == 0 ? 0d : (double) failures / recorded;
+    }
+
+    /**
+     * Returns the share of slow calls in the window
+     *
+     * @return The slow call rate between 0 and 1
+     */
+    public synchronized double getSlowCallRate() {
+        return recorded == 0 ? 0d : (double) slowCalls / recorded;
+    }
+
+    /**
+     * Returns the number of calls rejected while open
+     *
+     * @return The rejected call count
+     */
+    public long getRejectedCalls() {
+        return rejected.sum();
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport guarding every endpoint with a ProtoCircuitBreaker.
+ *
+ * Calls to an endpoint whose breaker is open fail right away instead of
+ * waiting on a degraded server, proxies report them to their callers as a
+ * ProtoCircuitOpenException. Used
+ * as the delegate of a ProtoBalancedTransport each endpoint gets its own
+ * breaker, and open ones are ejected from the balancing. State changes are
+ * logged and handed to the exception handler as
+ * ProtoCircuitStateException.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoCircuitBreakerTransport
+        implements ProtoTransport {
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+
+    private final ProtoTransport delegate;
+    private final ConcurrentMap<String, ProtoCircuitBreaker> breakers = new ConcurrentHashMap<String, ProtoCircuitBreaker>();
+    private volatile ProtoRemoteExceptionHandler exHandler;
+    private volatile int windowSize = 20;
+    private volatile int minimumCalls = 10;
+    private volatile int failureRatePercent = 50;
+    private volatile long slowCallMillis = 5000;
+    private volatile int slowCallRatePercent = 50;
+    private volatile long openMillis = 10000;
+    private volatile int halfOpenCalls = 3;
+
+    /**
+     * Creates a transport
+     *
+     * @param delegate Transport carrying the calls, null for the shared
+     * pooled http transport. It isn't closed with this transport.
+     */
+    public ProtoCircuitBreakerTransport(final ProtoTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public InputStream exchange(URL url, byte[] request, int timeoutMillis)
+            throws IOException {
+        ProtoCircuitBreaker breaker = getBreaker(url);
+        long start = System.nanoTime();
+        if (!breaker.acquire(start)) {
+            throw new OpenCircuitException(url);
+        }
+        InputStream response;
+        try {
+            ProtoTransport current = delegate != null ? delegate
+                    : ProtoPooledHttpTransport.getDefault();
+            response = current.exchange(url, request, timeoutMillis);
+        } catch (IOException ex) {
+            long end = System.nanoTime();
+            breaker.record(end - start, true, end);
+            throw ex;
+        } catch (RuntimeException ex) {
+            long end = System.nanoTime();
+            breaker.record(end - start, true, end);
+            throw ex;
+        }
+        return new OutcomeStream(response, breaker, start);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Returns the breaker of an endpoint, creating it on first use
+     *
+     * @param url The endpoint url
+     * @return The breaker
+     */
+    public ProtoCircuitBreaker getBreaker(URL url) {
+        /* URL.equals resolves host names, key by the text */
+        String key = url.toExternalForm();
+        ProtoCircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            breaker = new ProtoCircuitBreaker(url, this, windowSize);
+            ProtoCircuitBreaker existing = breakers.putIfAbsent(key, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    public List<ProtoCircuitBreaker> getBreakers() {
+        return new ArrayList<ProtoCircuitBreaker>(breakers.values());
+    }
+
+    void stateChanged(ProtoCircuitBreaker breaker,
+            ProtoCircuitBreaker.State from, ProtoCircuitBreaker.State to) {
+        LOG.log(to == ProtoCircuitBreaker.State.OPEN ? Level.WARNING
+                : Level.INFO, "Circuit breaker of {0} went from {1} to {2}",
+                new Object[]{breaker.getEndpoint(), from, to});
+        ProtoRemoteExceptionHandler handler = exHandler;
+        if (handler != null) {
+            try {
+                handler.processException(new ProtoCircuitStateException(
+                        breaker.getEndpoint(), from, to));
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING,
+                        "Exception handler failed on a breaker change", ex);
+            }
+        }
+    }
+
+    /**
+     * Sets the handler receiving the breaker state changes
+     */
+    public void setExceptionHandler(ProtoRemoteExceptionHandler exHandler) {
+        this.exHandler = exHandler;
+    }
+
+    /**
+     * Sets the number of recent calls whose outcome is kept, applies to
+     * breakers created afterwards
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    /**
+     * Sets the calls needed in the window before a breaker can open
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = Math.max(1, minimumCalls);
+    }
+
+    /**
+     * Sets the share of failed calls that opens a breaker
+     */
+    public void setFailureRatePercent(int failureRatePercent) {
+        this.failureRatePercent = Math.min(100, Math.max(1,
+                failureRatePercent));
+    }
+
+    /**
+     * Sets the time after which a call is slow and the share of slow calls
+     * that opens a breaker
+     *
+     * @param slowCallMillis The slow call time, 0 disables it
+     * @param slowCallRatePercent The share of slow calls
+     */
+    public void setSlowCalls(long slowCallMillis, int slowCallRatePercent) {
+        this.slowCallMillis = Math.max(0, slowCallMillis);
+        this.slowCallRatePercent = Math.min(100, Math.max(1,
+                slowCallRatePercent));
+    }
+
+    /**
+     * Sets the time a breaker stays open before trying calls again
+     */
+    public void setOpenMillis(long openMillis) {
+        this.openMillis = Math.max(1, openMillis);
+    }
+
+    /**
+     * Sets the trial calls let through after the open time
+     */
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+    }
+
+    int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    int getFailureRatePercent() {
+        return failureRatePercent;
+    }
+
+    long getSlowCallMillis() {
+        return slowCallMillis;
+    }
+
+    int getSlowCallRatePercent() {
+        return slowCallRatePercent;
+    }
+
+    long getOpenMillis() {
+        return openMillis;
+    }
+
+    int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    /**
+     * Response body recording the call outcome on close
+     */
+    private static final class OutcomeStream
+            extends FilterInputStream {
+
+        private final ProtoCircuitBreaker breaker;
+        private final long start;
+        private boolean failed;
+        private boolean closed;
+
+        OutcomeStream(InputStream in, ProtoCircuitBreaker breaker,
+                long start) {
+            super(in);
+            this.breaker = breaker;
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException ex) {
+                failed = true;
+                throw ex;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException ex) {
+                failed = true;
+                throw ex;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                long end = System.nanoTime();
+                breaker.record(end - start, failed, end);
+            }
+            super.close();
+        }
+
+    }
+
+    /**
+     * Carries the rejection of a call through the transport interface, the
+     * proxy throws its ProtoCircuitOpenException
+     */
+    static final class OpenCircuitException
+            extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final URL endpoint;
+
+        OpenCircuitException(URL endpoint) {
+            super("Circuit breaker open for " + endpoint);
+            this.endpoint = endpoint;
+        }
+
+        ProtoCircuitOpenException toProtoException() {
+            return new ProtoCircuitOpenException(endpoint);
+        }
+
+    }
+
+}
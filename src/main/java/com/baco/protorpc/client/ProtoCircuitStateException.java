@@ -0,0 +1,73 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.exceptions.ProtoTransportException;
+import java.net.URL;
+
+/**
+ * Notice of a circuit breaker state change, handed to the
+ * ProtoRemoteExceptionHandler of the breaker transport. It isn't thrown to
+ * callers.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoCircuitStateException
+        extends ProtoTransportException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final URL endpoint;
+    private final ProtoCircuitBreaker.State previousState;
+    private final ProtoCircuitBreaker.State state;
+
+    public ProtoCircuitStateException(URL endpoint,
+            ProtoCircuitBreaker.State previousState,
+            ProtoCircuitBreaker.State state) {
+        super("Circuit breaker of " + endpoint + " went from "
+                + previousState + " to " + state, null);
+        this.endpoint = endpoint;
+        this.previousState = previousState;
+        this.state = state;
+    }
+
+    public URL getEndpoint() {
+        return endpoint;
+    }
+
+    public ProtoCircuitBreaker.State getPreviousState() {
+        return previousState;
+    }
+
+    public ProtoCircuitBreaker.State getState() {
+        return state;
+    }
+}
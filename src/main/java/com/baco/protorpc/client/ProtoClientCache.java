@@ -0,0 +1,322 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoClientCacheable;
+import com.baco.protorpc.util.ProtoStripedCounter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result cache of a single method in a client proxy.
+ *
+ * Entries are keyed by the encoded request, which holds the method hash,
+ * the arguments and the session, and keep the raw response so every hit
+ * decodes its own copy of the result. The cache is split in segments, each
+ * one a small LRU map under its own lock bounded by entries and bytes,
+ * entries expire after the ttl.
+ *
+ * The cache implements its MBean interface so it can be published through
+ * JMX by the application.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoClientCache
+        implements ProtoClientCacheMBean {
+
+    private static final int SEGMENT_COUNT = 16;
+    /* Smallest byte budget of a segment, small caches use fewer segments */
+    private static final long MIN_SEGMENT_BYTES = 65536;
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Segment[] segments;
+    private final ProtoStripedCounter hits = new ProtoStripedCounter();
+    private final ProtoStripedCounter misses = new ProtoStripedCounter();
+    private final ProtoStripedCounter evictions = new ProtoStripedCounter();
+
+    /**
+     * Creates a cache
+     *
+     * @param ttlMillis Time a cached result stays valid
+     * @param maxEntries Maximum number of cached results
+     * @param maxBytes Maximum size of the cached responses, 0 for no limit
+     */
+    public ProtoClientCache(final long ttlMillis, final int maxEntries,
+            final long maxBytes) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(0, maxBytes);
+        int segmentCount = Math.min(SEGMENT_COUNT, this.maxEntries);
+        if (this.maxBytes > 0) {
+            segmentCount = (int) Math.max(1, Math.min(segmentCount,
+                    this.maxBytes / MIN_SEGMENT_BYTES));
+        }
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((this.maxEntries + segmentCount - 1)
+                    / segmentCount, this.maxBytes == 0 ? Long.MAX_VALUE
+                            : (this.maxBytes + segmentCount - 1) / segmentCount);
+        }
+    }
+
+    public ProtoClientCache(final ProtoClientCacheable config) {
+        this(config.ttlMillis(), config.maxEntries(), config.maxBytes());
+    }
+
+    /**
+     * Gets a cached response
+     *
+     * @param request The encoded request
+     * @return The response or null if it's not cached or expired
+     */
+    public byte[] get(final byte[] request) {
+        Key key = new Key(request);
+        byte[] response = segmentFor(key).get(key, System.currentTimeMillis());
+        if (response != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return response;
+    }
+
+    /**
+     * Stores a response
+     *
+     * @param request The encoded request
+     * @param response The response
+     */
+    public void put(final byte[] request, final byte[] response) {
+        Key key = new Key(request);
+        int evicted = segmentFor(key).put(key, new CachedResponse(response,
+                System.currentTimeMillis() + ttlMillis));
+        if (evicted > 0) {
+            evictions.add(evicted);
+        }
+    }
+
+    private Segment segmentFor(final Key key) {
+        int h = key.hash ^ (key.hash >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0d : (double) h / total;
+    }
+
+    /**
+     * Removes all cached results
+     */
+    @Override
+    public void invalidate() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /**
+     * Cache key, requests are compared by content
+     */
+    private static final class Key {
+
+        private final byte[] request;
+        private final int hash;
+
+        Key(byte[] request) {
+            this.request = request;
+            this.hash = Arrays.hashCode(request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(request, other.request);
+        }
+
+    }
+
+    private static final class CachedResponse {
+
+        private final byte[] response;
+        private final long expiresAt;
+
+        CachedResponse(byte[] response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+
+        long weight(Key key) {
+            return key.request.length + response.length;
+        }
+
+    }
+
+    /**
+     * LRU map bounded by entries and bytes, guarded by its own lock
+     */
+    private static final class Segment {
+
+        private final LinkedHashMap<Key, CachedResponse> entries
+                = new LinkedHashMap<Key, CachedResponse>(16, 0.75f, true);
+        private final int capacity;
+        private final long capacityBytes;
+        private long bytes;
+
+        Segment(int capacity, long capacityBytes) {
+            this.capacity = capacity;
+            this.capacityBytes = capacityBytes;
+        }
+
+        synchronized byte[] get(Key key, long now) {
+            CachedResponse entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt <= now) {
+                entries.remove(key);
+                bytes -= entry.weight(key);
+                return null;
+            }
+            return entry.response;
+        }
+
+        /**
+         * Adds an entry and returns the number of evicted ones
+         */
+        synchronized int put(Key key, CachedResponse entry) {
+            long weight = entry.weight(key);
+            if (weight > capacityBytes) {
+                return 0;
+            }
+            CachedResponse previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.weight(key);
+            }
+            bytes += weight;
+            int evicted = 0;
+            Iterator<Map.Entry<Key, CachedResponse>> eldest = entries.
+                    entrySet().iterator();
+            while ((entries.size() > capacity || bytes > capacityBytes)
+                    && eldest.hasNext()) {
+                Map.Entry<Key, CachedResponse> next = eldest.next();
+                bytes -= next.getValue().weight(next.getKey());
+                eldest.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+    }
+
+}
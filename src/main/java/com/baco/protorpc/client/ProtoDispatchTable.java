@@ -0,0 +1,264 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoClientCacheable;
+import com.baco.protorpc.api.ProtoCoalesced;
+import com.baco.protorpc.api.ProtoDeadline;
+import com.baco.protorpc.api.ProtoGraph;
+import com.baco.protorpc.api.ProtoIdempotent;
+import com.baco.protorpc.util.ProtoEncoders;
+import com.baco.protorpc.util.ProtoMethodCodec;
+import com.baco.protorpc.util.ProtoServiceManifest;
+import com.baco.protorpc.util.ProtoStreamSupport;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Methods of a service interface with everything a call needs computed
+ * once: wire identifier, return type, typed codec and per method
+ * settings.
+ *
+ * Lookups are by identity. Proxy classes hand their own copies of the
+ * interface methods to the handler, so the first call made with a copy
+ * binds it to its entry; afterwards calls only read an identity map.
+ *
+ * Once the server manifest is applied, entries also hold the number the
+ * server gave their method.
+ *
+ * @author deiby.nahuat
+ */
+final class ProtoDispatchTable {
+
+    private final Class<?> service;
+    private final Map<Method, Entry> entries;
+    private volatile Map<Method, Entry> bound;
+    private volatile ProtoServiceManifest manifest;
+
+    ProtoDispatchTable(final Class<?> service) {
+        this.service = service;
+        Map<Method, Entry> map = new HashMap<Method, Entry>();
+        Map<Method, Entry> identity = new IdentityHashMap<Method, Entry>();
+        for (Method method : service.getMethods()) {
+            Entry entry = new Entry(method);
+            map.put(method, entry);
+            identity.put(method, entry);
+        }
+        this.entries = Collections.unmodifiableMap(map);
+        this.bound = identity;
+    }
+
+    Class<?> getService() {
+        return service;
+    }
+
+    /**
+     * Returns the entry of a method, methods from outside the interface get
+     * an entry of their own on first use
+     */
+    Entry get(Method method) {
+        Entry entry = bound.get(method);
+        return entry != null ? entry : bind(method);
+    }
+
+    private synchronized Entry bind(Method method) {
+        Entry entry = bound.get(method);
+        if (entry == null) {
+            entry = entries.get(method);
+            if (entry == null) {
+                entry = new Entry(method);
+                number(entry, manifest);
+            }
+            Map<Method, Entry> copy = new IdentityHashMap<Method, Entry>(bound);
+            copy.put(method, entry);
+            bound = copy;
+        }
+        return entry;
+    }
+
+    /**
+     * Numbers the entries with the server manifest
+     */
+    synchronized void applyManifest(ProtoServiceManifest manifest) {
+        for (Entry entry : bound.values()) {
+            number(entry, manifest);
+        }
+        this.manifest = manifest;
+    }
+
+    /**
+     * Goes back to method hashes, the server numbering changed
+     */
+    synchronized void dropManifest() {
+        manifest = null;
+        for (Entry entry : bound.values()) {
+            entry.methodId = null;
+        }
+    }
+
+    /**
+     * Version of the applied manifest
+     *
+     * @return The version or 0 if requests carry method hashes
+     */
+    int getManifestVersion() {
+        ProtoServiceManifest current = manifest;
+        return current != null ? current.getVersion() : 0;
+    }
+
+    private static void number(Entry entry, ProtoServiceManifest manifest) {
+        int methodId = manifest != null ? manifest.indexOf(entry.id) : -1;
+        entry.methodId = methodId >= 0 ? methodId : null;
+    }
+
+    /**
+     * Returns the entries of the interface methods
+     */
+    List<Entry> entries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * A service method, settings start from its annotations
+     */
+    static final class Entry {
+
+        private final Method method;
+        private final String id;
+        private final Class<?> returnType;
+        private final boolean streamType;
+        private volatile boolean coalesced;
+        private volatile boolean idempotent;
+        private volatile boolean graph;
+        private volatile ProtoClientCache cache;
+        private volatile long deadlineMillis;
+        private volatile Integer methodId;
+        private volatile ProtoMethodCodec codec;
+
+        Entry(Method method) {
+            this.method = method;
+            this.id = ProtoEncoders.getMethodNameAsSha1(method);
+            this.returnType = method.getReturnType();
+            this.streamType = ProtoStreamSupport.isStreamType(returnType);
+            this.coalesced = method.isAnnotationPresent(ProtoCoalesced.class);
+            this.idempotent = method.isAnnotationPresent(
+                    ProtoIdempotent.class);
+            this.graph = method.isAnnotationPresent(ProtoGraph.class);
+            ProtoClientCacheable config = method.getAnnotation(
+                    ProtoClientCacheable.class);
+            this.cache = config != null ? new ProtoClientCache(config) : null;
+            ProtoDeadline deadline = method.getAnnotation(ProtoDeadline.class);
+            this.deadlineMillis = deadline != null ? deadline.value() : 0;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        /**
+         * Number of the method in the server manifest
+         *
+         * @return The number or null if calls carry the method hash
+         */
+        Integer getMethodId() {
+            return methodId;
+        }
+
+        /**
+         * Codec of the typed arguments and result, built on first use
+         *
+         * @return The method codec
+         */
+        ProtoMethodCodec getCodec() {
+            ProtoMethodCodec current = codec;
+            if (current == null) {
+                current = new ProtoMethodCodec(method);
+                codec = current;
+            }
+            return current;
+        }
+
+        Class<?> getReturnType() {
+            return returnType;
+        }
+
+        boolean isStreamType() {
+            return streamType;
+        }
+
+        boolean isCoalesced() {
+            return coalesced;
+        }
+
+        void setCoalesced(boolean coalesced) {
+            this.coalesced = coalesced;
+        }
+
+        boolean isIdempotent() {
+            return idempotent;
+        }
+
+        void setIdempotent(boolean idempotent) {
+            this.idempotent = idempotent;
+        }
+
+        boolean isGraph() {
+            return graph;
+        }
+
+        void setGraph(boolean graph) {
+            this.graph = graph;
+        }
+
+        ProtoClientCache getCache() {
+            return cache;
+        }
+
+        void setCache(ProtoClientCache cache) {
+            this.cache = cache;
+        }
+
+        long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+
+        void setDeadlineMillis(long deadlineMillis) {
+            this.deadlineMillis = deadlineMillis;
+        }
+
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.util.ProtoStripedCounter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends a second copy of slow calls to idempotent methods.
+ *
+ * A call not answered within a percentile of the latencies of recent calls
+ * is sent again, to another endpoint when the proxy uses a
+ * ProtoBalancedTransport. The first copy runs on the calling thread and
+ * the second one on a small shared pool, a hedge waiting for a free thread
+ * is dropped if the first copy answers meanwhile. The first response to
+ * arrive is used and the other copy closes its stream without reading it,
+ * releasing its connection. Every call earns a share of a hedge given by
+ * the budget, so hedges never exceed that share of the calls. Calls aren't
+ * hedged until enough latencies were recorded.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoHedger {
+
+    /* Latencies kept to compute the percentile */
+    private static final int SAMPLES = 256;
+    /* Latencies recorded before hedging */
+    private static final int MIN_SAMPLES = 20;
+    /* Latencies recorded between percentile updates */
+    private static final int REFRESH_SAMPLES = 16;
+    /* Hedges sent at the same time by all the proxies */
+    private static final int HEDGE_THREADS = Math.max(4,
+            Runtime.getRuntime().availableProcessors() * 2);
+    private static ScheduledThreadPoolExecutor executor;
+
+    private final ProtoProxy proxy;
+    private final int percentile;
+    private final int budgetPercent;
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+    private int sinceRefresh;
+    private volatile long delayNanos = -1;
+    private final ProtoCallBudget budget;
+    private final ProtoStripedCounter hedges = new ProtoStripedCounter();
+    private final ProtoStripedCounter hedgesWon = new ProtoStripedCounter();
+
+    ProtoHedger(final ProtoProxy proxy, final int percentile,
+            final int budgetPercent) {
+        this.proxy = proxy;
+        this.percentile = Math.min(100, Math.max(1, percentile));
+        this.budgetPercent = Math.min(100, Math.max(0, budgetPercent));
+        this.budget = new ProtoCallBudget(budgetPercent);
+    }
+
+    /**
+     * Sends an encoded call and returns the first response
+     *
+     * @param request The encoded call
+     * @param timeoutMillis Time to wait for a response
+     * @return The response bytes
+     * @throws IOException If every copy of the call failed
+     */
+    byte[] fetch(final byte[] request, final int timeoutMillis)
+            throws IOException {
+        long delay = delayNanos;
+        budget.earn();
+        long start = System.nanoTime();
+        if (delay < 0) {
+            byte[] response = send(request, timeoutMillis, null, null, null);
+            record(System.nanoTime() - start);
+            return response;
+        }
+        final long deadline = start
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final Race race = new Race();
+        final AtomicReference<ProtoBalancedTransport.Endpoint> primary
+                = new AtomicReference<ProtoBalancedTransport.Endpoint>();
+        race.tryStart();
+        ScheduledFuture<?> hedge = null;
+        try {
+            hedge = getExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    hedge(race, request, deadline, primary.get());
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ex) {
+            /* Sent without a hedge */
+        }
+        try {
+            byte[] response = send(request, timeoutMillis, null, primary,
+                    race);
+            if (response != null) {
+                record(System.nanoTime() - start);
+                race.succeed(response, false);
+            }
+        } catch (IOException ex) {
+            race.fail(ex);
+        } catch (RuntimeException ex) {
+            race.fail(new IOException(ex));
+        }
+        if (hedge != null) {
+            hedge.cancel(false);
+        }
+        /* A hedge already sent gets what is left of the timeout */
+        race.close();
+        race.await(deadline - System.nanoTime());
+        return race.result(hedgesWon);
+    }
+
+    /**
+     * Sends the second copy from the pool, unless the race is over
+     */
+    private void hedge(Race race, byte[] request, long deadline,
+            ProtoBalancedTransport.Endpoint avoid) {
+        int left = (int) TimeUnit.NANOSECONDS.toMillis(deadline
+                - System.nanoTime());
+        if (left <= 0 || !budget.spend()) {
+            return;
+        }
+        if (!race.tryStart()) {
+            return;
+        }
+        hedges.increment();
+        long start = System.nanoTime();
+        try {
+            byte[] response = send(request, left, avoid, null, race);
+            if (response != null) {
+                record(System.nanoTime() - start);
+                race.succeed(response, true);
+            }
+        } catch (IOException ex) {
+            race.fail(ex);
+        } catch (RuntimeException ex) {
+            race.fail(new IOException(ex));
+        }
+    }
+
+    /**
+     * Sends a copy and reads its response, or returns null without reading
+     * it when the other copy already answered
+     */
+    private byte[] send(byte[] request, int timeoutMillis,
+            ProtoBalancedTransport.Endpoint avoid,
+            AtomicReference<ProtoBalancedTransport.Endpoint> chosen,
+            Race race) throws IOException {
+        ProtoTransport transport = proxy.getTransport();
+        InputStream is;
+        if (transport instanceof ProtoBalancedTransport) {
+            is = ((ProtoBalancedTransport) transport).exchange(request,
+                    timeoutMillis, avoid, chosen);
+        } else {
+            is = transport.exchange(proxy.getURL(), request, timeoutMillis);
+        }
+        if (race != null && race.isWon()) {
+            is.close();
+            return null;
+        }
+        return ProtoProxy.readFully(is);
+    }
+
+    /**
+     * Adds a latency and updates the hedge delay from time to time
+     */
+    private void record(long latencyNanos) {
+        synchronized (samples) {
+            samples[nextSample] = latencyNanos;
+            nextSample = (nextSample + 1) % SAMPLES;
+            if (sampleCount < SAMPLES) {
+                sampleCount++;
+            }
+            if (sampleCount < MIN_SAMPLES
+                    || (++sinceRefresh < REFRESH_SAMPLES
+                    && delayNanos >= 0)) {
+                return;
+            }
+            sinceRefresh = 0;
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100d * sampleCount) - 1;
+            delayNanos = sorted[Math.max(0, index)];
+        }
+    }
+
+    public int getPercentile() {
+        return percentile;
+    }
+
+    public int getBudgetPercent() {
+        return budgetPercent;
+    }
+
+    /**
+     * Returns the time after which calls are hedged
+     *
+     * @return The delay in milliseconds, -1 while too few calls were made
+     */
+    public double getHedgeDelayMillis() {
+        long delay = delayNanos;
+        return delay < 0 ? -1 : delay / 1000000d;
+    }
+
+    /**
+     * Returns the number of second copies sent
+     *
+     * @return The hedge count
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Returns the number of second copies answered before the first one
+     *
+     * @return The won hedge count
+     */
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    /**
+     * Returns the pool sending the second copies, hedges beyond its threads
+     * wait until one is free
+     */
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(HEDGE_THREADS,
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "protorpc-hedge-"
+                                    + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Copies of a call racing for the first response
+     */
+    private static final class Race {
+
+        private int started;
+        private int failed;
+        private boolean closed;
+        private byte[] response;
+        private boolean hedgeWon;
+        private IOException error;
+
+        /**
+         * Counts a new copy, unless the race is over or closed
+         */
+        synchronized boolean tryStart() {
+            if (closed || response != null) {
+                return false;
+            }
+            started++;
+            return true;
+        }
+
+        /**
+         * No copy is started after this
+         */
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized boolean isWon() {
+            return response != null;
+        }
+
+        synchronized void succeed(byte[] response, boolean hedge) {
+            if (this.response == null) {
+                this.response = response;
+                this.hedgeWon = hedge;
+                notifyAll();
+            }
+        }
+
+        synchronized void fail(IOException ex) {
+            failed++;
+            if (error == null) {
+                error = ex;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits until a copy answered or all of them failed
+         *
+         * @return True if the race is over
+         */
+        synchronized boolean await(long nanos) throws IOException {
+            long deadline = System.nanoTime() + nanos;
+            try {
+                while (response == null && failed < started) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for a hedged call",
+                        ex);
+            }
+            return true;
+        }
+
+        synchronized byte[] result(ProtoStripedCounter hedgesWon)
+                throws IOException {
+            if (response != null) {
+                if (hedgeWon) {
+                    hedgesWon.increment();
+                }
+                return response;
+            }
+            if (failed < started) {
+                throw new SocketTimeoutException(
+                        "Timed out waiting for a hedged call");
+            }
+            throw error;
+        }
+
+    }
+
+}
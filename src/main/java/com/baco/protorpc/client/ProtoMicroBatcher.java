@@ -0,0 +1,263 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoSession;
+import com.baco.protorpc.exceptions.ProtoException;
+import com.baco.protorpc.exceptions.ProtoTransportException;
+import com.baco.protorpc.util.ProtoSessionImpl;
+import com.baco.protorpc.util.ProtoStripedCounter;
+import com.baco.protorpc.util.RequestEnvelope;
+import com.baco.protorpc.util.ResponseEnvelope;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gathers calls made by different threads through a proxy and sends them
+ * as a single batch.
+ *
+ * The first call of a batch waits up to the window for other calls, or
+ * until the batch is full, and then sends it; the other callers wait for
+ * their response. Only calls with equal sessions, same class and values,
+ * are gathered since a batch carries a single one; a retriever may hand out
+ * a new session object on every call. A batch holding a single call is
+ * sent as a regular request.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoMicroBatcher {
+
+    /* Group of calls made with the default session */
+    private static final Object DEFAULT_SESSION = new Object();
+
+    private final ProtoProxy proxy;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final long timeoutMillis;
+    private final Map<Object, Batch> open = new HashMap<Object, Batch>();
+    private final ProtoStripedCounter batches = new ProtoStripedCounter();
+    private final ProtoStripedCounter batchedCalls = new ProtoStripedCounter();
+
+    ProtoMicroBatcher(final ProtoProxy proxy, final long windowMicros,
+            final int maxBatchSize, final long timeoutMillis) {
+        this.proxy = proxy;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0,
+                windowMicros));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sends a call within a batch and waits for its response
+     *
+     * @param request The call
+     * @return The call response
+     * @throws ProtoException If the batch couldn't be sent or read
+     */
+    ResponseEnvelope call(final RequestEnvelope request) throws ProtoException {
+        ProtoSession session = request.getSession();
+        Object key = session == null
+                || session.getClass() == ProtoSessionImpl.class
+                ? DEFAULT_SESSION : new SessionKey(session);
+        Batch batch;
+        int index;
+        boolean leader = false;
+        synchronized (open) {
+            batch = open.get(key);
+            if (batch == null) {
+                batch = new Batch(session, Thread.currentThread());
+                open.put(key, batch);
+                leader = true;
+            }
+            index = batch.calls.size();
+            batch.calls.add(request);
+            if (batch.calls.size() >= maxBatchSize) {
+                open.remove(key);
+                batch.sealed = true;
+            }
+        }
+        if (leader) {
+            awaitWindow(key, batch);
+            send(batch);
+        } else if (batch.sealed) {
+            LockSupport.unpark(batch.leader);
+        }
+        return batch.await(index, timeoutMillis);
+    }
+
+    /**
+     * Parks the leader until the window ends or the batch is full
+     */
+    private void awaitWindow(Object key, Batch batch) {
+        long deadline = System.nanoTime() + windowNanos;
+        long left = windowNanos;
+        while (!batch.sealed && left > 0) {
+            LockSupport.parkNanos(this, left);
+            left = deadline - System.nanoTime();
+        }
+        synchronized (open) {
+            if (!batch.sealed) {
+                batch.sealed = true;
+                open.remove(key);
+            }
+        }
+    }
+
+    private void send(Batch batch) {
+        RequestEnvelope[] calls;
+        synchronized (open) {
+            calls = batch.calls.toArray(new RequestEnvelope[batch.calls.size()]);
+        }
+        try {
+            ResponseEnvelope[] responses = calls.length == 1
+                    ? new ResponseEnvelope[]{proxy.exchangeRequest(calls[0])}
+                    : proxy.invokeBatch(batch.session, calls);
+            if (calls.length > 1) {
+                batches.increment();
+                batchedCalls.add(calls.length);
+            }
+            batch.complete(responses);
+        } catch (ProtoException ex) {
+            batch.fail(ex);
+        }
+    }
+
+    public long getWindowMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(windowNanos);
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Returns the number of batches sent with more than one call
+     *
+     * @return The batch count
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Returns the number of calls sent within those batches
+     *
+     * @return The batched call count
+     */
+    public long getBatchedCalls() {
+        return batchedCalls.sum();
+    }
+
+    /**
+     * Session class and a snapshot of its values
+     */
+    private static final class SessionKey {
+
+        private final Class<?> type;
+        private final Map<String, String> values;
+
+        SessionKey(ProtoSession session) {
+            this.type = session.getClass();
+            this.values = new HashMap<String, String>(session.getValues());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) obj;
+            return type == other.type && values.equals(other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + values.hashCode();
+        }
+
+    }
+
+    /**
+     * Calls gathered for a session
+     */
+    private static final class Batch {
+
+        private final ProtoSession session;
+        private final Thread leader;
+        private final List<RequestEnvelope> calls = new ArrayList<RequestEnvelope>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean sealed;
+        private ResponseEnvelope[] responses;
+        private ProtoException error;
+
+        Batch(ProtoSession session, Thread leader) {
+            this.session = session;
+            this.leader = leader;
+        }
+
+        void complete(ResponseEnvelope[] responses) {
+            this.responses = responses;
+            done.countDown();
+        }
+
+        void fail(ProtoException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        ResponseEnvelope await(int index, long timeoutMillis)
+                throws ProtoException {
+            try {
+                if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new ProtoTransportException("Network error",
+                            new SocketTimeoutException(
+                                    "Timed out waiting for a batched call"));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ProtoTransportException(
+                        "Interrupted waiting for a batched call.", ex);
+            }
+            if (error != null) {
+                throw error;
+            }
+            return responses[index];
+        }
+
+    }
+
+}
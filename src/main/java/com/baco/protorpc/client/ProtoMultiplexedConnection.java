@@ -0,0 +1,390 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.util.ProtoFraming;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent connection to a ProtoNioServer shared by concurrent calls.
+ *
+ * Every request gets a correlation id and callers wait only for their own
+ * response, so many calls are in flight on one socket and responses may
+ * arrive in any order. Large requests are written in fragments and the
+ * write lock is released between fragments so small requests can go in
+ * between. The socket is opened lazily and reopened after a failure. A
+ * call that times out is cancelled on the server so it stops working on a
+ * response nobody waits for.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoMultiplexedConnection
+        implements ProtoAsyncTransport {
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+    private static final int CONNECT_TIMEOUT = 30000;
+
+    private final InetSocketAddress address;
+    private final AtomicInteger correlationIds = new AtomicInteger();
+    private final Object writeLock = new Object();
+    private volatile Link link;
+
+    public ProtoMultiplexedConnection(final InetSocketAddress address) {
+        this.address = address;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Sends a request and waits for its response
+     *
+     * @param request The request message
+     * @param timeoutMillis Maximum time to wait for the response
+     * @return The response message
+     * @throws IOException If the connection fails or the call times out
+     */
+    public byte[] exchange(final byte[] request, final long timeoutMillis)
+            throws IOException {
+        PendingCall call = new PendingCall(null);
+        Link current = send(request, call);
+        try {
+            if (!call.latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                cancel(current, call.correlationId);
+                throw new SocketTimeoutException(
+                        "Timed out waiting for response from " + address);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted waiting for response from " + address);
+        } finally {
+            current.pending.remove(call.correlationId);
+        }
+        if (call.error != null) {
+            throw call.error;
+        }
+        return call.response;
+    }
+
+    /**
+     * Sends a request without waiting, the response is handed to the
+     * callback from the reader thread
+     */
+    @Override
+    public void exchange(URL url, byte[] request, int timeoutMillis,
+            ProtoCallback<InputStream> callback) {
+        final PendingCall call = new PendingCall(callback);
+        final Link current;
+        try {
+            current = send(request, call);
+        } catch (IOException ex) {
+            call.fail(ex);
+            return;
+        }
+        call.timeout = ProtoCallFuture.schedule(new Runnable() {
+            @Override
+            public void run() {
+                current.pending.remove(call.correlationId);
+                if (call.fail(new SocketTimeoutException(
+                        "Timed out waiting for response from " + address))) {
+                    cancel(current, call.correlationId);
+                }
+            }
+        }, timeoutMillis);
+        if (call.latch.getCount() == 0) {
+            call.timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Registers a call and writes its request in fragments
+     */
+    private Link send(final byte[] request, final PendingCall call)
+            throws IOException {
+        Link current = openLink();
+        int correlationId = correlationIds.incrementAndGet();
+        call.correlationId = correlationId;
+        current.pending.put(correlationId, call);
+        if (current.closed) {
+            current.pending.remove(correlationId);
+            throw new IOException("Connection to " + address + " closed");
+        }
+        try {
+            int offset = 0;
+            do {
+                int length = Math.min(request.length - offset,
+                        ProtoFraming.MAX_FRAGMENT_SIZE);
+                boolean last = offset + length == request.length;
+                synchronized (writeLock) {
+                    current.out.writeInt(length);
+                    current.out.writeInt(correlationId);
+                    current.out.writeByte(last ? ProtoFraming.FLAG_FINAL : 0);
+                    current.out.write(request, offset, length);
+                    current.out.flush();
+                }
+                offset += length;
+            } while (offset < request.length);
+        } catch (IOException ex) {
+            current.pending.remove(correlationId);
+            current.fail(ex);
+            throw ex;
+        }
+        return current;
+    }
+
+    /**
+     * Tells the server the response of a call is no longer awaited, best
+     * effort
+     */
+    private void cancel(final Link current, final int correlationId) {
+        if (current.closed) {
+            return;
+        }
+        try {
+            synchronized (writeLock) {
+                current.out.writeInt(0);
+                current.out.writeInt(correlationId);
+                current.out.writeByte(ProtoFraming.FLAG_CANCEL);
+                current.out.flush();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Couldn't cancel call " + correlationId, ex);
+        }
+    }
+
+    private Link openLink() throws IOException {
+        Link current = link;
+        if (current != null && !current.closed) {
+            return current;
+        }
+        synchronized (this) {
+            current = link;
+            if (current == null || current.closed) {
+                Socket socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(address, CONNECT_TIMEOUT);
+                current = new Link(socket);
+                link = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Exchanges a request through this connection, the url is ignored
+     */
+    @Override
+    public InputStream exchange(URL url, byte[] request, int timeoutMillis)
+            throws IOException {
+        return new ByteArrayInputStream(exchange(request, timeoutMillis));
+    }
+
+    /**
+     * Returns true if the socket is currently open
+     *
+     * @return True if connected
+     */
+    public boolean isOpen() {
+        Link current = link;
+        return current != null && !current.closed;
+    }
+
+    @Override
+    public void close() {
+        Link current = link;
+        if (current != null) {
+            current.fail(new IOException("Connection closed"));
+        }
+    }
+
+    /**
+     * A call waiting for its response
+     */
+    private static final class PendingCall {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final ProtoCallback<InputStream> callback;
+        private int correlationId;
+        private volatile ScheduledFuture<?> timeout;
+        private ByteArrayOutputStream partial;
+        private byte[] response;
+        private IOException error;
+
+        PendingCall(ProtoCallback<InputStream> callback) {
+            this.callback = callback;
+        }
+
+        void complete(byte[] response) {
+            if (done.compareAndSet(false, true)) {
+                this.response = response;
+                latch.countDown();
+                if (callback != null) {
+                    cancelTimeout();
+                    callback.onSuccess(new ByteArrayInputStream(response));
+                }
+            }
+        }
+
+        /**
+         * Fails the call unless it's already done
+         *
+         * @return True if this failed the call
+         */
+        boolean fail(IOException error) {
+            if (done.compareAndSet(false, true)) {
+                this.error = error;
+                latch.countDown();
+                if (callback != null) {
+                    cancelTimeout();
+                    callback.onFailure(error);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> current = timeout;
+            if (current != null) {
+                current.cancel(false);
+            }
+        }
+
+    }
+
+    /**
+     * One socket and its reader thread
+     */
+    private final class Link
+            implements Runnable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Map<Integer, PendingCall> pending = new ConcurrentHashMap<Integer, PendingCall>();
+        private volatile boolean closed;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.
+                    getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.
+                    getOutputStream()));
+            Thread reader = new Thread(this, "protorpc-mux-" + address);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    int length = in.readInt();
+                    int correlationId = in.readInt();
+                    boolean last = (in.readByte() & ProtoFraming.FLAG_FINAL) != 0;
+                    if (length < 0 || length > ProtoFraming.MAX_FRAGMENT_SIZE) {
+                        throw new IOException("Invalid fragment length "
+                                + length);
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    PendingCall call = pending.get(correlationId);
+                    if (call == null) {
+                        /*
+                         * Caller gave up waiting
+                         */
+                        continue;
+                    }
+                    if (last) {
+                        pending.remove(correlationId);
+                    }
+                    if (last && call.partial == null) {
+                        call.complete(data);
+                        continue;
+                    }
+                    if (call.partial == null) {
+                        call.partial = new ByteArrayOutputStream(length * 2);
+                    }
+                    call.partial.write(data);
+                    if (last) {
+                        call.complete(call.partial.toByteArray());
+                    }
+                }
+            } catch (IOException ex) {
+                if (!closed) {
+                    LOG.log(Level.FINE, "Multiplexed connection to " + address
+                            + " failed", ex);
+                }
+                fail(ex);
+            }
+        }
+
+        void fail(IOException ex) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error closing socket", e);
+            }
+            for (PendingCall call : pending.values()) {
+                call.fail(ex);
+            }
+            pending.clear();
+        }
+
+    }
+
+}
@@ -0,0 +1,731 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.util.ProtoConfig;
+import com.baco.protorpc.util.ProtoStripedCounter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Http/1.1 transport keeping persistent connections to every server.
+ *
+ * Each endpoint owns at most a fixed number of sockets, callers wait for a
+ * free one when all of them are busy. Released sockets are reused most
+ * recently used first and a background task closes the ones idle for longer
+ * than the idle timeout. A request on a reused socket is sent again on a
+ * new socket when the write fails, or when the server closes or resets the
+ * connection before any response byte arrives, since the server may have
+ * closed the idle connection. Read timeouts are never retried.
+ *
+ * Https connections use the default HttpsURLConnection socket factory and
+ * check the server certificate against the host name. Endpoints the JDK
+ * ProxySelector sends through a proxy are served by a
+ * ProtoUrlConnectionTransport, and so should be services needing a custom
+ * HostnameVerifier or authentication.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoPooledHttpTransport
+        implements ProtoTransport, ProtoPooledHttpTransportMBean {
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int CONNECT_TIMEOUT = 30000;
+    private static final int MAX_LINE_LENGTH = 8192;
+    /* Bytes read on close to reach the end of a response */
+    private static final int DRAIN_LIMIT = 16384;
+    private static final AtomicInteger IDS = new AtomicInteger();
+    private static ProtoPooledHttpTransport defaultTransport;
+
+    private final int maxConnections;
+    private final long idleTimeoutMillis;
+    private final ConcurrentMap<String, Endpoint> endpoints
+            = new ConcurrentHashMap<String, Endpoint>();
+    private final ScheduledExecutorService reaper;
+    private final ProtoStripedCounter created = new ProtoStripedCounter();
+    private final ProtoStripedCounter reused = new ProtoStripedCounter();
+    private final ProtoStripedCounter reaped = new ProtoStripedCounter();
+    private final ProtoStripedCounter discarded = new ProtoStripedCounter();
+    private final ObjectName objectName;
+    private final ProtoUrlConnectionTransport proxied = new ProtoUrlConnectionTransport();
+    private volatile boolean closed;
+
+    /**
+     * Creates a transport sized from the system properties
+     */
+    public ProtoPooledHttpTransport() {
+        this(ProtoConfig.getHttpPoolSize(), ProtoConfig.getHttpPoolIdleMillis());
+    }
+
+    /**
+     * Creates a transport
+     *
+     * @param maxConnections Maximum open connections per endpoint
+     * @param idleTimeoutMillis Time an unused connection is kept open
+     */
+    public ProtoPooledHttpTransport(final int maxConnections,
+            final long idleTimeoutMillis) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.idleTimeoutMillis = Math.max(1, idleTimeoutMillis);
+        int id = IDS.incrementAndGet();
+        reaper = Executors.newSingleThreadScheduledExecutor(
+                new ReaperThreadFactory(id));
+        long period = Math.max(1000, this.idleTimeoutMillis / 2);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reapIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        objectName = register(id);
+    }
+
+    /**
+     * Returns the transport shared by proxies created without one
+     *
+     * @return The shared transport
+     */
+    public static synchronized ProtoPooledHttpTransport getDefault() {
+        if (defaultTransport == null || defaultTransport.closed) {
+            defaultTransport = new ProtoPooledHttpTransport();
+        }
+        return defaultTransport;
+    }
+
+    @Override
+    public InputStream exchange(URL url, byte[] request, int timeoutMillis)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Transport closed");
+        }
+        Endpoint endpoint = getEndpoint(url);
+        if (endpoint.proxied) {
+            return proxied.exchange(url, request, timeoutMillis);
+        }
+        for (int attempt = 0;; attempt++) {
+            PooledConnection conn = endpoint.lease(timeoutMillis);
+            try {
+                conn.socket.setSoTimeout(timeoutMillis);
+                conn.writeRequest(url, endpoint, request);
+                return conn.readResponse(url, endpoint);
+            } catch (IOException ex) {
+                endpoint.release(conn, false);
+                if (attempt == 0 && isStale(conn, ex)) {
+                    /*
+                     * The server closed it, likely the other idle ones too
+                     */
+                    LOG.log(Level.FINE, "Stale connection to {0}, retrying",
+                            endpoint.key);
+                    endpoint.closeIdle();
+                    continue;
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * True if a request failed because the server had closed a reused
+     * connection, so it never ran. A request fully written may still be
+     * running when the read times out, it's never sent twice.
+     */
+    private static boolean isStale(PooledConnection conn, IOException ex) {
+        if (conn.uses == 0 || conn.responseStarted
+                || ex instanceof SocketTimeoutException) {
+            return false;
+        }
+        return !conn.requestWritten || ex instanceof EOFException
+                || ex instanceof SocketException;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        reaper.shutdownNow();
+        for (Endpoint endpoint : endpoints.values()) {
+            PooledConnection conn;
+            while ((conn = endpoint.idle.pollFirst()) != null) {
+                conn.closeQuietly();
+            }
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        objectName);
+            } catch (JMException ex) {
+                LOG.log(Level.FINE, "Couldn't unregister MBean " + objectName,
+                        ex);
+            }
+        }
+    }
+
+    @Override
+    public int getMaxConnectionsPerEndpoint() {
+        return maxConnections;
+    }
+
+    @Override
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    @Override
+    public int getEndpointCount() {
+        return endpoints.size();
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        int total = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            total += endpoint.leased.get();
+        }
+        return total;
+    }
+
+    @Override
+    public int getIdleConnections() {
+        int total = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            total += endpoint.idle.size();
+        }
+        return total;
+    }
+
+    @Override
+    public long getCreatedConnections() {
+        return created.sum();
+    }
+
+    @Override
+    public long getReusedConnections() {
+        return reused.sum();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return reaped.sum();
+    }
+
+    @Override
+    public long getDiscardedConnections() {
+        return discarded.sum();
+    }
+
+    private Endpoint getEndpoint(URL url) throws IOException {
+        if (url == null) {
+            throw new IOException("No service url");
+        }
+        boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        if (!secure && !"http".equalsIgnoreCase(url.getProtocol())) {
+            throw new IOException("Unsupported protocol " + url.getProtocol());
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = url.getProtocol().toLowerCase() + "://" + url.getHost()
+                + ":" + port;
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            endpoint = new Endpoint(key, url.getHost(), port, secure,
+                    usesProxy(url));
+            Endpoint existing = endpoints.putIfAbsent(key, endpoint);
+            if (existing != null) {
+                endpoint = existing;
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * True if the JDK proxy settings route the url through a proxy
+     */
+    private static boolean usesProxy(URL url) {
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return false;
+        }
+        try {
+            List<Proxy> proxies = selector.select(url.toURI());
+            return proxies != null && !proxies.isEmpty()
+                    && proxies.get(0).type() != Proxy.Type.DIRECT;
+        } catch (URISyntaxException ex) {
+            return false;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes connections unused for longer than the idle timeout
+     */
+    private void reapIdle() {
+        long limit = System.currentTimeMillis() - idleTimeoutMillis;
+        for (Endpoint endpoint : endpoints.values()) {
+            for (PooledConnection conn : endpoint.idle) {
+                if (conn.lastUsed < limit && endpoint.idle.remove(conn)) {
+                    conn.closeQuietly();
+                    reaped.increment();
+                }
+            }
+        }
+    }
+
+    private ObjectName register(int id) {
+        try {
+            ObjectName name = new ObjectName(ProtoConfig.JMX_DOMAIN
+                    + ":type=HttpTransport,id=" + id);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    name);
+            return name;
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Couldn't register http transport MBean",
+                    ex);
+            return null;
+        }
+    }
+
+    /**
+     * Connections to a single scheme, host and port
+     */
+    private final class Endpoint {
+
+        private final String key;
+        private final String host;
+        private final int port;
+        private final boolean secure;
+        /* Sent through the JDK proxy settings instead of the pool */
+        private final boolean proxied;
+        private final Semaphore permits;
+        private final ConcurrentLinkedDeque<PooledConnection> idle
+                = new ConcurrentLinkedDeque<PooledConnection>();
+        private final AtomicInteger leased = new AtomicInteger();
+
+        private Endpoint(String key, String host, int port, boolean secure,
+                boolean proxied) {
+            this.key = key;
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+            this.proxied = proxied;
+            this.permits = new Semaphore(maxConnections);
+        }
+
+        /**
+         * Takes an idle connection or opens a new one
+         */
+        private PooledConnection lease(int timeoutMillis) throws IOException {
+            try {
+                if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException(
+                            "No free connection to " + key);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting a connection to " + key);
+            }
+            leased.incrementAndGet();
+            try {
+                PooledConnection conn;
+                long limit = System.currentTimeMillis() - idleTimeoutMillis;
+                while ((conn = idle.pollFirst()) != null) {
+                    if (conn.lastUsed >= limit && !conn.socket.isClosed()) {
+                        reused.increment();
+                        return conn;
+                    }
+                    conn.closeQuietly();
+                    reaped.increment();
+                }
+                conn = new PooledConnection(connect());
+                created.increment();
+                return conn;
+            } catch (IOException ex) {
+                leased.decrementAndGet();
+                permits.release();
+                throw ex;
+            }
+        }
+
+        /**
+         * Returns a connection to the pool or closes it
+         */
+        private void release(PooledConnection conn, boolean reusable) {
+            if (reusable && !closed) {
+                conn.uses++;
+                conn.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(conn);
+            } else {
+                conn.closeQuietly();
+                discarded.increment();
+            }
+            leased.decrementAndGet();
+            permits.release();
+        }
+
+        private void closeIdle() {
+            PooledConnection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                conn.closeQuietly();
+                discarded.increment();
+            }
+        }
+
+        private Socket connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(host, port),
+                        CONNECT_TIMEOUT);
+                if (secure) {
+                    SSLSocket ssl = (SSLSocket) HttpsURLConnection.
+                            getDefaultSSLSocketFactory().createSocket(socket,
+                                    host, port, true);
+                    /* The certificate must match the host name */
+                    SSLParameters params = ssl.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    ssl.setSSLParameters(params);
+                    ssl.startHandshake();
+                    return ssl;
+                }
+                return socket;
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * A socket and the state of its current exchange
+     */
+    private static final class PooledConnection {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private volatile long lastUsed;
+        private int uses;
+        private boolean requestWritten;
+        private boolean responseStarted;
+
+        private PooledConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private void writeRequest(URL url, Endpoint endpoint, byte[] request)
+                throws IOException {
+            requestWritten = false;
+            responseStarted = false;
+            String path = url.getFile();
+            StringBuilder head = new StringBuilder(160)
+                    .append("POST ").append(path.isEmpty() ? "/" : path)
+                    .append(" HTTP/1.1\r\nHost: ").append(endpoint.host);
+            if (url.getPort() != -1) {
+                head.append(':').append(endpoint.port);
+            }
+            head.append("\r\nContent-Type: application/octet-stream")
+                    .append("\r\nContent-Length: ").append(request.length)
+                    .append("\r\nConnection: keep-alive\r\n\r\n");
+            out.write(head.toString().getBytes(ASCII));
+            out.write(request);
+            out.flush();
+            requestWritten = true;
+        }
+
+        /**
+         * Reads the status line and headers and returns the body stream
+         */
+        private InputStream readResponse(URL url, Endpoint endpoint)
+                throws IOException {
+            for (;;) {
+                String status = readLine();
+                if (status == null) {
+                    throw new EOFException("Connection closed by server");
+                }
+                responseStarted = true;
+                String[] parts = status.split(" ", 3);
+                int code;
+                try {
+                    code = Integer.parseInt(parts[1]);
+                } catch (RuntimeException ex) {
+                    throw new IOException("Malformed status line: " + status);
+                }
+                long contentLength = -1;
+                boolean chunked = false;
+                String connection = null;
+                String line;
+                while ((line = readLine()) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon <= 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        contentLength = Long.parseLong(value);
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        chunked = value.toLowerCase().contains("chunked");
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        connection = value;
+                    }
+                }
+                if (line == null) {
+                    throw new EOFException("Connection closed by server");
+                }
+                if (code == 100) {
+                    continue;
+                }
+                if (code != 200) {
+                    throw new IOException("Server returned HTTP response code: "
+                            + code + " for URL: " + url);
+                }
+                boolean keepAlive = status.startsWith("HTTP/1.1")
+                        ? !"close".equalsIgnoreCase(connection)
+                        : "keep-alive".equalsIgnoreCase(connection);
+                if (chunked) {
+                    return new ResponseBody(this, endpoint, -1, true, keepAlive);
+                }
+                if (contentLength >= 0) {
+                    return new ResponseBody(this, endpoint, contentLength,
+                            false, keepAlive);
+                }
+                return new ResponseBody(this, endpoint, -1, false, false);
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder(64);
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Http header line too long");
+                }
+                line.append((char) b);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Error closing pooled connection", ex);
+            }
+        }
+    }
+
+    /**
+     * Response body delimited by its length, by chunks or by the end of the
+     * connection. Closing it returns the connection to the pool when the
+     * whole body was read.
+     */
+    private static final class ResponseBody
+            extends InputStream {
+
+        private final PooledConnection conn;
+        private final Endpoint endpoint;
+        private final boolean chunked;
+        private final boolean keepAlive;
+        /* Bytes left in the body or in the current chunk, -1 before a chunk */
+        private long remaining;
+        private boolean finished;
+        private boolean released;
+
+        private ResponseBody(PooledConnection conn, Endpoint endpoint,
+                long length, boolean chunked, boolean keepAlive) {
+            this.conn = conn;
+            this.endpoint = endpoint;
+            this.chunked = chunked;
+            this.keepAlive = keepAlive;
+            this.remaining = length;
+            this.finished = length == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (released) {
+                throw new IOException("Stream closed");
+            }
+            if (finished) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (chunked && remaining <= 0 && !nextChunk()) {
+                return -1;
+            }
+            int toRead = remaining >= 0 ? (int) Math.min(len, remaining) : len;
+            int read = conn.in.read(b, off, toRead);
+            if (read == -1) {
+                if (remaining >= 0) {
+                    throw new EOFException("Response body truncated");
+                }
+                finished = true;
+                return -1;
+            }
+            if (remaining >= 0) {
+                remaining -= read;
+                if (!chunked && remaining == 0) {
+                    finished = true;
+                }
+            }
+            return read;
+        }
+
+        /**
+         * Reads the next chunk size, false after the last chunk
+         */
+        private boolean nextChunk() throws IOException {
+            if (remaining == 0) {
+                /* CRLF closing the previous chunk */
+                conn.readLine();
+            }
+            String line = conn.readLine();
+            if (line == null) {
+                throw new EOFException("Response body truncated");
+            }
+            int extension = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((extension >= 0
+                        ? line.substring(0, extension) : line).trim(), 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed chunk size: " + line);
+            }
+            if (remaining == 0) {
+                /* Skip trailers */
+                String trailer;
+                while ((trailer = conn.readLine()) != null
+                        && !trailer.isEmpty()) {
+                }
+                finished = true;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) {
+                return;
+            }
+            if (!finished && keepAlive) {
+                drain();
+            }
+            released = true;
+            endpoint.release(conn, finished && keepAlive);
+        }
+
+        /**
+         * Reads what is left of a short body so the connection can be reused
+         */
+        private void drain() {
+            byte[] skip = new byte[1024];
+            int drained = 0;
+            try {
+                int read;
+                while (!finished && drained < DRAIN_LIMIT
+                        && (read = read(skip, 0, skip.length)) != -1) {
+                    drained += read;
+                }
+            } catch (IOException ex) {
+                finished = false;
+            }
+        }
+    }
+
+    private static final class ReaperThreadFactory
+            implements ThreadFactory {
+
+        private final int id;
+
+        private ReaperThreadFactory(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "protorpc-http-reaper-" + id);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
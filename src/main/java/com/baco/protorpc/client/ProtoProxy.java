@@ -31,17 +31,28 @@
 package com.baco.protorpc.client;
 
 import com.baco.protorpc.util.ProtoBufferPool;
+import com.baco.protorpc.api.ProtoContext;
 import com.baco.protorpc.api.ProtoSession;
+import com.baco.protorpc.api.ProtoStream;
+import com.baco.protorpc.exceptions.DeadlineExceededException;
+import com.baco.protorpc.exceptions.ProtoException;
 import com.baco.protorpc.exceptions.ProtoTransportException;
 import com.baco.protorpc.exceptions.ServerResponseNullException;
+import com.baco.protorpc.exceptions.StaleManifestException;
+import com.baco.protorpc.util.BatchRequestEnvelope;
+import com.baco.protorpc.util.BatchResponseEnvelope;
 import com.baco.protorpc.util.ProtoConfig;
-import com.baco.protorpc.util.ProtoEncoders;
 import com.baco.protorpc.util.ProtoHandshake;
+import com.baco.protorpc.util.ProtoPacketInputStream;
+import com.baco.protorpc.util.ProtoStreamSupport;
+import com.baco.protorpc.util.ProtoStripedCounter;
 import com.baco.protorpc.util.ProtoProxySessionRetriever;
+import com.baco.protorpc.util.ProtoServiceManifest;
 import com.baco.protorpc.util.ProtoSessionImpl;
 import com.baco.protorpc.util.RequestEnvelope;
 import com.baco.protorpc.util.ResponseEnvelope;
 import io.protostuff.Input;
+import io.protostuff.GraphIOUtil;
 import io.protostuff.JsonIOUtil;
 import io.protostuff.LinkedBuffer;
 import io.protostuff.Output;
@@ -53,22 +64,33 @@ import io.protostuff.runtime.DefaultIdStrategy;
 import io.protostuff.runtime.Delegate;
 import io.protostuff.runtime.RuntimeEnv;
 import io.protostuff.runtime.RuntimeSchema;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
-import java.net.HttpURLConnection;
+import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.iq80.snappy.SnappyInputStream;
 import org.iq80.snappy.SnappyOutputStream;
 
@@ -86,15 +108,35 @@ public class ProtoProxy
     private static final Long serialVersionUID = 1l;
 
     private static final Integer PROTO_REQUEST_TIMEOUT = 500000;
+    /* Time before asking again a server that didn't send its manifest */
+    private static final long MANIFEST_RETRY_MILLIS = 60000;
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
 
     private URL url;
+    private transient ProtoTransport transport;
     private boolean isSecure = false;
     private ProtoRemoteExceptionHandler exHandler;
     private ProtoProxySessionRetriever sesRetriever;
-    private final Map<Method, String> methodMap = new ConcurrentHashMap<Method, String>();
+    private transient volatile ProtoDispatchTable dispatch;
+    private final ConcurrentMap<RequestKey, Flight> flights = new ConcurrentHashMap<RequestKey, Flight>();
+    private final ProtoStripedCounter coalescedCalls = new ProtoStripedCounter();
+    private volatile ProtoMicroBatcher microBatcher;
+    private volatile ProtoHedger hedger;
+    private volatile ProtoCallBudget retryBudget;
+    private volatile int maxRetries;
+    private final ProtoStripedCounter retries = new ProtoStripedCounter();
+    private final ProtoStripedCounter retriesDenied = new ProtoStripedCounter();
+    private volatile boolean manifestEnabled;
+    private volatile long manifestRetryAt;
+    private final AtomicBoolean negotiating = new AtomicBoolean();
+    private volatile ProtoSessionTracker sessionTracker;
+    private volatile boolean graphEnabled;
     private final Schema<RequestEnvelope> schema;
     private final Schema<ResponseEnvelope> schemaResp;
     private final Schema<ProtoHandshake> schemaProto;
+    private final Schema<BatchRequestEnvelope> schemaBatch;
+    private final Schema<BatchResponseEnvelope> schemaBatchResp;
 
     protected ProtoProxy(final URL url, final boolean isSecure,
             final ProtoRemoteExceptionHandler exHandler,
@@ -115,6 +157,22 @@ public class ProtoProxy
                 RequestEnvelope.class);
         schemaResp = RuntimeSchema.getSchema(
                 ResponseEnvelope.class);
+        schemaBatch = RuntimeSchema.getSchema(BatchRequestEnvelope.class);
+        schemaBatchResp = RuntimeSchema.getSchema(BatchResponseEnvelope.class);
+    }
+
+    protected ProtoProxy(final URL url, final ProtoTransport transport,
+            final ProtoRemoteExceptionHandler exHandler,
+            final ProtoProxySessionRetriever sesRetriever) {
+        this(url, url != null && "https".equalsIgnoreCase(url.getProtocol()),
+                exHandler, sesRetriever);
+        this.transport = transport;
+    }
+
+    protected ProtoProxy(final ProtoMultiplexedConnection connection,
+            final ProtoRemoteExceptionHandler exHandler,
+            final ProtoProxySessionRetriever sesRetriever) {
+        this((URL) null, connection, exHandler, sesRetriever);
     }
 
     public URL getURL() {
@@ -139,205 +197,1143 @@ public class ProtoProxy
         this.isSecure = secure;
     }
 
+    /**
+     * Returns the transport carrying the requests, the shared pooled http
+     * transport when none was set
+     *
+     * @return The transport
+     */
+    public ProtoTransport getTransport() {
+        ProtoTransport current = transport;
+        return current != null ? current : ProtoPooledHttpTransport.
+                getDefault();
+    }
+
+    public final void setTransport(ProtoTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Enables or disables sharing one request between concurrent identical
+     * calls of a method, overriding the ProtoCoalesced annotation
+     *
+     * @param method The service interface method
+     * @param coalesced True to share requests
+     */
+    public void setCoalesced(Method method, boolean coalesced) {
+        dispatchFor(method).get(method).setCoalesced(coalesced);
+    }
+
+    /**
+     * Returns the number of calls answered by a request already in flight
+     *
+     * @return The coalesced call count
+     */
+    public long getCoalescedCalls() {
+        return coalescedCalls.sum();
+    }
+
+    /**
+     * Sets the result cache of a method, overriding the
+     * ProtoClientCacheable annotation
+     *
+     * @param method The service interface method
+     * @param cache The cache, null to disable caching
+     */
+    public void setClientCache(Method method, ProtoClientCache cache) {
+        dispatchFor(method).get(method).setCache(cache);
+    }
+
+    /**
+     * Returns the result cache of a method
+     *
+     * @param method The service interface method
+     * @return The cache or null if the method isn't cached
+     */
+    public ProtoClientCache getClientCache(Method method) {
+        return dispatchFor(method).get(method).getCache();
+    }
+
+    /**
+     * Removes the cached results of all methods
+     */
+    public void invalidateClientCaches() {
+        ProtoDispatchTable current = dispatch;
+        if (current == null) {
+            return;
+        }
+        for (ProtoDispatchTable.Entry entry : current.entries()) {
+            ProtoClientCache cache = entry.getCache();
+            if (cache != null) {
+                cache.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Builds the dispatch table of the service interface, computing method
+     * identifiers and settings before the first call. Proxies not bound to
+     * a service build it on their first call.
+     *
+     * @param service The service interface
+     */
+    void setService(Class<?> service) {
+        dispatch = new ProtoDispatchTable(service);
+    }
+
+    private ProtoDispatchTable dispatchFor(Method method) {
+        ProtoDispatchTable current = dispatch;
+        if (current == null) {
+            synchronized (this) {
+                current = dispatch;
+                if (current == null) {
+                    current = new ProtoDispatchTable(method.getDeclaringClass());
+                    dispatch = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Sends methods by the number the server gives them in its manifest
+     * instead of their hash. The first call fetches the manifest, calls go
+     * back to hashes while it's missing or after the server numbering
+     * changes.
+     *
+     * @param enabled True to use the server manifest
+     */
+    public void setManifest(boolean enabled) {
+        manifestEnabled = enabled;
+        manifestRetryAt = 0;
+        if (!enabled) {
+            ProtoDispatchTable current = dispatch;
+            if (current != null) {
+                current.dropManifest();
+            }
+        }
+    }
+
+    /**
+     * Sends the session once and then a token the server gives for it, with
+     * the changed keys when the session changes. Calls micro-batched or with
+     * a streamed result keep sending the full session. Tokens are only
+     * valid on the server that issued them, so proxies spreading calls over
+     * several servers shouldn't use them.
+     *
+     * @param enabled True to use session tokens
+     */
+    public void setSessionTokens(boolean enabled) {
+        sessionTracker = enabled ? new ProtoSessionTracker() : null;
+    }
+
+    /**
+     * Returns the entry of a method, fetching the server manifest first if
+     * it's enabled and missing
+     */
+    private ProtoDispatchTable.Entry entryFor(Method method) {
+        ProtoDispatchTable table = dispatchFor(method);
+        if (manifestEnabled && table.getManifestVersion() == 0
+                && System.currentTimeMillis() >= manifestRetryAt) {
+            negotiate(table);
+        }
+        return table.get(method);
+    }
+
+    /**
+     * Fetches the server manifest, one thread asks while others keep
+     * sending hashes
+     */
+    private void negotiate(ProtoDispatchTable table) {
+        if (!negotiating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ResponseEnvelope response = exchange(newHandshake(false, false,
+                    false, null), new RequestEnvelope(
+                            ProtoServiceManifest.MANIFEST_METHOD,
+                            retrieveSession(), null), schema, schemaResp);
+            if (response != null && response.getStatus() == 0
+                    && response.getResult() instanceof ProtoServiceManifest) {
+                table.applyManifest((ProtoServiceManifest) response.
+                        getResult());
+                return;
+            }
+            LOG.log(Level.FINE, "Server at {0} didn''t send its manifest", url);
+        } catch (ProtoTransportException ex) {
+            LOG.log(Level.FINE, "Couldn't fetch service manifest", ex);
+        } finally {
+            negotiating.set(false);
+        }
+        manifestRetryAt = System.currentTimeMillis() + MANIFEST_RETRY_MILLIS;
+    }
+
+    /**
+     * Goes back to method hashes until the manifest is fetched again
+     */
+    private void dropManifest() {
+        ProtoDispatchTable current = dispatch;
+        if (current != null) {
+            current.dropManifest();
+        }
+        manifestRetryAt = 0;
+    }
+
+    private static boolean isStale(RequestEnvelope request,
+            ResponseEnvelope response) {
+        return request.getMethodId() != null && response != null
+                && response.getStatus() > 0
+                && response.getThrowable() instanceof StaleManifestException;
+    }
+
+    /**
+     * Gathers calls made by different threads within a window into a single
+     * batch request. Methods with a client cache, coalesced or hedged are
+     * sent on their own.
+     *
+     * @param windowMicros Time the first call of a batch waits for others,
+     * 0 or less disables micro batching
+     * @param maxBatchSize Calls that send the batch right away
+     */
+    public void setMicroBatching(long windowMicros, int maxBatchSize) {
+        microBatcher = windowMicros > 0 ? new ProtoMicroBatcher(this,
+                windowMicros, maxBatchSize, PROTO_REQUEST_TIMEOUT) : null;
+    }
+
+    /**
+     * Returns the micro batcher
+     *
+     * @return The batcher or null if micro batching is disabled
+     */
+    public ProtoMicroBatcher getMicroBatcher() {
+        return microBatcher;
+    }
+
+    /**
+     * Sends a second copy of idempotent calls not answered within a
+     * percentile of the recent latencies, to another endpoint when the
+     * transport is a ProtoBalancedTransport
+     *
+     * @param percentile Latency percentile after which calls are hedged, 0
+     * or less disables hedging
+     * @param budgetPercent Maximum share of the calls that are hedged
+     */
+    public void setHedging(int percentile, int budgetPercent) {
+        hedger = percentile > 0 ? new ProtoHedger(this, percentile,
+                budgetPercent) : null;
+    }
+
+    /**
+     * Returns the hedger
+     *
+     * @return The hedger or null if hedging is disabled
+     */
+    public ProtoHedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * Retries calls failed by the transport: idempotent ones after any
+     * failure, the others only when the request wasn't sent. Every call
+     * earns a share of a retry given by the budget so retries can't add
+     * more than that share of load to a failing server.
+     *
+     * @param maxRetries Retries of a single call, 0 disables retries
+     * @param budgetPercent Maximum share of the calls that are retried
+     */
+    public void setRetries(int maxRetries, int budgetPercent) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryBudget = maxRetries > 0 ? new ProtoCallBudget(budgetPercent)
+                : null;
+    }
+
+    /**
+     * Returns the number of calls sent again after a transport failure
+     *
+     * @return The retry count
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * Returns the number of retries not made because the budget ran out
+     *
+     * @return The denied retry count
+     */
+    public long getRetriesDenied() {
+        return retriesDenied.sum();
+    }
+
+    /**
+     * Marks a method as safe to send more than once, overriding the
+     * ProtoIdempotent annotation
+     *
+     * @param method The service interface method
+     * @param idempotent True if the method is idempotent
+     */
+    public void setIdempotent(Method method, boolean idempotent) {
+        dispatchFor(method).get(method).setIdempotent(idempotent);
+    }
+
+    /**
+     * Sets the time calls to a method wait for their response, overriding
+     * the ProtoDeadline annotation
+     *
+     * @param method The service interface method
+     * @param deadlineMillis The timeout in milliseconds, 0 for none
+     */
+    public void setDeadline(Method method, long deadlineMillis) {
+        dispatchFor(method).get(method).setDeadlineMillis(deadlineMillis);
+    }
+
+    /**
+     * Sends the calls of a method as object graphs, overriding the
+     * ProtoGraph annotation
+     *
+     * @param method The service interface method
+     * @param graph True to keep shared references of the method payloads
+     */
+    public void setGraph(Method method, boolean graph) {
+        dispatchFor(method).get(method).setGraph(graph);
+    }
+
+    /**
+     * Sends the calls of every method as object graphs: an instance
+     * referenced more than once is written once and arrives as a single
+     * shared instance, cyclic payloads can be sent. Only the binary
+     * encoding keeps references, calls with a streamed result are sent as
+     * usual.
+     *
+     * @param enabled True to send all calls as graphs
+     */
+    public void setGraph(boolean enabled) {
+        this.graphEnabled = enabled;
+    }
+
+    private boolean isGraph(ProtoDispatchTable.Entry entry) {
+        return graphEnabled || entry.isGraph();
+    }
+
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        methodMap.put(method, ProtoEncoders.getMethodNameAsSha1(method));
-        LinkedBuffer buffer = null;
+        ProtoDispatchTable.Entry entry = entryFor(method);
+        ProtoContext context = contextFor(entry);
+        if (context != null && context.isCancelled()) {
+            return fail(deadlineExceeded(method, context, null));
+        }
+        RequestEnvelope request;
         try {
-            ProtoHandshake ph = new ProtoHandshake(ProtoConfig.
-                    getSerializationMode(), ProtoConfig.isCompressionEnabled(),
-                    ProtoConfig.isJSONNumerical());
-
-            buffer = ProtoBufferPool.takeBuffer();
-            /*
-             * Initialize current buffer
-             */
-            buffer.clear();
-            String uniqueName = methodMap.get(method);
-            InputStream is;
-            OutputStream os;
-            /*
-             * Http connection
-             */
-            URLConnection connection;
+            request = newRequest(entry, args);
+        } catch (ProtoTransportException pex) {
+            return fail(pex);
+        }
+        ProtoHandshake ph = newHandshake(false, entry.isStreamType(),
+                isGraph(entry), context);
+        if (ph.getStreamed()) {
+            return invokeStreamed(ph, request, entry.getReturnType());
+        }
+        ProtoCallBudget budget = retryBudget;
+        if (budget != null) {
+            budget.earn();
+        }
+        ResponseEnvelope response;
+        for (int attempt = 0;;) {
             try {
-                if (isSecure) {
-                    connection = (HttpsURLConnection) url.openConnection();
-                    ((HttpsURLConnection) connection).setRequestMethod("POST");
-                } else {
-                    connection = (HttpURLConnection) url.openConnection();
-                    ((HttpURLConnection) connection).setRequestMethod("POST");
+                response = exchangeCall(entry, ph, request);
+                if (isStale(request, response)) {
+                    /* The server numbering changed, send the call by hash */
+                    dropManifest();
+                } else if (!isStaleSession(request, response)) {
+                    break;
                 }
-            } catch (IOException ex) {
-                ProtoTransportException pex = new ProtoTransportException(
-                        "I/O error while open connection.", ex);
-                if (exHandler != null) {
-                    exHandler.processException(pex);
-                } else {
-                    throw pex;
+                request = newRequest(entry, args);
+            } catch (ProtoTransportException pex) {
+                if (context != null && context.isCancelled()) {
+                    return fail(deadlineExceeded(method, context, pex));
                 }
-                return null;
+                if (!shouldRetry(entry, pex, attempt++, budget)) {
+                    return fail(pex);
+                }
+            } catch (ProtoException pex) {
+                return fail(pex);
             }
-            /**
-             * Retrieve session
-             */
-            ProtoSession session = null;
-            if (sesRetriever != null && sesRetriever.getSession() != null) {
-                session = sesRetriever.getSession();
-            } else {
-                session = new ProtoSessionImpl();
+            /* Sent again with the time left */
+            ph = newHandshake(false, false, ph.getGraph(), context);
+        }
+        adoptSession(request, response);
+        return toResult(response, entry);
+    }
+
+    /**
+     * Context bounding a call, null for calls without deadline made
+     * outside any context
+     */
+    private ProtoContext contextFor(ProtoDispatchTable.Entry entry) {
+        long deadlineMillis = entry.getDeadlineMillis();
+        if (deadlineMillis <= 0 && ProtoContext.current() == null) {
+            return null;
+        }
+        return ProtoContext.withTimeout(deadlineMillis);
+    }
+
+    private static DeadlineExceededException deadlineExceeded(Method method,
+            ProtoContext context, Throwable cause) {
+        return new DeadlineExceededException(new StringBuilder("'")
+                .append(method.getName()).append("' ")
+                .append(context.isExpired() ? "deadline passed"
+                        : "call cancelled")
+                .toString(), cause);
+    }
+
+    private ResponseEnvelope exchangeCall(ProtoDispatchTable.Entry entry,
+            ProtoHandshake ph, RequestEnvelope request) throws ProtoException {
+        ProtoClientCache cache = entry.getCache();
+        boolean coalesced = entry.isCoalesced();
+        boolean hedged = hedger != null && entry.isIdempotent();
+        ProtoMicroBatcher batcher = microBatcher;
+        if (cache != null || coalesced || hedged) {
+            return exchangeEncoded(ph, request, coalesced, hedged, cache);
+        } else if (batcher != null && ph.getTimeoutMillis() == 0
+                && !ph.getGraph()) {
+            /* Batches don't carry the deadline of each call, nor graphs */
+            return batcher.call(request);
+        }
+        return exchange(ph, request, schema, schemaResp);
+    }
+
+    /**
+     * Idempotent calls are retried after any transport failure, other
+     * calls only when the request wasn't sent, as long as the budget allows
+     */
+    private boolean shouldRetry(ProtoDispatchTable.Entry entry,
+            ProtoTransportException pex, int attempt, ProtoCallBudget budget) {
+        if (budget == null || attempt >= maxRetries) {
+            return false;
+        }
+        if (!(pex instanceof ConnectFailureException
+                || pex instanceof ProtoCircuitOpenException)
+                && !entry.isIdempotent()) {
+            return false;
+        }
+        if (!budget.spend()) {
+            retriesDenied.increment();
+            return false;
+        }
+        retries.increment();
+        return true;
+    }
+
+    /**
+     * Exchanges an encoded request looking first in the result cache and
+     * sharing the request with identical calls in flight when coalesced.
+     * Response bytes are shared and every caller decodes its own copy of
+     * the result.
+     */
+    private ResponseEnvelope exchangeEncoded(ProtoHandshake ph,
+            RequestEnvelope request, boolean coalesced, boolean hedged,
+            ProtoClientCache cache) throws ProtoTransportException {
+        /*
+         * Cached and shared requests are sent without the deadline so they
+         * match whatever time is left, the caller still stops waiting
+         */
+        int timeoutMillis = timeoutFor(ph);
+        byte[] encoded = encode(cache != null || coalesced
+                ? newHandshake(false, false, ph.getGraph(), null) : ph,
+                request, schema);
+        byte[] responseBytes = cache != null ? cache.get(encoded) : null;
+        if (responseBytes != null) {
+            return decode(ph, responseBytes);
+        }
+        responseBytes = coalesced ? fetchCoalesced(encoded, hedged,
+                timeoutMillis) : fetch(encoded, hedged, timeoutMillis);
+        ResponseEnvelope response = decode(ph, responseBytes);
+        if (cache != null && response != null && response.getStatus() == 0) {
+            cache.put(encoded, responseBytes);
+        }
+        return response;
+    }
+
+    /**
+     * Fetches a response unless an identical request is in flight, in that
+     * case waits for its response
+     */
+    private byte[] fetchCoalesced(byte[] encoded, boolean hedged,
+            int timeoutMillis) throws ProtoTransportException {
+        RequestKey key = new RequestKey(encoded);
+        Flight flight = new Flight();
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalescedCalls.increment();
+            return leader.await(timeoutMillis);
+        }
+        boolean completed = false;
+        try {
+            byte[] responseBytes = fetch(encoded, hedged, timeoutMillis);
+            flight.complete(responseBytes);
+            completed = true;
+            return responseBytes;
+        } catch (ProtoTransportException pex) {
+            flight.fail(pex);
+            completed = true;
+            throw pex;
+        } finally {
+            flights.remove(key, flight);
+            if (!completed) {
+                /* The leader failed unexpectedly, waiters must not hang */
+                flight.fail(new ProtoTransportException(
+                        "Coalesced call failed.", null));
             }
-            /*
-             * Configure connection
-             */
-            connection.setDoOutput(true);
-            connection.setDoInput(true);
-            connection.setReadTimeout(PROTO_REQUEST_TIMEOUT);
-            try {
-                connection.connect();
-            } catch (SocketTimeoutException ex) {
-                ProtoTransportException pex = new ProtoTransportException(
-                        "Network error", ex);
-                if (exHandler != null) {
-                    exHandler.processException(pex);
-                } else {
-                    throw pex;
+        }
+    }
+
+    private byte[] fetch(byte[] encoded, boolean hedged, int timeoutMillis)
+            throws ProtoTransportException {
+        ProtoHedger current = hedged ? hedger : null;
+        try {
+            if (current != null) {
+                return current.fetch(encoded, timeoutMillis);
+            }
+            return readFully(getTransport().exchange(url, encoded,
+                    timeoutMillis));
+        } catch (IOException ex) {
+            throw transportFailure(ex);
+        }
+    }
+
+    private ResponseEnvelope decode(ProtoHandshake ph, byte[] responseBytes)
+            throws ProtoTransportException {
+        LinkedBuffer buffer = takeBuffer();
+        try {
+            return readResponse(ph, schemaResp, new ByteArrayInputStream(
+                    responseBytes), buffer);
+        } catch (IOException ex) {
+            throw new ProtoTransportException(
+                    "Couldn't read server response, connection failed.", ex);
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                bos.write(chunk, 0, read);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Invokes a method completing a future instead of blocking. Transports
+     * able to wait without a thread complete the call from their callback,
+     * decoding on the executor; other transports and streamed results run
+     * the blocking call on the executor.
+     */
+    void invokeAsync(final Method method, final Object[] args,
+            final ProtoCallFuture<Object> future, final Executor executor,
+            final long timeoutMillis) {
+        final ProtoDispatchTable.Entry entry = entryFor(method);
+        final ProtoContext context = contextFor(entry);
+        if (context != null && context.isCancelled()) {
+            failAsync(future, deadlineExceeded(method, context, null));
+            return;
+        }
+        final long remainingMillis = context != null ? context.
+                getRemainingMillis() : Long.MAX_VALUE;
+        if (timeoutMillis > 0 && timeoutMillis <= remainingMillis) {
+            future.expireAfter(timeoutMillis, new Runnable() {
+                @Override
+                public void run() {
+                    failAsync(future, new ProtoTransportException("Call to "
+                            + method.getName() + " timed out after "
+                            + timeoutMillis + "ms", new TimeoutException()));
                 }
-                return null;
-            } catch (IOException ex) {
-                ProtoTransportException pex = new ProtoTransportException(
-                        "Couldn't connect to remote host, connection timed out",
-                        ex);
-                if (exHandler != null) {
-                    exHandler.processException(pex);
-                } else {
-                    throw pex;
+            });
+        } else if (remainingMillis != Long.MAX_VALUE) {
+            future.expireAfter(remainingMillis, new Runnable() {
+                @Override
+                public void run() {
+                    failAsync(future, deadlineExceeded(method, context,
+                            new TimeoutException()));
+                }
+            });
+        }
+        final Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                /* The call keeps the deadline it had when submitted */
+                ProtoContext previous = ProtoContext.attach(context);
+                try {
+                    future.complete(invoke(null, method, args));
+                } catch (Throwable ex) {
+                    future.fail(ex);
+                } finally {
+                    ProtoContext.detach(previous);
                 }
-                return null;
             }
-            /*
-             * Request prepare
-             */
-            RequestEnvelope request = new RequestEnvelope(uniqueName, session,
-                    (args != null && args.length > 0) ? args : null);
+        };
+        ProtoTransport current = getTransport();
+        if (!(current instanceof ProtoAsyncTransport)
+                || entry.isStreamType()) {
+            FutureTask<Object> task = new FutureTask<Object>(blocking, null);
+            future.setTask(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                future.fail(ex);
+            }
+            return;
+        }
+        final ProtoHandshake ph = newHandshake(false, false, isGraph(entry),
+                context);
+        final RequestEnvelope envelope;
+        byte[] request;
+        try {
+            envelope = newRequest(entry, args);
+            request = encode(ph, envelope, schema);
+        } catch (ProtoTransportException pex) {
+            failAsync(future, pex);
+            return;
+        }
+        ((ProtoAsyncTransport) current).exchange(url, request,
+                timeoutFor(ph), new ProtoCallback<InputStream>() {
+                    @Override
+                    public void onSuccess(final InputStream is) {
+                        Runnable decode = new Runnable() {
+                            @Override
+                            public void run() {
+                                completeAsync(future, ph, is, entry,
+                                        envelope, blocking);
+                            }
+                        };
+                        try {
+                            executor.execute(decode);
+                        } catch (RejectedExecutionException ex) {
+                            decode.run();
+                        }
+                    }
 
-            /*
-             * Write to stream and close it
-             */
-            os = connection.getOutputStream();
-            /**
-             * Write protocol handshake
-             */
+                    @Override
+                    public void onFailure(Throwable cause) {
+                        failAsync(future, cause instanceof IOException
+                                ? transportFailure((IOException) cause)
+                                : new ProtoTransportException(
+                                        "Couldn't read server response, connection failed.",
+                                        cause));
+                    }
+                });
+    }
+
+    /**
+     * Completes a future with the response of an asynchronous exchange, a
+     * call rejected for a stale manifest is sent again as a blocking call
+     */
+    private void completeAsync(ProtoCallFuture<Object> future,
+            ProtoHandshake ph, InputStream is, ProtoDispatchTable.Entry entry,
+            RequestEnvelope request, Runnable resend) {
+        if (future.isDone()) {
+            ProtoStreamSupport.closeQuietly(is);
+            return;
+        }
+        ResponseEnvelope response;
+        try {
+            LinkedBuffer buffer = takeBuffer();
             try {
-                ProtostuffIOUtil.writeDelimitedTo(os, ph, schemaProto, buffer);
+                response = readResponse(ph, schemaResp, is, buffer);
             } catch (IOException ex) {
-                ProtoTransportException pex = new ProtoTransportException(
-                        "Error while writing protocol initiation to server.", ex);
-                if (exHandler != null) {
-                    exHandler.processException(pex);
-                } else {
-                    throw pex;
-                }
-                return null;
+                throw new ProtoTransportException(
+                        "Couldn't read server response, connection failed.",
+                        ex);
             } finally {
-                buffer.clear();
+                returnBuffer(buffer);
+            }
+        } catch (ProtoTransportException pex) {
+            failAsync(future, pex);
+            return;
+        }
+        boolean staleManifest = isStale(request, response);
+        if (staleManifest || isStaleSession(request, response)) {
+            if (staleManifest) {
+                dropManifest();
             }
-            /**
-             * Write payload
+            resend.run();
+            return;
+        }
+        adoptSession(request, response);
+        try {
+            future.complete(toResult(response, entry));
+        } catch (Throwable ex) {
+            future.fail(ex);
+        }
+    }
+
+    /**
+     * Completes a future like a blocking call would return, through the
+     * exception handler when there's one
+     */
+    private void failAsync(ProtoCallFuture<Object> future, ProtoException pex) {
+        if (future.isDone()) {
+            return;
+        }
+        try {
+            future.complete(fail(pex));
+        } catch (Throwable ex) {
+            future.fail(ex);
+        }
+    }
+
+    private RequestEnvelope newRequest(ProtoDispatchTable.Entry entry,
+            Object[] args) throws ProtoTransportException {
+        /*
+         * Request prepare. Streamed calls can't be sent again after a stale
+         * manifest, they always carry the method hash
+         */
+        Integer methodId = entry.isStreamType() ? null : entry.getMethodId();
+        RequestEnvelope request;
+        if (methodId == null || isGraph(entry) || !ProtoConfig.
+                getSerializationMode().trim().equals(ProtoConfig.BINARY_MODE)) {
+            /* Graph calls keep the arguments in the envelope graph */
+            request = new RequestEnvelope(methodId == null ? entry.getId()
+                    : null, methodId, retrieveSession(),
+                    (args != null && args.length > 0) ? args : null);
+        } else {
+            /*
+             * Servers that number methods also read typed arguments
              */
-            OutputStream sos;
-            if (ph.getCompressed()) {
-                sos = new SnappyOutputStream(os);
-            } else {
-                sos = os;
+            LinkedBuffer buffer = takeBuffer();
+            try {
+                request = new RequestEnvelope(null, methodId,
+                        retrieveSession(), entry.getCodec().encodeArguments(
+                                args, buffer));
+            } finally {
+                returnBuffer(buffer);
             }
+        }
+        /*
+         * Micro batches and streamed results carry the full session
+         */
+        ProtoSessionTracker tracker = sessionTracker;
+        if (tracker == null || microBatcher != null || entry.isStreamType()) {
+            return request;
+        }
+        return tracker.attach(request);
+    }
+
+    /**
+     * True if the server no longer has the session token of a request, the
+     * call is sent again with the full session
+     */
+    private boolean isStaleSession(RequestEnvelope request,
+            ResponseEnvelope response) {
+        ProtoSessionTracker tracker = sessionTracker;
+        return tracker != null && tracker.isStale(request, response);
+    }
+
+    private void adoptSession(RequestEnvelope request,
+            ResponseEnvelope response) {
+        ProtoSessionTracker tracker = sessionTracker;
+        if (tracker != null) {
+            tracker.adopt(request, response);
+        }
+    }
+
+    /**
+     * Converts a response to the value returned by the proxy
+     */
+    private Object toResult(ResponseEnvelope response,
+            ProtoDispatchTable.Entry entry) throws ProtoException {
+        if (response == null) {
+            return fail(new ServerResponseNullException(null));
+        }
+        if (response.getStatus() > 0) {
+            return fail(response.getThrowable());
+        }
+        if (response.getEncodedResult() != null) {
             try {
-                if (ph.getRequestedProtocol() == 0) {
-                    ProtostuffIOUtil.writeTo(sos, request, schema, buffer);
-                } else {
-                    JsonIOUtil.writeTo(os, request, schema, ph.
-                            getJsonNumerical(),
-                            buffer);
-                }
-                sos.flush();
-                sos.close();
+                return entry.getCodec().decodeResult(response.
+                        getEncodedResult());
             } catch (IOException ex) {
-                ProtoTransportException pex = new ProtoTransportException(
-                        "Error while writing to server.", ex);
-                if (exHandler != null) {
-                    exHandler.processException(pex);
-                } else {
-                    throw pex;
-                }
-                return null;
-            } finally {
-                buffer.clear();
+                return fail(new ProtoTransportException(
+                        "Couldn't read server response, typed result is invalid.",
+                        ex));
             }
+        }
+        Class<?> returnType = entry.getReturnType();
+        if (ProtoStreamSupport.isStreamType(returnType)) {
+            return ProtoStreamSupport.fromList((List<?>) response.getResult(),
+                    returnType);
+        }
+        return response.getResult();
+    }
 
+    /**
+     * Invokes a method whose result is read lazily element by element. The
+     * first packet is read before returning so errors raised before the
+     * server started streaming are reported like any other call.
+     */
+    private Object invokeStreamed(ProtoHandshake ph, RequestEnvelope request,
+            Class<?> returnType) throws Throwable {
+        ProtoResponseStream stream;
+        try {
+            InputStream is;
+            LinkedBuffer buffer = takeBuffer();
+            try {
+                is = send(ph, request, schema, buffer);
+            } finally {
+                returnBuffer(buffer);
+            }
+            try {
+                stream = new ProtoResponseStream(new ProtoPacketInputStream(ph.
+                        getCompressed() ? new SnappyInputStream(is) : is),
+                        exHandler);
+            } catch (IOException ex) {
+                ProtoStreamSupport.closeQuietly(is);
+                throw new ProtoTransportException(
+                        "Couldn't read server response, connection failed.",
+                        ex);
+            }
+            stream.start();
+        } catch (ProtoException pex) {
+            return fail(pex);
+        }
+        if (returnType != ProtoStream.class) {
             /*
-             * Read server response
+             * An Iterator or Iterable abandoned before its end can't be
+             * closed by the caller, read it now and release the connection
              */
-            ResponseEnvelope response = null;
+            return ProtoStreamSupport.fromList(ProtoStreamSupport.toList(
+                    stream), returnType);
+        }
+        return stream;
+    }
+
+    /**
+     * Sends several calls in a single request sharing handshake and session
+     *
+     * @param calls The calls, their session is ignored
+     * @return The responses in call order
+     * @throws ProtoException If the batch couldn't be sent or read
+     */
+    ResponseEnvelope[] invokeBatch(RequestEnvelope[] calls) throws ProtoException {
+        return invokeBatch(retrieveSession(), calls);
+    }
+
+    ResponseEnvelope[] invokeBatch(ProtoSession session,
+            RequestEnvelope[] calls) throws ProtoException {
+        BatchResponseEnvelope response = exchange(newHandshake(true, false,
+                false, null),
+                new BatchRequestEnvelope(session, calls), schemaBatch,
+                schemaBatchResp);
+        if (response == null || response.getResponses() == null
+                || response.getResponses().length != calls.length) {
+            throw new ServerResponseNullException(null);
+        }
+        return response.getResponses();
+    }
+
+    /**
+     * Exchanges a single call with the current configuration
+     */
+    ResponseEnvelope exchangeRequest(RequestEnvelope request)
+            throws ProtoTransportException {
+        return exchange(newHandshake(false, false, false, null), request,
+                schema, schemaResp);
+    }
+
+    ProtoRemoteExceptionHandler getExceptionHandler() {
+        return exHandler;
+    }
+
+    /**
+     * Creates the handshake of a request from the current configuration,
+     * results are only streamed and payloads only sent as graphs with the
+     * binary encoding. The handshake carries the time left before the
+     * deadline of the context.
+     */
+    private ProtoHandshake newHandshake(boolean batch, boolean streamType,
+            boolean graph, ProtoContext context) {
+        String mode = ProtoConfig.getSerializationMode();
+        long timeoutMillis = context != null && context.getDeadlineNanos() != 0
+                ? Math.max(1, context.getRemainingMillis()) : 0;
+        ProtoDispatchTable current = dispatch;
+        boolean binary = mode.trim().equals(ProtoConfig.BINARY_MODE);
+        return new ProtoHandshake(mode, ProtoConfig.isCompressionEnabled(),
+                ProtoConfig.isJSONNumerical(), batch, streamType && binary,
+                timeoutMillis, current != null ? current.getManifestVersion()
+                : 0, graph && binary && !streamType);
+    }
+
+    /**
+     * Time the transport waits for the response of a request
+     */
+    private static int timeoutFor(ProtoHandshake ph) {
+        long timeoutMillis = ph.getTimeoutMillis();
+        return timeoutMillis > 0 && timeoutMillis < PROTO_REQUEST_TIMEOUT
+                ? (int) timeoutMillis : PROTO_REQUEST_TIMEOUT;
+    }
+
+    /**
+     * Writes a request and reads its response through the transport
+     */
+    private <Q, R> R exchange(ProtoHandshake ph, Q request,
+            Schema<Q> requestSchema, Schema<R> responseSchema) throws ProtoTransportException {
+        LinkedBuffer buffer = takeBuffer();
+        try {
+            InputStream is = send(ph, request, requestSchema, buffer);
             try {
-                is = connection.getInputStream();
-                InputStream sis;
-                if (ph.getCompressed()) {
-                    sis = new SnappyInputStream(is);
-                } else {
-                    sis = is;
-                }
-                response = schemaResp.newMessage();
-                if (ph.getRequestedProtocol() == 0) {
-                    ProtostuffIOUtil.mergeFrom(sis, response, schemaResp);
-                } else {
-                    JsonIOUtil.mergeFrom(sis, response, schemaResp,
-                            ph.getJsonNumerical(), buffer);
-                }
-                sis.close();
+                return readResponse(ph, responseSchema, is, buffer);
             } catch (IOException ex) {
-                ProtoTransportException pex = new ProtoTransportException(
-                        "Couldn't read server response, connection failed.", ex);
-                if (exHandler != null) {
-                    exHandler.processException(pex);
-                } else {
-                    throw pex;
-                }
-                return null;
-            }
-            if (response != null) {
-                if (response.getStatus() > 0) {
-                    if (exHandler != null) {
-                        exHandler.processException(response.getThrowable());
-                    } else {
-                        throw response.getThrowable();
-                    }
-                }
-                Object value = response.getResult();
-                return value;
-            } else {
-                ServerResponseNullException pex = new ServerResponseNullException(
-                        null);
-                if (exHandler != null) {
-                    exHandler.processException(pex);
-                } else {
-                    throw pex;
-                }
-                return null;
+                throw new ProtoTransportException(
+                        "Couldn't read server response, connection failed.",
+                        ex);
             }
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    private LinkedBuffer takeBuffer() throws ProtoTransportException {
+        try {
+            LinkedBuffer buffer = ProtoBufferPool.takeBuffer();
+            /*
+             * Initialize current buffer
+             */
+            buffer.clear();
+            return buffer;
         } catch (InterruptedException ex) {
-            ProtoTransportException pex = new ProtoTransportException(
+            throw new ProtoTransportException(
                     "Couldn't obtain a free buffer to write to remote. Max capacity reached.",
                     ex);
-            if (exHandler != null) {
-                exHandler.processException(pex);
+        }
+    }
+
+    private void returnBuffer(LinkedBuffer buffer) {
+        try {
+            ProtoBufferPool.returnBuffer(buffer);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a request and returns the stream with the server response. The
+     * request is encoded before sending so its length is known and the
+     * transport can reuse the connection.
+     */
+    private <Q> InputStream send(ProtoHandshake ph, Q request,
+            Schema<Q> requestSchema, LinkedBuffer buffer) throws ProtoTransportException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+        try {
+            writeRequest(ph, request, requestSchema, bos, buffer);
+        } catch (IOException ex) {
+            throw new ProtoTransportException(
+                    "Error while writing to server.", ex);
+        }
+        try {
+            return getTransport().exchange(url, bos.toByteArray(),
+                    timeoutFor(ph));
+        } catch (IOException ex) {
+            throw transportFailure(ex);
+        }
+    }
+
+    /**
+     * Encodes handshake and request with a pooled buffer
+     */
+    private <Q> byte[] encode(ProtoHandshake ph, Q request,
+            Schema<Q> requestSchema) throws ProtoTransportException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+        LinkedBuffer buffer = takeBuffer();
+        try {
+            writeRequest(ph, request, requestSchema, bos, buffer);
+        } catch (IOException ex) {
+            throw new ProtoTransportException(
+                    "Error while writing to server.", ex);
+        } finally {
+            returnBuffer(buffer);
+        }
+        return bos.toByteArray();
+    }
+
+    private ProtoTransportException transportFailure(IOException ex) {
+        if (ex instanceof ProtoCircuitBreakerTransport.OpenCircuitException) {
+            return ((ProtoCircuitBreakerTransport.OpenCircuitException) ex).
+                    toProtoException();
+        }
+        if (ex instanceof SocketTimeoutException) {
+            return new ProtoTransportException("Network error", ex);
+        }
+        if (ex instanceof ConnectException) {
+            return new ConnectFailureException(ex);
+        }
+        return new ProtoTransportException(
+                "Couldn't read server response, connection failed.", ex);
+    }
+
+    /**
+     * Obtains the session from the retriever or a default one
+     */
+    private ProtoSession retrieveSession() {
+        if (sesRetriever != null && sesRetriever.getSession() != null) {
+            return sesRetriever.getSession();
+        }
+        return new ProtoSessionImpl();
+    }
+
+    /**
+     * Writes handshake and request payload, closing the stream
+     */
+    private <Q> void writeRequest(ProtoHandshake ph, Q request,
+            Schema<Q> requestSchema, OutputStream os, LinkedBuffer buffer) throws IOException {
+        if (ProtoConfig.isLegacyHandshake()) {
+            try {
+                ProtostuffIOUtil.writeDelimitedTo(os, ph, schemaProto, buffer);
+            } finally {
+                buffer.clear();
+            }
+        } else {
+            ph.writeTo(os);
+        }
+        OutputStream sos = ph.getCompressed() ? new SnappyOutputStream(os) : os;
+        try {
+            if (ph.getRequestedProtocol() == 0 && ph.getGraph()) {
+                GraphIOUtil.writeTo(sos, request, requestSchema, buffer);
+            } else if (ph.getRequestedProtocol() == 0) {
+                ProtostuffIOUtil.writeTo(sos, request, requestSchema, buffer);
             } else {
-                throw pex;
+                JsonIOUtil.writeTo(sos, request, requestSchema, ph.
+                        getJsonNumerical(), buffer);
             }
-            return null;
+            sos.flush();
+            sos.close();
         } finally {
-            if (buffer != null) {
-                ProtoBufferPool.returnBuffer(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads a response message, closing the stream
+     */
+    private <R> R readResponse(ProtoHandshake ph, Schema<R> responseSchema,
+            InputStream is, LinkedBuffer buffer) throws IOException {
+        InputStream sis = is;
+        R response = responseSchema.newMessage();
+        try {
+            if (ph.getCompressed()) {
+                sis = new SnappyInputStream(is);
+            }
+            if (ph.getRequestedProtocol() == 0 && ph.getGraph()) {
+                GraphIOUtil.mergeFrom(sis, response, responseSchema);
+            } else if (ph.getRequestedProtocol() == 0) {
+                ProtostuffIOUtil.mergeFrom(sis, response, responseSchema);
+            } else {
+                JsonIOUtil.mergeFrom(sis, response, responseSchema,
+                        ph.getJsonNumerical(), buffer);
+            }
+        } finally {
+            buffer.clear();
+            sis.close();
+        }
+        return response;
+    }
+
+    /**
+     * Hands an exception to the handler or throws it if there's none
+     *
+     * @return Always null, the value returned to the caller when handled
+     */
+    private Object fail(ProtoException pex) throws ProtoException {
+        if (exHandler != null) {
+            exHandler.processException(pex);
+            return null;
+        }
+        throw pex;
+    }
+
+    /**
+     * Encoded request used to find identical calls in flight
+     */
+    private static final class RequestKey {
+
+        private final byte[] request;
+        private final int hash;
+
+        RequestKey(byte[] request) {
+            this.request = request;
+            this.hash = Arrays.hashCode(request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RequestKey
+                    && Arrays.equals(request, ((RequestKey) obj).request);
+        }
+    }
+
+    /**
+     * A request in flight and the calls waiting for it
+     */
+    private static final class Flight {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private byte[] response;
+        private ProtoTransportException error;
+
+        void complete(byte[] response) {
+            this.response = response;
+            latch.countDown();
+        }
+
+        void fail(ProtoTransportException error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        byte[] await(int timeoutMillis) throws ProtoTransportException {
+            try {
+                if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new ProtoTransportException("Network error",
+                            new SocketTimeoutException(
+                                    "Timed out waiting for a coalesced call"));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ProtoTransportException(
+                        "Interrupted waiting for a coalesced call.", ex);
+            }
+            if (error != null) {
+                throw error;
             }
+            return response;
+        }
+    }
+
+    /**
+     * Failure of a call whose connection was refused, the request was never
+     * sent
+     */
+    private static final class ConnectFailureException
+            extends ProtoTransportException {
+
+        private static final long serialVersionUID = 1L;
+
+        ConnectFailureException(IOException cause) {
+            super("Couldn't connect to remote host, connection timed out",
+                    cause);
         }
     }
 
@@ -35,6 +35,8 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Contenedor de protoproxy
@@ -47,9 +49,12 @@ public class ProtoProxyContainer {
     private boolean isHttps = false;
     private InvocationHandler handler;
     private String urlString;
+    private List<String> urlStrings;
+    private ProtoBalancedTransport balanced;
     private URL url;
     private ProtoRemoteExceptionHandler exHandler;
     private ProtoProxySessionRetriever sesRetriever;
+    private ProtoTransport transport;
 
     public ProtoProxyContainer(final Class service,
             final String urlString,
@@ -62,8 +67,33 @@ public class ProtoProxyContainer {
         this.sesRetriever = sesRetriever;
     }
 
+    /**
+     * Creates a container spreading calls over several endpoints of the same
+     * service
+     */
+    public ProtoProxyContainer(final Class service,
+            final List<String> urlStrings,
+            final ProtoRemoteExceptionHandler exHandler,
+            final ProtoProxySessionRetriever sesRetriever,
+            final Boolean isHttps) {
+        this(service, urlStrings.get(0), exHandler, sesRetriever, isHttps);
+        this.urlStrings = urlStrings;
+    }
+
     public final void setUrlString(final String urlString) {
         this.urlString = urlString;
+        this.urlStrings = null;
+        this.balanced = null;
+        url = null;
+    }
+
+    /**
+     * Sets the endpoints calls are spread over
+     */
+    public final void setUrlStrings(final List<String> urlStrings) {
+        this.urlString = urlStrings.get(0);
+        this.urlStrings = urlStrings;
+        this.balanced = null;
         url = null;
     }
 
@@ -79,24 +109,46 @@ public class ProtoProxyContainer {
 
     public final void setHttps(Boolean isHttps) {
         this.isHttps = isHttps;
+        this.balanced = null;
     }
 
     public final Boolean isHttps() {
         return isHttps;
     }
 
+    /**
+     * Sets the transport of the proxy, null for the shared pooled one
+     */
+    public final void setTransport(final ProtoTransport transport) {
+        this.transport = transport;
+        this.balanced = null;
+    }
+
     public <T> T getProxyInstance(final Class service) throws MalformedURLException, IllegalArgumentException {
         String protocol = isHttps ? "https://" : "http://";
-        if (url == null) {
+        ProtoTransport current = transport;
+        if (urlStrings != null) {
+            if (balanced == null) {
+                List<URL> urls = new ArrayList<URL>(urlStrings.size());
+                for (String endpoint : urlStrings) {
+                    urls.add(new URL(protocol + endpoint));
+                }
+                balanced = new ProtoBalancedTransport(urls, transport);
+            }
+            url = balanced.getEndpoints().get(0).getUrl();
+            current = balanced;
+        } else if (url == null) {
             url = new URL(protocol + urlString);
         }
         if (handler == null) {
-            handler = new ProtoProxy(url, isHttps, exHandler, sesRetriever);            
+            handler = new ProtoProxy(url, current, exHandler, sesRetriever);
+            ((ProtoProxy) handler).setService(service);
         } else {
             ((ProtoProxy) handler).setURL(url);
             ((ProtoProxy) handler).setSecure(isHttps);
             ((ProtoProxy) handler).setExceptionHandler(exHandler);
             ((ProtoProxy) handler).setSessionRetriever(sesRetriever);
+            ((ProtoProxy) handler).setTransport(current);
         }
         return (T) Proxy.newProxyInstance(loader, new Class[]{service},
                     handler);
@@ -33,8 +33,14 @@ package com.baco.protorpc.client;
 import com.baco.protorpc.util.ProtoProxySessionRetriever;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 /**
  * CHANGELOG ---------- 2012-02-09 : First version
@@ -48,6 +54,19 @@ public class ProtoProxyFactory {
 
     private final ClassLoader loader;
     private boolean isHttps = false;
+    private ProtoTransport transport;
+    private Executor asyncExecutor;
+    private long asyncTimeoutMillis;
+    private long batchWindowMicros;
+    private int maxBatchSize;
+    private int hedgePercentile;
+    private int hedgeBudgetPercent;
+    private int maxRetries;
+    private int retryBudgetPercent;
+    private boolean manifest;
+    private boolean sessionTokens;
+    private boolean graph;
+    private final ConcurrentMap<String, ProtoMultiplexedConnection> connections = new ConcurrentHashMap<String, ProtoMultiplexedConnection>();
 
     public ProtoProxyFactory() {
         this(Thread.currentThread().getContextClassLoader());
@@ -61,6 +80,109 @@ public class ProtoProxyFactory {
         this.isHttps = isHttps;
     }
 
+    /**
+     * Sets the transport used by http proxies, by default they share the
+     * pooled http transport
+     *
+     * @param transport The transport
+     */
+    public void setTransport(ProtoTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sets the executor running asynchronous calls and their callbacks, by
+     * default a shared pool of daemon threads
+     *
+     * @param asyncExecutor The executor
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Sets the time after which asynchronous calls fail, 0 waits as long as
+     * the transport
+     *
+     * @param asyncTimeoutMillis The timeout in milliseconds
+     */
+    public void setAsyncTimeout(long asyncTimeoutMillis) {
+        this.asyncTimeoutMillis = asyncTimeoutMillis;
+    }
+
+    /**
+     * Makes proxies gather calls from different threads into batch requests
+     *
+     * @param windowMicros Time the first call of a batch waits for others,
+     * 0 disables micro batching
+     * @param maxBatchSize Calls that send the batch right away, should not
+     * exceed the server protorpc.batch.max.size
+     */
+    public void setMicroBatching(long windowMicros, int maxBatchSize) {
+        this.batchWindowMicros = windowMicros;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Makes proxies send a second copy of idempotent calls not answered
+     * within a percentile of the recent latencies, to another endpoint on
+     * balanced proxies
+     *
+     * @param percentile Latency percentile after which calls are hedged, 0
+     * disables hedging
+     * @param budgetPercent Maximum share of the calls that are hedged
+     */
+    public void setHedging(int percentile, int budgetPercent) {
+        this.hedgePercentile = percentile;
+        this.hedgeBudgetPercent = budgetPercent;
+    }
+
+    /**
+     * Makes proxies retry calls failed by the transport within a budget,
+     * idempotent calls after any failure and the others only when the
+     * request wasn't sent. Failing fast needs a ProtoCircuitBreakerTransport
+     * set with setTransport.
+     *
+     * @param maxRetries Retries of a single call, 0 disables retries
+     * @param budgetPercent Maximum share of the calls that are retried
+     */
+    public void setRetries(int maxRetries, int budgetPercent) {
+        this.maxRetries = maxRetries;
+        this.retryBudgetPercent = budgetPercent;
+    }
+
+    /**
+     * Makes proxies fetch the service manifest and send methods by number
+     * instead of their hash
+     *
+     * @param manifest True to use the server manifest
+     */
+    public void setManifest(boolean manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Makes proxies send the session once and then the token the server
+     * gives for it. Balanced proxies always send the full session, tokens
+     * are only valid on the server that issued them.
+     *
+     * @param sessionTokens True to use session tokens
+     */
+    public void setSessionTokens(boolean sessionTokens) {
+        this.sessionTokens = sessionTokens;
+    }
+
+    /**
+     * Makes proxies send every call as an object graph, keeping shared and
+     * cyclic references. Without it only methods marked with ProtoGraph
+     * are.
+     *
+     * @param graph True to send all calls as graphs
+     */
+    public void setGraph(boolean graph) {
+        this.graph = graph;
+    }
+
     /**
      * Creates a new proxy
      *
@@ -81,8 +203,205 @@ public class ProtoProxyFactory {
             throw new NullPointerException(
                     "Service interface class must not be null");
         }
-        InvocationHandler handler;
-        handler = new ProtoProxy(url, isHttps, exHandler, sesRetriever);
-        return (T) Proxy.newProxyInstance(loader, new Class[]{iface}, handler);
+        ProtoProxy handler = new ProtoProxy(url, transport, exHandler,
+                sesRetriever);
+        handler.setService(iface);
+        handler.setMicroBatching(batchWindowMicros, maxBatchSize);
+        handler.setHedging(hedgePercentile, hedgeBudgetPercent);
+        handler.setRetries(maxRetries, retryBudgetPercent);
+        handler.setManifest(manifest);
+        handler.setGraph(graph);
+        handler.setSessionTokens(sessionTokens);
+        return iface.cast(Proxy.newProxyInstance(loader, new Class<?>[]{iface},
+                handler));
+    }
+
+    /**
+     * Creates a new proxy spreading calls over several endpoints of the same
+     * service with a ProtoBalancedTransport
+     *
+     * @param <T> The service interface class
+     * @param iface The service interface
+     * @param urlStrings The endpoint urls without the protocol
+     * @return A proxy using the service interface as a facade
+     * @throws MalformedURLException
+     */
+    public <T> T createBalanced(Class<T> iface,
+            List<String> urlStrings,
+            ProtoRemoteExceptionHandler exHandler,
+            ProtoProxySessionRetriever sesRetriever)
+            throws MalformedURLException {
+        if (iface == null) {
+            throw new NullPointerException(
+                    "Service interface class must not be null");
+        }
+        String protocol = isHttps ? "https://" : "http://";
+        List<URL> urls = new ArrayList<URL>(urlStrings.size());
+        for (String urlString : urlStrings) {
+            urls.add(new URL(protocol + urlString));
+        }
+        ProtoBalancedTransport balanced = new ProtoBalancedTransport(urls,
+                transport);
+        ProtoProxy handler = new ProtoProxy(urls.get(0), balanced, exHandler,
+                sesRetriever);
+        handler.setService(iface);
+        handler.setMicroBatching(batchWindowMicros, maxBatchSize);
+        handler.setHedging(hedgePercentile, hedgeBudgetPercent);
+        handler.setRetries(maxRetries, retryBudgetPercent);
+        handler.setManifest(manifest);
+        handler.setGraph(graph);
+        return iface.cast(Proxy.newProxyInstance(loader, new Class<?>[]{iface},
+                handler));
+    }
+
+    /**
+     * Creates a new proxy calling a ProtoNioServer. Proxies created for the
+     * same endpoint share one multiplexed connection.
+     *
+     * @param <T> The service interface class
+     * @param iface The service interface
+     * @param hostAndPort The server address as host:port
+     * @return A proxy using the service interface as a facade
+     */
+    public <T> T createMultiplexed(Class<T> iface,
+            String hostAndPort,
+            ProtoRemoteExceptionHandler exHandler,
+            ProtoProxySessionRetriever sesRetriever) {
+        if (iface == null) {
+            throw new NullPointerException(
+                    "Service interface class must not be null");
+        }
+        ProtoProxy handler = new ProtoProxy(getConnection(hostAndPort),
+                exHandler, sesRetriever);
+        handler.setService(iface);
+        handler.setMicroBatching(batchWindowMicros, maxBatchSize);
+        handler.setHedging(hedgePercentile, hedgeBudgetPercent);
+        handler.setRetries(maxRetries, retryBudgetPercent);
+        handler.setManifest(manifest);
+        handler.setGraph(graph);
+        handler.setSessionTokens(sessionTokens);
+        return iface.cast(Proxy.newProxyInstance(loader, new Class<?>[]{iface},
+                handler));
+    }
+
+    /**
+     * Creates an asynchronous view of a service. Each method of the async
+     * interface matches a service method by name and parameters, returns a
+     * ProtoFuture and may take a trailing ProtoCallback.
+     *
+     * @param <A> The async interface class
+     * @param asyncIface The async interface
+     * @param service The service interface
+     * @param urlString The service url without the protocol
+     * @return A proxy using the async interface as a facade
+     * @throws MalformedURLException
+     */
+    public <A> A createAsync(Class<A> asyncIface,
+            Class<?> service,
+            String urlString,
+            ProtoRemoteExceptionHandler exHandler,
+            ProtoProxySessionRetriever sesRetriever)
+            throws MalformedURLException {
+        String protocol = isHttps ? "https://" : "http://";
+        URL url = new URL(protocol + urlString);
+        return newAsyncProxy(asyncIface, service, new ProtoProxy(url,
+                transport, exHandler, sesRetriever));
+    }
+
+    /**
+     * Creates an asynchronous view of a service exposed by a ProtoNioServer,
+     * responses complete the calls without blocking a thread per call
+     *
+     * @param <A> The async interface class
+     * @param asyncIface The async interface
+     * @param service The service interface
+     * @param hostAndPort The server address as host:port
+     * @return A proxy using the async interface as a facade
+     */
+    public <A> A createMultiplexedAsync(Class<A> asyncIface,
+            Class<?> service,
+            String hostAndPort,
+            ProtoRemoteExceptionHandler exHandler,
+            ProtoProxySessionRetriever sesRetriever) {
+        return newAsyncProxy(asyncIface, service, new ProtoProxy(
+                getConnection(hostAndPort), exHandler, sesRetriever));
+    }
+
+    private <A> A newAsyncProxy(Class<A> asyncIface, Class<?> service,
+            ProtoProxy proxy) {
+        if (asyncIface == null || service == null) {
+            throw new NullPointerException(
+                    "Service interface class must not be null");
+        }
+        proxy.setService(service);
+        proxy.setManifest(manifest);
+        proxy.setSessionTokens(sessionTokens);
+        proxy.setGraph(graph);
+        InvocationHandler handler = new ProtoAsyncProxy(proxy, asyncIface,
+                service, asyncExecutor, asyncTimeoutMillis);
+        return asyncIface.cast(Proxy.newProxyInstance(loader,
+                new Class<?>[]{asyncIface}, handler));
+    }
+
+    /**
+     * Creates a new batch, calls made on its proxies are sent together
+     *
+     * @param urlString The service url without the protocol
+     * @return An empty batch
+     * @throws MalformedURLException
+     */
+    public ProtoBatch createBatch(String urlString,
+            ProtoRemoteExceptionHandler exHandler,
+            ProtoProxySessionRetriever sesRetriever)
+            throws MalformedURLException {
+        String protocol = isHttps ? "https://" : "http://";
+        URL url = new URL(protocol + urlString);
+        return new ProtoBatch(new ProtoProxy(url, transport, exHandler,
+                sesRetriever), loader);
+    }
+
+    /**
+     * Creates a new batch sent through the multiplexed connection to a
+     * ProtoNioServer
+     *
+     * @param hostAndPort The server address as host:port
+     * @return An empty batch
+     */
+    public ProtoBatch createMultiplexedBatch(String hostAndPort,
+            ProtoRemoteExceptionHandler exHandler,
+            ProtoProxySessionRetriever sesRetriever) {
+        return new ProtoBatch(new ProtoProxy(getConnection(hostAndPort),
+                exHandler, sesRetriever), loader);
+    }
+
+    private ProtoMultiplexedConnection getConnection(String hostAndPort) {
+        ProtoMultiplexedConnection connection = connections.get(hostAndPort);
+        if (connection == null) {
+            int separator = hostAndPort.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException(
+                        "Endpoint must be host:port, got " + hostAndPort);
+            }
+            InetSocketAddress address = new InetSocketAddress(hostAndPort.
+                    substring(0, separator), Integer.parseInt(hostAndPort.
+                            substring(separator + 1)));
+            connection = new ProtoMultiplexedConnection(address);
+            ProtoMultiplexedConnection existing = connections.putIfAbsent(
+                    hostAndPort, connection);
+            if (existing != null) {
+                connection = existing;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Closes the multiplexed connections opened by this factory
+     */
+    public void closeConnections() {
+        for (ProtoMultiplexedConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
     }
 }
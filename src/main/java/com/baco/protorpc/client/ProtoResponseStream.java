@@ -0,0 +1,160 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoStream;
+import com.baco.protorpc.exceptions.ProtoException;
+import com.baco.protorpc.exceptions.ProtoTransportException;
+import com.baco.protorpc.util.PacketEnvelope;
+import com.baco.protorpc.util.ProtoPacketInputStream;
+import com.baco.protorpc.util.ResponseEnvelope;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streamed result read lazily from the server response.
+ *
+ * Only one element is held at a time. The response ends with a status
+ * packet, errors found while reading are handed to the exception handler
+ * or thrown wrapped in an UndeclaredThrowableException, the same way the
+ * proxy reports them for service methods. The connection is released when
+ * the last packet is read or on close. Only methods returning ProtoStream
+ * get it directly, callers of Iterator and Iterable methods have nothing to
+ * close it with so the proxy reads those results whole.
+ *
+ * @author deiby.nahuat
+ */
+class ProtoResponseStream
+        implements ProtoStream<Object> {
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+
+    private final ProtoPacketInputStream in;
+    private final ProtoRemoteExceptionHandler exHandler;
+    private PacketEnvelope next;
+    private boolean done;
+
+    ProtoResponseStream(final ProtoPacketInputStream in,
+            final ProtoRemoteExceptionHandler exHandler) {
+        this.in = in;
+        this.exHandler = exHandler;
+    }
+
+    /**
+     * Reads the first packet
+     *
+     * @throws ProtoException If the call failed before streaming started
+     */
+    void start() throws ProtoException {
+        ProtoException error = advance();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Reads packets until an element or the end
+     *
+     * @return The error that ended the stream, or null
+     */
+    private ProtoException advance() {
+        PacketEnvelope packet;
+        try {
+            packet = in.readPacket();
+            if (packet == null) {
+                throw new EOFException("Response ended before its status");
+            }
+        } catch (IOException ex) {
+            close();
+            return new ProtoTransportException(
+                    "Couldn't read server response, connection failed.", ex);
+        }
+        ResponseEnvelope trailer = packet.getTrailer();
+        if (trailer == null) {
+            next = packet;
+            return null;
+        }
+        close();
+        return trailer.getStatus() > 0 ? trailer.getThrowable() : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        ProtoException error = advance();
+        if (error != null) {
+            if (exHandler == null) {
+                throw new UndeclaredThrowableException(error);
+            }
+            exHandler.processException(error);
+        }
+        return next != null;
+    }
+
+    @Override
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object value = next.getPacket();
+        next = null;
+        return value;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if (done) {
+            return;
+        }
+        done = true;
+        next = null;
+        try {
+            in.close();
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Error closing streamed response", ex);
+        }
+    }
+
+}
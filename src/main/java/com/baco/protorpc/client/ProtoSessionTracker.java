@@ -0,0 +1,141 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoSession;
+import com.baco.protorpc.api.ProtoSessionDelta;
+import com.baco.protorpc.exceptions.StaleSessionException;
+import com.baco.protorpc.util.RequestEnvelope;
+import com.baco.protorpc.util.ResponseEnvelope;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Session token of a proxy and the session values the server keeps for
+ * it.
+ *
+ * Without a token the full session is sent asking for one. Afterwards
+ * requests carry the token alone while the session doesn't change, or the
+ * token and the changed keys, which the server answers with a token for
+ * the new version. Sessions changing too much are sent in full again.
+ *
+ * @author deiby.nahuat
+ */
+final class ProtoSessionTracker {
+
+    /* Changes always sent as a delta, larger ones depend on session size */
+    private static final int MIN_DELTA_SIZE = 8;
+
+    private volatile State state;
+
+    /**
+     * Replaces the session of a request with the token when possible
+     *
+     * @param request The request carrying the full session
+     * @return The request to send
+     */
+    RequestEnvelope attach(final RequestEnvelope request) {
+        ProtoSession session = request.getSession();
+        if (session == null) {
+            return request;
+        }
+        Map<String, String> values = session.getValues();
+        State current = state;
+        if (current != null) {
+            ProtoSessionDelta delta = ProtoSessionDelta.between(current.values,
+                    values);
+            if (delta.isEmpty()) {
+                return request.withSession(null, current.token, null);
+            }
+            if (delta.size() <= Math.max(MIN_DELTA_SIZE,
+                    current.values.size() / 2)) {
+                return request.withSession(null, current.token, delta);
+            }
+        }
+        /* A copy, so the values the token stands for are the ones sent */
+        return request.withSession(ProtoSessionDelta.snapshot(values), 0L,
+                null);
+    }
+
+    /**
+     * Keeps the token issued for the session of a request
+     */
+    void adopt(final RequestEnvelope request, final ResponseEnvelope response) {
+        if (response == null || response.getSessionToken() == null
+                || request.getSessionToken() == null) {
+            return;
+        }
+        if (request.getSessionToken() == 0) {
+            state = new State(response.getSessionToken(),
+                    new HashMap<String, String>(request.getSession().
+                            getValues()));
+            return;
+        }
+        State current = state;
+        if (current != null && current.token == request.getSessionToken()
+                && request.getSessionDelta() != null) {
+            state = new State(response.getSessionToken(), request.
+                    getSessionDelta().applyTo(current.values));
+        }
+    }
+
+    /**
+     * True if the server no longer has the session of the request token,
+     * the token is dropped and the call must be sent again
+     */
+    boolean isStale(final RequestEnvelope request,
+            final ResponseEnvelope response) {
+        Long token = request.getSessionToken();
+        if (token == null || token == 0 || response == null
+                || response.getStatus() == 0 || !(response.
+                getThrowable() instanceof StaleSessionException)) {
+            return false;
+        }
+        State current = state;
+        if (current != null && current.token == token) {
+            state = null;
+        }
+        return true;
+    }
+
+    private static final class State {
+
+        private final long token;
+        private final Map<String, String> values;
+
+        State(long token, Map<String, String> values) {
+            this.token = token;
+            this.values = values;
+        }
+
+    }
+
+}
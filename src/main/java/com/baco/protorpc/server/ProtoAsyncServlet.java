@@ -0,0 +1,381 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * ProtoRpc servlet running requests asynchronously (Servlet 3.0+).
+ *
+ * Decoding, session validation, invocation and encoding run on a bounded
+ * worker pool so container threads are only held for I/O. Requests over
+ * the queue limit are answered with 503. The servlet must be deployed with
+ * async-supported enabled, otherwise it falls back to synchronous mode.
+ *
+ * Init parameters: protorpc.async.threads, protorpc.async.queue and
+ * protorpc.async.timeout (ms). Requests still running when the timeout
+ * fires are answered with 503 and their worker can't touch the response
+ * anymore.
+ *
+ * @author deiby.nahuat
+ */
+public abstract class ProtoAsyncServlet
+        extends ProtoServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String ASYNC_THREADS_PARAM = "protorpc.async.threads";
+    public static final String ASYNC_QUEUE_PARAM = "protorpc.async.queue";
+    public static final String ASYNC_TIMEOUT_PARAM = "protorpc.async.timeout";
+    public static final int DEFAULT_ASYNC_THREADS = 16;
+    public static final int DEFAULT_ASYNC_QUEUE = 256;
+    public static final long DEFAULT_ASYNC_TIMEOUT = 500000l;
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+
+    /* Worker pool */
+    private ExecutorService executor;
+    private long asyncTimeout;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        int threads = getIntParameter(config, ASYNC_THREADS_PARAM,
+                DEFAULT_ASYNC_THREADS);
+        int queue = getIntParameter(config, ASYNC_QUEUE_PARAM,
+                DEFAULT_ASYNC_QUEUE);
+        asyncTimeout = getLongParameter(config, ASYNC_TIMEOUT_PARAM,
+                DEFAULT_ASYNC_TIMEOUT);
+        executor = createExecutor(threads, queue);
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Creates the worker pool used to run requests. The servlet owns the
+     * returned executor and shuts it down on destroy, so an override must
+     * return a new executor, never one shared with other components.
+     *
+     * @param threads Worker count
+     * @param queueSize Maximum pending requests
+     * @return The executor
+     */
+    protected ExecutorService createExecutor(int threads, int queueSize) {
+        final String poolName = "protorpc-async-" + getServletName() + "-";
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, poolName + counter.
+                                incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        if (!req.getMethod().equals("POST") || !req.isAsyncSupported()) {
+            super.service(request, response);
+            return;
+        }
+        final AsyncContext ctx = req.startAsync();
+        final AsyncCall call = new AsyncCall(ctx);
+        ctx.addListener(call);
+        ctx.setTimeout(asyncTimeout);
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (call.isFinished()) {
+                        /* Timed out while queued */
+                        return;
+                    }
+                    try {
+                        invoke((HttpServletRequest) ctx.getRequest(),
+                                call.wrap(ctx.getRequest().getInputStream()),
+                                call.wrap(ctx.getResponse().getOutputStream()));
+                    } catch (Throwable e) {
+                        if (!call.isFinished()) {
+                            LOG.log(Level.SEVERE,
+                                    "Asynchronous request failed", e);
+                        }
+                        call.fail(500, "ProtoRpc request failed");
+                    } finally {
+                        call.complete();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            LOG.log(Level.WARNING,
+                    "Asynchronous request rejected, worker queue is full");
+            call.fail(503, "ProtoRpc server is busy");
+        }
+    }
+
+    /**
+     * State of an asynchronous request shared by its worker and the
+     * container. Only the first one to finish completes the context, once
+     * the container times the request out or reports an error the streams
+     * handed to the worker fail. No lock is held during I/O so the container
+     * never waits behind a slow client.
+     */
+    private static final class AsyncCall
+            implements AsyncListener {
+
+        private static final int IDLE = 0;
+        private static final int IO = 1;
+        private static final int FINISHED = 2;
+
+        private final AsyncContext ctx;
+        /* IDLE, IO while the worker reads or writes, then FINISHED */
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+
+        AsyncCall(AsyncContext ctx) {
+            this.ctx = ctx;
+        }
+
+        boolean isFinished() {
+            return state.get() == FINISHED;
+        }
+
+        /**
+         * Sends an error unless the response was already finished or
+         * committed, then completes the context
+         */
+        void fail(int status, String message) {
+            finish(status, message);
+        }
+
+        /**
+         * Completes the context once
+         */
+        void complete() {
+            finish(0, null);
+        }
+
+        private void finish(int status, String message) {
+            for (;;) {
+                int current = state.get();
+                if (current == FINISHED) {
+                    return;
+                }
+                if (state.compareAndSet(current, FINISHED)) {
+                    /* A worker in the middle of I/O owns the response */
+                    if (status > 0 && current == IDLE) {
+                        sendError((HttpServletResponse) ctx.getResponse(),
+                                status, message);
+                    }
+                    ctx.complete();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            LOG.log(Level.WARNING, "Asynchronous request timed out");
+            fail(503, "ProtoRpc request timed out");
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            LOG.log(Level.WARNING, "Asynchronous request failed",
+                    event.getThrowable());
+            complete();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            state.set(FINISHED);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+        private void enter() throws IOException {
+            if (!state.compareAndSet(IDLE, IO)) {
+                throw new IOException("Asynchronous request already finished");
+            }
+        }
+
+        private void exit() {
+            state.compareAndSet(IO, IDLE);
+        }
+
+        InputStream wrap(InputStream is) {
+            return new FilterInputStream(is) {
+
+                @Override
+                public int read() throws IOException {
+                    enter();
+                    try {
+                        return super.read();
+                    } finally {
+                        exit();
+                    }
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    enter();
+                    try {
+                        return super.read(b, off, len);
+                    } finally {
+                        exit();
+                    }
+                }
+            };
+        }
+
+        OutputStream wrap(OutputStream os) {
+            return new FilterOutputStream(os) {
+
+                @Override
+                public void write(int b) throws IOException {
+                    enter();
+                    try {
+                        out.write(b);
+                    } finally {
+                        exit();
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    enter();
+                    try {
+                        out.write(b, off, len);
+                    } finally {
+                        exit();
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    enter();
+                    try {
+                        out.flush();
+                    } finally {
+                        exit();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (!state.compareAndSet(IDLE, IO)) {
+                        return;
+                    }
+                    try {
+                        out.close();
+                    } finally {
+                        exit();
+                    }
+                }
+            };
+        }
+
+    }
+
+    private static void sendError(HttpServletResponse res, int status,
+            String message) {
+        if (res.isCommitted()) {
+            return;
+        }
+        try {
+            res.sendError(status, message);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Couldn't send error to client", ex);
+        }
+    }
+
+    private static long getLongParameter(ServletConfig config, String name,
+            long defaultValue) {
+        String value = config.getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    private static int getIntParameter(ServletConfig config, String name,
+            int defaultValue) {
+        String value = config.getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+}
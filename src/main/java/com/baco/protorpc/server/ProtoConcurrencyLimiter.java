@@ -0,0 +1,106 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.util.ProtoStripedCounter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free in-flight request limiter.
+ *
+ * Acquiring is a compare-and-set loop on the occupancy counter, it never
+ * blocks: a request over the limit is refused immediately. Occupancy is
+ * tracked even without a limit so it can be monitored.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoConcurrencyLimiter
+        implements ProtoConcurrencyLimiterMBean {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ProtoStripedCounter rejected = new ProtoStripedCounter();
+    private volatile int limit;
+
+    /**
+     * @param limit Maximum in-flight requests, 0 for no limit
+     */
+    public ProtoConcurrencyLimiter(final int limit) {
+        this.limit = Math.max(0, limit);
+    }
+
+    /**
+     * Takes a slot if the limit allows it, each successful call must be
+     * followed by a release
+     *
+     * @return True if the request may proceed
+     */
+    public boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            int max = limit;
+            if (max > 0 && current >= max) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a slot taken by tryAcquire
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void setLimit(final int limit) {
+        this.limit = Math.max(0, limit);
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+}
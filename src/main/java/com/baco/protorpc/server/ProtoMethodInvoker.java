@@ -0,0 +1,130 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.util.ProtoMethodCodec;
+import com.baco.protorpc.util.ProtoStreamSupport;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Invoker for a single service method.
+ *
+ * Access checks are suppressed once and the service implementation is kept,
+ * so each call is a plain Method.invoke that the JVM compiles to a direct
+ * call after a few invocations. Exceptions of the service method are thrown
+ * as they are, unwrapped from InvocationTargetException. A method handle
+ * kept in a field was measured slower, the JIT can't inline it unless the
+ * handle is a constant.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoMethodInvoker {
+
+    private final Method method;
+    private final Class<?>[] parameterTypes;
+    private final Object srvImplementation;
+    private final boolean streaming;
+    private volatile ProtoMethodCodec codec;
+
+    public ProtoMethodInvoker(final Object srvImplementation,
+            final Method method) throws IllegalArgumentException {
+        this.method = method;
+        this.srvImplementation = srvImplementation;
+        this.parameterTypes = method.getParameterTypes();
+        this.streaming = ProtoStreamSupport.isStreamType(method.getReturnType());
+        try {
+            method.setAccessible(true);
+        } catch (RuntimeException ex) {
+            /*
+             * SecurityException, or InaccessibleObjectException on Java 9
+             * and later. Public methods can still be invoked with checks
+             */
+        }
+    }
+
+    /**
+     * Invokes the service method
+     *
+     * @param values The method arguments, length must match parameter count
+     * @return The method result, null for void methods
+     * @throws Throwable Any exception thrown by the service method
+     */
+    public Object invoke(final Object[] values) throws Throwable {
+        try {
+            return method.invoke(srvImplementation, values);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * The service method
+     *
+     * @return The method
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * True if the method result is sent element by element
+     *
+     * @return True for Iterator, Iterable and ProtoStream results
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Codec of the typed arguments and result, built on first use
+     *
+     * @return The method codec
+     */
+    public ProtoMethodCodec getCodec() {
+        ProtoMethodCodec current = codec;
+        if (current == null) {
+            current = new ProtoMethodCodec(method);
+            codec = current;
+        }
+        return current;
+    }
+
+    /**
+     * Parameter count of the service method
+     *
+     * @return The parameter count
+     */
+    public int getParameterCount() {
+        return parameterTypes.length;
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.util.ProtoLatencyHistogram;
+import com.baco.protorpc.util.ProtoStripedCounter;
+import java.lang.reflect.Method;
+
+/**
+ * Metrics of a single service method.
+ *
+ * Recording only touches striped counters and histogram buckets, it
+ * doesn't allocate or lock.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoMethodMetrics
+        implements ProtoMethodMetricsMBean {
+
+    private final String service;
+    private final String method;
+    private final String methodHash;
+    private final ProtoStripedCounter count = new ProtoStripedCounter();
+    private final ProtoStripedCounter errors = new ProtoStripedCounter();
+    private final ProtoStripedCounter expired = new ProtoStripedCounter();
+    private final ProtoStripedCounter requestBytes = new ProtoStripedCounter();
+    private final ProtoStripedCounter responseBytes = new ProtoStripedCounter();
+    private final ProtoLatencyHistogram decode = new ProtoLatencyHistogram();
+    private final ProtoLatencyHistogram validate = new ProtoLatencyHistogram();
+    private final ProtoLatencyHistogram invoke = new ProtoLatencyHistogram();
+    private final ProtoLatencyHistogram encode = new ProtoLatencyHistogram();
+    private final ProtoLatencyHistogram total = new ProtoLatencyHistogram();
+    private final ProtoConcurrencyLimiter limiter;
+
+    public ProtoMethodMetrics(final Class<?> service, final Method method,
+            final String methodHash) {
+        this(service, method, methodHash, 0);
+    }
+
+    public ProtoMethodMetrics(final Class<?> service, final Method method,
+            final String methodHash, final int maxInFlight) {
+        this.service = service.getName();
+        this.method = method.getName();
+        this.methodHash = methodHash;
+        this.limiter = new ProtoConcurrencyLimiter(maxInFlight);
+    }
+
+    /**
+     * The in-flight limiter of the method
+     *
+     * @return The limiter
+     */
+    public ProtoConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Records a finished request
+     *
+     * @param rec The request recorder
+     * @param failed True if the request ended with an error response
+     */
+    public void record(final ProtoRequestRecorder rec, final boolean failed) {
+        count.increment();
+        if (failed) {
+            errors.increment();
+        }
+        if (rec.getRequestBytes() > 0) {
+            requestBytes.add(rec.getRequestBytes());
+        }
+        if (rec.getResponseBytes() > 0) {
+            responseBytes.add(rec.getResponseBytes());
+        }
+        long handshake = rec.getPhaseNanos(ProtoRequestRecorder.HANDSHAKE);
+        long decoded = rec.getPhaseNanos(ProtoRequestRecorder.DECODED);
+        if (handshake >= 0 && decoded >= 0) {
+            decode.record((handshake + decoded) / 1000l);
+        }
+        validate.record(micros(rec, ProtoRequestRecorder.VALIDATED));
+        invoke.record(micros(rec, ProtoRequestRecorder.INVOKED));
+        encode.record(micros(rec, ProtoRequestRecorder.WRITTEN));
+        total.record(rec.getElapsedNanos() / 1000l);
+    }
+
+    /**
+     * Records a call executed as part of a batch, only invocation time is
+     * measured since decoding and encoding are shared by the whole batch
+     *
+     * @param invokeNanos Invocation time
+     * @param failed True if the call ended with an error response
+     */
+    public void recordCall(final long invokeNanos, final boolean failed) {
+        count.increment();
+        if (failed) {
+            errors.increment();
+        }
+        invoke.record(invokeNanos / 1000l);
+        total.record(invokeNanos / 1000l);
+    }
+
+    /**
+     * Records a call whose work was skipped or cut short because its
+     * deadline passed or its caller gave up
+     */
+    public void recordExpired() {
+        expired.increment();
+    }
+
+    private static long micros(final ProtoRequestRecorder rec, final int phase) {
+        long nanos = rec.getPhaseNanos(phase);
+        return nanos < 0 ? -1l : nanos / 1000l;
+    }
+
+    @Override
+    public String getService() {
+        return service;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getMethodHash() {
+        return methodHash;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+        return limiter.getInFlight();
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return limiter.getLimit();
+    }
+
+    @Override
+    public void setMaxInFlight(int maxInFlight) {
+        limiter.setLimit(maxInFlight);
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return limiter.getRejectedCount();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    @Override
+    public long getDecodeMeanMicros() {
+        return decode.getMean();
+    }
+
+    @Override
+    public long getDecodeP99Micros() {
+        return decode.getPercentile(99d);
+    }
+
+    @Override
+    public long getValidateMeanMicros() {
+        return validate.getMean();
+    }
+
+    @Override
+    public long getValidateP99Micros() {
+        return validate.getPercentile(99d);
+    }
+
+    @Override
+    public long getInvokeMeanMicros() {
+        return invoke.getMean();
+    }
+
+    @Override
+    public long getInvokeP50Micros() {
+        return invoke.getPercentile(50d);
+    }
+
+    @Override
+    public long getInvokeP99Micros() {
+        return invoke.getPercentile(99d);
+    }
+
+    @Override
+    public long getInvokeMaxMicros() {
+        return invoke.getMax();
+    }
+
+    @Override
+    public long getEncodeMeanMicros() {
+        return encode.getMean();
+    }
+
+    @Override
+    public long getEncodeP99Micros() {
+        return encode.getPercentile(99d);
+    }
+
+    @Override
+    public long getTotalMeanMicros() {
+        return total.getMean();
+    }
+
+    @Override
+    public long getTotalP50Micros() {
+        return total.getPercentile(50d);
+    }
+
+    @Override
+    public long getTotalP99Micros() {
+        return total.getPercentile(99d);
+    }
+
+    @Override
+    public long getTotalMaxMicros() {
+        return total.getMax();
+    }
+
+    @Override
+    public void reset() {
+        count.reset();
+        errors.reset();
+        expired.reset();
+        requestBytes.reset();
+        responseBytes.reset();
+        decode.reset();
+        validate.reset();
+        invoke.reset();
+        encode.reset();
+        total.reset();
+    }
+
+}
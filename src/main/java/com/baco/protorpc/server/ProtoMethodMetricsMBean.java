@@ -0,0 +1,94 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+/**
+ * JMX view of a service method metrics. Latencies are in microseconds.
+ *
+ * @author deiby.nahuat
+ */
+public interface ProtoMethodMetricsMBean {
+
+    String getService();
+
+    String getMethod();
+
+    String getMethodHash();
+
+    long getCount();
+
+    long getErrorCount();
+
+    int getInFlight();
+
+    int getMaxInFlight();
+
+    void setMaxInFlight(int maxInFlight);
+
+    long getRejectedCount();
+
+    long getExpiredCount();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    long getDecodeMeanMicros();
+
+    long getDecodeP99Micros();
+
+    long getValidateMeanMicros();
+
+    long getValidateP99Micros();
+
+    long getInvokeMeanMicros();
+
+    long getInvokeP50Micros();
+
+    long getInvokeP99Micros();
+
+    long getInvokeMaxMicros();
+
+    long getEncodeMeanMicros();
+
+    long getEncodeP99Micros();
+
+    long getTotalMeanMicros();
+
+    long getTotalP50Micros();
+
+    long getTotalP99Micros();
+
+    long getTotalMaxMicros();
+
+    void reset();
+
+}
@@ -0,0 +1,179 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.util.ProtoConfig;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of service method metrics keyed by method hash, published as
+ * MBeans under the com.baco.protorpc domain.
+ *
+ * When another registry already published a name, for instance the same
+ * service served by a servlet and a NIO server, the name gets an instance
+ * key so both stay visible.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoMetricsRegistry {
+
+    public static final String JMX_DOMAIN = ProtoConfig.JMX_DOMAIN;
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final int instance = INSTANCES.incrementAndGet();
+
+    private final Map<String, ProtoMethodMetrics> metricsMap = new ConcurrentHashMap<String, ProtoMethodMetrics>();
+    private final Map<String, ProtoResultCache> cacheMap = new ConcurrentHashMap<String, ProtoResultCache>();
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    /**
+     * Gets the metrics of a method
+     *
+     * @param methodHash The method hash
+     * @return The metrics or null if the method isn't registered
+     */
+    public ProtoMethodMetrics get(final String methodHash) {
+        return metricsMap.get(methodHash);
+    }
+
+    /**
+     * Gets the result cache of a method
+     *
+     * @param methodHash The method hash
+     * @return The cache or null if the method isn't cacheable
+     */
+    public ProtoResultCache getCache(final String methodHash) {
+        return cacheMap.get(methodHash);
+    }
+
+    /**
+     * Result caches of all cacheable methods
+     *
+     * @return The caches
+     */
+    public Collection<ProtoResultCache> getCaches() {
+        return cacheMap.values();
+    }
+
+    /**
+     * Adds a method metrics and publishes it through JMX
+     *
+     * @param metrics The metrics
+     */
+    public synchronized void register(final ProtoMethodMetrics metrics) {
+        metricsMap.put(metrics.getMethodHash(), metrics);
+        publish(metrics, "ServiceMethod", metrics.getService(), metrics.
+                getMethod(), metrics.getMethodHash());
+    }
+
+    /**
+     * Adds a method result cache and publishes it through JMX
+     *
+     * @param cache The cache
+     */
+    public synchronized void register(final ProtoResultCache cache) {
+        cacheMap.put(cache.getMethodHash(), cache);
+        publish(cache, "ResultCache", cache.getService(), cache.getMethod(),
+                cache.getMethodHash());
+    }
+
+    /**
+     * Publishes the server wide in-flight limiter of a service through JMX
+     *
+     * @param service The service interface
+     * @param limiter The limiter
+     */
+    public synchronized void register(final Class<?> service,
+            final ProtoConcurrencyLimiter limiter) {
+        publish(limiter, new StringBuilder(JMX_DOMAIN)
+                .append(":type=ServiceLimiter,service=")
+                .append(service.getName())
+                .toString(), service.getName());
+    }
+
+    private void publish(Object mbean, String type, String service,
+            String method, String methodHash) {
+        publish(mbean, new StringBuilder(JMX_DOMAIN)
+                .append(":type=").append(type)
+                .append(",service=").append(service)
+                .append(",method=").append(method)
+                .append(",hash=").append(methodHash)
+                .toString(), service + "." + method);
+    }
+
+    private void publish(Object mbean, String objectName, String owner) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                name = new ObjectName(objectName + ",instance=" + instance);
+                LOG.log(Level.INFO, "MBean " + objectName
+                        + " already registered, publishing " + name + " for "
+                        + owner);
+            }
+            server.registerMBean(mbean, name);
+            registeredNames.add(name);
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Couldn't register MBean " + objectName
+                    + " for " + owner, ex);
+        }
+    }
+
+    /**
+     * Removes all published MBeans
+     */
+    public synchronized void unregisterAll() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException ex) {
+                LOG.log(Level.FINE, "Couldn't unregister metrics MBean "
+                        + name, ex);
+            }
+        }
+        registeredNames.clear();
+    }
+
+}
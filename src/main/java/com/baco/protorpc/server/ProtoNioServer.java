@@ -0,0 +1,688 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.api.ProtoContext;
+import com.baco.protorpc.api.SessionValidator;
+import com.baco.protorpc.util.ProtoFraming;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Standalone ProtoRpc server over persistent multiplexed TCP connections.
+ *
+ * Each request message holds the same bytes a client POSTs to ProtoServlet
+ * (handshake plus request envelope) and is framed as described in
+ * ProtoFraming. Requests on a connection run concurrently and every
+ * response carries the correlation id of its request, so responses may be
+ * sent out of order. Responses are written one fragment at a time, the
+ * ones already complete first and the shortest pending first, so small
+ * responses don't wait behind a large one. A response is handed over as
+ * each fragment fills, and its worker waits while a few fragments are
+ * still unsent, so streamed results keep a flat memory use. A single
+ * selector thread does all socket I/O and service
+ * methods run on the worker executor through the usual ProtoProxy and
+ * SessionValidator chain. A request is cancelled when the client sends a
+ * cancel fragment for it or the connection closes.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoNioServer
+        implements Closeable {
+
+    /* Requests running per connection before reads are paused */
+    private static final int MAX_IN_FLIGHT = 256;
+    /* Fragments of a response waiting to be sent before its worker waits */
+    private static final int MAX_QUEUED_FRAGMENTS = 4;
+    /* Unfinished request bytes held per connection */
+    private static final int MAX_PARTIAL_BYTES = ProtoFraming.MAX_MESSAGE_SIZE;
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+
+    private final ProtoProxy proxy;
+    private final InetSocketAddress bindAddress;
+    private final ExecutorService workers;
+    private final boolean ownsWorkers;
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    public ProtoNioServer(final Object srvImplementation,
+            final Class<?> srvDescriptor,
+            final SessionValidator[] sessionValidators,
+            final InetSocketAddress bindAddress) {
+        this(srvImplementation, srvDescriptor, sessionValidators, bindAddress,
+                null);
+    }
+
+    /**
+     * Creates a server
+     *
+     * @param srvImplementation The service implementation
+     * @param srvDescriptor The service interface
+     * @param sessionValidators Session validators, may be null
+     * @param bindAddress Address to listen on
+     * @param workers Executor running the requests, if null a fixed pool is
+     * created and shut down on close
+     */
+    public ProtoNioServer(final Object srvImplementation,
+            final Class<?> srvDescriptor,
+            final SessionValidator[] sessionValidators,
+            final InetSocketAddress bindAddress,
+            final ExecutorService workers) {
+        this.proxy = new ProtoProxy(srvImplementation, srvDescriptor,
+                sessionValidators);
+        this.bindAddress = bindAddress;
+        if (workers == null) {
+            this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().
+                    availableProcessors() * 2, new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "protorpc-nio-worker-"
+                                    + counter.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            this.ownsWorkers = true;
+        } else {
+            this.workers = workers;
+            this.ownsWorkers = false;
+        }
+    }
+
+    /**
+     * Binds the server socket and starts the selector thread
+     *
+     * @throws IOException If the address can't be bound
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(bindAddress);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "protorpc-nio-" + getLocalAddress().getPort());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * The address the server is listening on
+     *
+     * @return The bound address
+     */
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException ex) {
+            return bindAddress;
+        }
+    }
+
+    /**
+     * The proxy dispatching requests, exposes its metrics
+     *
+     * @return The service proxy
+     */
+    public ProtoProxy getProxy() {
+        return proxy;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        selector.close();
+        serverChannel.close();
+        if (ownsWorkers) {
+            workers.shutdown();
+        }
+        proxy.destroy();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                processCompleted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection conn = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                conn.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.write();
+                            }
+                        }
+                    } catch (IOException ex) {
+                        LOG.log(Level.FINE, "Closing connection after I/O error",
+                                ex);
+                        if (key.attachment() != null) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ex) {
+            LOG.log(Level.FINE, "Selector closed", ex);
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "ProtoNioServer selector failed", ex);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * Hands finished responses to their connections, runs on the selector
+     * thread
+     */
+    private void processCompleted() {
+        Connection conn;
+        while ((conn = completed.poll()) != null) {
+            try {
+                conn.onResponse();
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Closing connection after I/O error", ex);
+                conn.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Error closing channel", ex);
+        }
+    }
+
+    /**
+     * A fragment of a response
+     */
+    static final class Chunk {
+
+        final ByteBuffer data;
+        final boolean last;
+
+        Chunk(ByteBuffer data, boolean last) {
+            this.data = data;
+            this.last = last;
+        }
+
+    }
+
+    /**
+     * A response being written. Its worker adds fragments as they fill and
+     * waits for credits while MAX_QUEUED_FRAGMENTS are unsent, the selector
+     * thread sends them and gives the credits back.
+     */
+    static final class Outbound {
+
+        final int correlationId;
+        final Queue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+        final Semaphore credits = new Semaphore(MAX_QUEUED_FRAGMENTS);
+        final AtomicInteger queuedBytes = new AtomicInteger();
+        volatile boolean complete;
+        volatile boolean failed;
+        /* Selector thread only */
+        boolean active;
+
+        Outbound(int correlationId) {
+            this.correlationId = correlationId;
+        }
+
+    }
+
+    /**
+     * Stream splitting a response in fragments, each fragment is handed to
+     * the connection when it fills and the last one on close
+     */
+    static final class FrameOutputStream
+            extends OutputStream {
+
+        private final Outbound outbound;
+        private final Connection conn;
+        private byte[] buf = new byte[512];
+        private int count;
+        private boolean closed;
+
+        FrameOutputStream(Outbound outbound, Connection conn) {
+            this.outbound = outbound;
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Response already sent");
+            }
+            while (len > 0) {
+                if (count == buf.length) {
+                    if (count == ProtoFraming.MAX_FRAGMENT_SIZE) {
+                        emit(false);
+                    } else {
+                        byte[] grown = new byte[Math.min(buf.length * 2,
+                                ProtoFraming.MAX_FRAGMENT_SIZE)];
+                        System.arraycopy(buf, 0, grown, 0, count);
+                        buf = grown;
+                    }
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                emit(true);
+                closed = true;
+            }
+        }
+
+        private void emit(boolean last) throws IOException {
+            try {
+                while (!outbound.credits.tryAcquire(100,
+                        TimeUnit.MILLISECONDS)) {
+                    if (conn.isClosed()) {
+                        throw new IOException("Connection closed");
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending response",
+                        ex);
+            }
+            outbound.queuedBytes.addAndGet(count);
+            outbound.chunks.add(new Chunk(ByteBuffer.wrap(buf, 0, count),
+                    last));
+            if (last) {
+                outbound.complete = true;
+            } else {
+                buf = new byte[ProtoFraming.MAX_FRAGMENT_SIZE];
+            }
+            count = 0;
+            conn.post(outbound);
+        }
+
+    }
+
+    /**
+     * Connection state. Fields without synchronization are only touched by
+     * the selector thread.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final SocketAddress remoteAddress;
+        private final ByteBuffer header = ByteBuffer.allocate(
+                ProtoFraming.HEADER_SIZE);
+        private final Map<Integer, ByteArrayOutputStream> partials = new HashMap<Integer, ByteArrayOutputStream>();
+        private final ConcurrentMap<Integer, ProtoContext> calls = new ConcurrentHashMap<Integer, ProtoContext>();
+        private final Queue<Outbound> responses = new ConcurrentLinkedQueue<Outbound>();
+        private final List<Outbound> writing = new ArrayList<Outbound>();
+        private final ByteBuffer fragmentHeader = ByteBuffer.allocate(
+                ProtoFraming.HEADER_SIZE);
+        private final ByteBuffer[] fragment = new ByteBuffer[2];
+        private ByteBuffer body;
+        private int bodyCorrelationId;
+        private byte bodyFlags;
+        private Outbound current;
+        private boolean currentFinal;
+        private int inFlight;
+        private int partialBytes;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.remoteAddress = channel.getRemoteAddress();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        void read() throws IOException {
+            while (true) {
+                if (body == null) {
+                    if (channel.read(header) < 0) {
+                        close();
+                        return;
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    header.flip();
+                    int length = header.getInt();
+                    bodyCorrelationId = header.getInt();
+                    bodyFlags = header.get();
+                    header.clear();
+                    if (length < 0 || length > ProtoFraming.MAX_FRAGMENT_SIZE) {
+                        throw new IOException("Invalid fragment length " + length);
+                    }
+                    body = ByteBuffer.allocate(length);
+                }
+                if (body.hasRemaining() && channel.read(body) < 0) {
+                    close();
+                    return;
+                }
+                if (body.hasRemaining()) {
+                    return;
+                }
+                if ((bodyFlags & ProtoFraming.FLAG_CANCEL) != 0) {
+                    onCancel(bodyCorrelationId);
+                } else {
+                    onFragment(bodyCorrelationId, (bodyFlags
+                            & ProtoFraming.FLAG_FINAL) != 0, body.array());
+                }
+                body = null;
+                if (inFlight >= MAX_IN_FLIGHT) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Adds a fragment to its message. Unfinished messages are bounded
+         * in count and bytes, a client going over is disconnected
+         */
+        private void onFragment(int correlationId, boolean last, byte[] data)
+                throws IOException {
+            ByteArrayOutputStream partial = partials.get(correlationId);
+            if (last && partial == null) {
+                dispatch(correlationId, data);
+                return;
+            }
+            if (partial == null) {
+                if (partials.size() >= MAX_IN_FLIGHT) {
+                    throw new IOException("Too many unfinished messages");
+                }
+                partial = new ByteArrayOutputStream(data.length * 2);
+                partials.put(correlationId, partial);
+            }
+            if (partial.size() + data.length > ProtoFraming.MAX_MESSAGE_SIZE
+                    || partialBytes + data.length > MAX_PARTIAL_BYTES) {
+                throw new IOException("Message too large");
+            }
+            partial.write(data);
+            partialBytes += data.length;
+            if (last) {
+                partials.remove(correlationId);
+                partialBytes -= partial.size();
+                dispatch(correlationId, partial.toByteArray());
+            }
+        }
+
+        /**
+         * The client gave up on a request, drops its fragments or cancels it
+         * if it's running
+         */
+        private void onCancel(int correlationId) {
+            ByteArrayOutputStream partial = partials.remove(correlationId);
+            if (partial != null) {
+                partialBytes -= partial.size();
+            }
+            ProtoContext context = calls.get(correlationId);
+            if (context != null) {
+                context.cancel();
+            }
+        }
+
+        private void dispatch(final int correlationId, final byte[] message) {
+            inFlight++;
+            final ProtoContext context = ProtoContext.withTimeout(0);
+            calls.put(correlationId, context);
+            try {
+                workers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Outbound outbound = new Outbound(correlationId);
+                        FrameOutputStream fos = new FrameOutputStream(outbound,
+                                Connection.this);
+                        try {
+                            proxy.invoke(remoteAddress, message.length,
+                                    new ByteArrayInputStream(message), fos,
+                                    context);
+                            fos.close();
+                        } catch (Throwable ex) {
+                            if (!closed) {
+                                LOG.log(Level.SEVERE,
+                                        "Request failed, closing connection",
+                                        ex);
+                            }
+                            /* Errors fail the call too, then propagate */
+                            outbound.failed = true;
+                            post(outbound);
+                            if (ex instanceof Error) {
+                                throw (Error) ex;
+                            }
+                        } finally {
+                            calls.remove(correlationId, context);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                calls.remove(correlationId);
+                LOG.log(Level.WARNING,
+                        "Request rejected by worker pool, closing connection");
+                close();
+            }
+        }
+
+        /**
+         * Tells the selector thread a response has a new fragment or failed
+         */
+        void post(Outbound outbound) {
+            responses.add(outbound);
+            completed.add(this);
+            selector.wakeup();
+        }
+
+        void onResponse() throws IOException {
+            Outbound response = responses.poll();
+            if (response == null || !key.isValid()) {
+                return;
+            }
+            if (response.failed) {
+                close();
+                return;
+            }
+            if (!response.active) {
+                response.active = true;
+                writing.add(response);
+            }
+            write();
+        }
+
+        /**
+         * Picks the response to send a fragment of: complete ones before
+         * those still being produced, then the one with fewer queued bytes
+         */
+        private Outbound next() {
+            Outbound best = null;
+            for (Outbound candidate : writing) {
+                if (candidate.chunks.isEmpty()) {
+                    continue;
+                }
+                if (best == null || (candidate.complete && !best.complete)
+                        || (candidate.complete == best.complete
+                        && candidate.queuedBytes.get() < best.queuedBytes.
+                        get())) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Writes pending responses one fragment at a time, picking the
+         * next response after each fragment
+         */
+        void write() throws IOException {
+            while (true) {
+                if (current == null) {
+                    current = next();
+                    if (current == null) {
+                        key.interestOps(key.interestOps()
+                                & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    Chunk chunk = current.chunks.poll();
+                    currentFinal = chunk.last;
+                    fragmentHeader.clear();
+                    fragmentHeader.putInt(chunk.data.remaining())
+                            .putInt(current.correlationId)
+                            .put(currentFinal ? ProtoFraming.FLAG_FINAL : 0);
+                    fragmentHeader.flip();
+                    fragment[0] = fragmentHeader;
+                    fragment[1] = chunk.data;
+                }
+                channel.write(fragment);
+                if (fragmentHeader.hasRemaining() || fragment[1].
+                        hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                current.queuedBytes.addAndGet(-fragment[1].limit());
+                current.credits.release();
+                if (currentFinal) {
+                    writing.remove(current);
+                    inFlight--;
+                    if (inFlight < MAX_IN_FLIGHT) {
+                        key.interestOps(key.interestOps()
+                                | SelectionKey.OP_READ);
+                    }
+                }
+                current = null;
+                fragment[1] = null;
+            }
+        }
+
+        void close() {
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            for (ProtoContext context : calls.values()) {
+                context.cancel();
+            }
+        }
+
+    }
+
+}
@@ -30,16 +30,31 @@
  */
 package com.baco.protorpc.server;
 
+import com.baco.protorpc.api.ProtoCacheable;
+import com.baco.protorpc.api.ProtoConcurrencyLimit;
+import com.baco.protorpc.api.ProtoContext;
+import com.baco.protorpc.api.ProtoSession;
+import com.baco.protorpc.api.ProtoSessionDelta;
 import com.baco.protorpc.api.SessionValidator;
 import com.baco.protorpc.exceptions.ClientRequestNullException;
+import com.baco.protorpc.exceptions.ClientRequestRejectedException;
+import com.baco.protorpc.exceptions.DeadlineExceededException;
 import com.baco.protorpc.exceptions.MethodDoesntExistsException;
 import com.baco.protorpc.exceptions.ProtoException;
 import com.baco.protorpc.exceptions.RemoteServerException;
+import com.baco.protorpc.exceptions.StaleManifestException;
+import com.baco.protorpc.exceptions.StaleSessionException;
 import com.baco.protorpc.exceptions.WrongNumberOfArgumentsException;
+import com.baco.protorpc.util.BatchRequestEnvelope;
+import com.baco.protorpc.util.BatchResponseEnvelope;
+import com.baco.protorpc.util.PacketEnvelope;
 import com.baco.protorpc.util.ProtoBufferPool;
 import com.baco.protorpc.util.ProtoConfig;
 import com.baco.protorpc.util.ProtoEncoders;
 import com.baco.protorpc.util.ProtoHandshake;
+import com.baco.protorpc.util.ProtoPacketOutputStream;
+import com.baco.protorpc.util.ProtoServiceManifest;
+import com.baco.protorpc.util.ProtoStreamSupport;
 import com.baco.protorpc.util.RequestEnvelope;
 import com.baco.protorpc.util.ResponseEnvelope;
 import io.protostuff.Input;
@@ -47,6 +62,7 @@ import io.protostuff.JsonIOUtil;
 import io.protostuff.LinkedBuffer;
 import io.protostuff.Output;
 import io.protostuff.Pipe;
+import io.protostuff.GraphIOUtil;
 import io.protostuff.ProtostuffIOUtil;
 import io.protostuff.Schema;
 import io.protostuff.WireFormat;
@@ -61,17 +77,25 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.SocketAddress;
 import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.http.HttpServletRequest;
 import org.iq80.snappy.SnappyInputStream;
 import org.iq80.snappy.SnappyOutputStream;
@@ -89,22 +113,35 @@ public class ProtoProxy {
     private final Object srvImplementation;
     private final Class srvDescriptor;
     private final SessionValidator[] sessionValidators;
-    private final Map<String, Method> methodMap;
+    private final Map<String, ProtoMethodInvoker> methodMap;
+    private final ProtoServiceManifest manifest;
+    private final ProtoMethodInvoker[] invokersById;
+    private final ProtoMetricsRegistry metricsRegistry;
+    private final ProtoConcurrencyLimiter limiter;
+    /* Validated sessions by token, null when tokens are disabled */
+    private final ProtoSessionCache sessionCache;
+    private final Schema<RequestEnvelope> schema;
+    private final Schema<ResponseEnvelope> schemaResp;
+    private final Schema<BatchRequestEnvelope> schemaBatch;
+    private final Schema<BatchResponseEnvelope> schemaBatchResp;
+    private final Schema<PacketEnvelope> schemaPacket;
+    /* Pool running batched calls, created on first batch if not set */
+    private ExecutorService batchExecutor;
+    private boolean ownsBatchExecutor;
 
     protected ProtoProxy(final Object srvImplementation,
             final Class srvDescriptor,
             final SessionValidator[] sessionValidators) throws IllegalArgumentException {
         this.srvImplementation = srvImplementation;
         this.sessionValidators = sessionValidators;
-        this.methodMap = new ConcurrentHashMap<String, Method>();
+        this.methodMap = new ConcurrentHashMap<String, ProtoMethodInvoker>();
+        this.metricsRegistry = new ProtoMetricsRegistry();
+        this.limiter = new ProtoConcurrencyLimiter(ProtoConfig.
+                getServerMaxInFlight());
+        this.sessionCache = ProtoConfig.getSessionCacheSize() > 0
+                ? new ProtoSessionCache(ProtoConfig.getSessionCacheSize(),
+                        ProtoConfig.getSessionCacheTtlMillis()) : null;
         this.srvDescriptor = srvDescriptor;
-        /*
-         * Fill method map
-         */
-        Method[] methods = srvDescriptor.getMethods();
-        for (Method method : methods) {
-            methodMap.put(ProtoEncoders.getMethodNameAsSha1(method), method);
-        }
 
         if (srvImplementation == null) {
             throw new IllegalArgumentException(
@@ -115,6 +152,173 @@ public class ProtoProxy {
                     "Service " + srvImplementation + " doesn't implements " + srvDescriptor.
                     getName());
         }
+        /**
+         * Prepare schemas for wrappers
+         */
+        DefaultIdStrategy dis = (DefaultIdStrategy) RuntimeEnv.ID_STRATEGY;
+        dis.registerDelegate(TIMESTAMP_DELEGATE);
+        dis.registerDelegate(DATE_DELEGATE);
+        dis.registerDelegate(TIME_DELEGATE);
+        schema = RuntimeSchema.getSchema(RequestEnvelope.class);
+        schemaResp = RuntimeSchema.getSchema(ResponseEnvelope.class);
+        schemaBatch = RuntimeSchema.getSchema(BatchRequestEnvelope.class);
+        schemaBatchResp = RuntimeSchema.getSchema(BatchResponseEnvelope.class);
+        schemaPacket = RuntimeSchema.getSchema(PacketEnvelope.class);
+        /*
+         * Fill dispatch table, one invoker per service method.
+         * Keys are the manifest strings so lookups of numbered requests
+         * compare by identity.
+         */
+        this.manifest = new ProtoServiceManifest(srvDescriptor);
+        this.invokersById = new ProtoMethodInvoker[manifest.size()];
+        Method[] methods = srvDescriptor.getMethods();
+        for (Method method : methods) {
+            int methodId = manifest.indexOf(ProtoEncoders.getMethodNameAsSha1(
+                    method));
+            String methodHash = manifest.getMethodHash(methodId);
+            invokersById[methodId] = new ProtoMethodInvoker(srvImplementation,
+                    method);
+            methodMap.put(methodHash, invokersById[methodId]);
+            ProtoConcurrencyLimit limit = method.getAnnotation(
+                    ProtoConcurrencyLimit.class);
+            metricsRegistry.register(new ProtoMethodMetrics(srvDescriptor,
+                    method, methodHash, limit != null ? limit.value() : 0));
+            ProtoCacheable cacheable = method.getAnnotation(
+                    ProtoCacheable.class);
+            if (cacheable != null) {
+                metricsRegistry.register(new ProtoResultCache(srvDescriptor,
+                        method, methodHash, cacheable));
+            }
+        }
+        metricsRegistry.register(srvDescriptor, limiter);
+    }
+
+    /**
+     * Releases proxy resources, unpublishing its metrics
+     */
+    protected void destroy() {
+        metricsRegistry.unregisterAll();
+        synchronized (this) {
+            if (ownsBatchExecutor) {
+                batchExecutor.shutdown();
+            }
+            batchExecutor = null;
+            ownsBatchExecutor = false;
+        }
+    }
+
+    /**
+     * Sets the maximum number of requests executing at the same time across
+     * all service methods
+     *
+     * @param maxInFlight The limit, 0 for no limit
+     */
+    public void setConcurrencyLimit(final int maxInFlight) {
+        limiter.setLimit(maxInFlight);
+    }
+
+    /**
+     * Sets the maximum number of requests executing a service method at the
+     * same time, overriding its @ProtoConcurrencyLimit
+     *
+     * @param method The service interface method
+     * @param maxInFlight The limit, 0 for no limit
+     */
+    public void setConcurrencyLimit(final Method method, final int maxInFlight) {
+        ProtoMethodMetrics metrics = metricsRegistry.get(ProtoEncoders.
+                getMethodNameAsSha1(method));
+        if (metrics == null) {
+            throw new IllegalArgumentException("Method " + method.getName()
+                    + " is not a method of " + srvDescriptor.getName());
+        }
+        metrics.getLimiter().setLimit(maxInFlight);
+    }
+
+    /**
+     * Removes the cached responses of a service method
+     *
+     * @param method The service interface method
+     */
+    public void invalidateCache(final Method method) {
+        ProtoResultCache cache = metricsRegistry.getCache(ProtoEncoders.
+                getMethodNameAsSha1(method));
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Sessions cached for session tokens
+     *
+     * @return The cache or null if protorpc.session.cache.size is 0
+     */
+    public ProtoSessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    /**
+     * Removes the cached responses of all service methods
+     */
+    public void invalidateCaches() {
+        for (ProtoResultCache cache : metricsRegistry.getCaches()) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Sets the pool running batched calls. By default a fixed pool of
+     * protorpc.batch.threads daemon threads is created on the first batch.
+     *
+     * @param batchExecutor The executor, it won't be shut down by the proxy
+     */
+    public synchronized void setBatchExecutor(
+            final ExecutorService batchExecutor) {
+        if (ownsBatchExecutor) {
+            this.batchExecutor.shutdown();
+        }
+        this.batchExecutor = batchExecutor;
+        this.ownsBatchExecutor = false;
+    }
+
+    private synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null) {
+            final String poolName = "protorpc-batch-" + srvDescriptor.
+                    getSimpleName() + "-";
+            int threads = Math.max(1, ProtoConfig.getBatchThreads());
+            batchExecutor = new ThreadPoolExecutor(threads, threads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, poolName + counter.
+                                    incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            ownsBatchExecutor = true;
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * Numbering of the service methods published to clients
+     *
+     * @return The service manifest
+     */
+    public ProtoServiceManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Metrics of the service methods
+     *
+     * @return The metrics registry
+     */
+    public ProtoMetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
     }
 
     /**
@@ -127,82 +331,81 @@ public class ProtoProxy {
      */
     public void invoke(HttpServletRequest servletRequest, InputStream is,
             OutputStream os) throws Exception {
+        invoke(ProtoRequestRecorder.begin(servletRequest), is, os);
+    }
+
+    /**
+     * Invokes the requested method for a request received outside a servlet
+     * container
+     *
+     * @param remoteAddress Client address
+     * @param contentLength Request size in bytes
+     * @param is Request Input
+     * @param os Response Output
+     * @throws Exception
+     */
+    public void invoke(SocketAddress remoteAddress, int contentLength,
+            InputStream is, OutputStream os) throws Exception {
+        invoke(remoteAddress, contentLength, is, os, null);
+    }
+
+    /**
+     * Invokes the requested method for a request received outside a servlet
+     * container whose caller may give up before it ends
+     *
+     * @param remoteAddress Client address
+     * @param contentLength Request size in bytes
+     * @param is Request Input
+     * @param os Response Output
+     * @param context Context cancelled when the caller gives up, the call
+     * runs within it
+     * @throws Exception
+     */
+    public void invoke(SocketAddress remoteAddress, int contentLength,
+            InputStream is, OutputStream os, ProtoContext context)
+            throws Exception {
+        invoke(ProtoRequestRecorder.begin(remoteAddress, contentLength), is,
+                os, context);
+    }
+
+    private void invoke(ProtoRequestRecorder rec, InputStream is,
+            OutputStream os) throws Exception {
+        invoke(rec, is, os, null);
+    }
+
+    private void invoke(ProtoRequestRecorder rec, InputStream is,
+            OutputStream os, ProtoContext outer) throws Exception {
+        ProtoMethodMetrics metrics = null;
+        ProtoConcurrencyLimiter methodLimiter = null;
+        boolean failed = true;
         LinkedBuffer buffer = null;
         try {
-            /**
-             * Prepare schemas
-             */
-            DefaultIdStrategy dis = (DefaultIdStrategy) RuntimeEnv.ID_STRATEGY;
-            dis.registerDelegate(TIMESTAMP_DELEGATE);
-            dis.registerDelegate(DATE_DELEGATE);
-            dis.registerDelegate(TIME_DELEGATE);
-            Schema<RequestEnvelope> schema = RuntimeSchema.getSchema(
-                    RequestEnvelope.class);
-            Schema<ResponseEnvelope> schemaResp = RuntimeSchema.getSchema(
-                    ResponseEnvelope.class);
-            Schema<ProtoHandshake> schemaProto = RuntimeSchema.getSchema(
-                    ProtoHandshake.class);
-
             buffer = ProtoBufferPool.takeBuffer();
             buffer.clear();
 
-            /**
-             * LOG BLOCK
-             */
-            String logName = "ProtoClient";
-            String requestUuid = UUID.randomUUID().toString();
-            Integer stepCounter = 0;
-            long elapsedTime = 0l;
-            long startedTime = System.currentTimeMillis();
-            String messageLog = new StringBuilder(stepCounter.toString())
-                    .append(".(")
-                    .append(servletRequest.getRemoteAddr()).append(":")
-                    .append(servletRequest.getRemotePort()).append(")")
-                    .append(".(")
-                    .append(requestUuid)
-                    .append(") - Incoming request (s=")
-                    .append(servletRequest.getContentLength())
-                    .append("B)")
-                    .append(". start=")
-                    .append(startedTime)
-                    .append("ms.")
-                            .toString();
-            Logger.getLogger(logName).log(Level.INFO, messageLog);
-            stepCounter++;
-            /**
-             * END LOG BLOCK
-             */
             /**
              * Read protocol handshake
              */
-            ProtoHandshake ph = schemaProto.newMessage();
-            ProtostuffIOUtil.mergeDelimitedFrom(is, ph, schemaProto, buffer);
-            buffer.clear();
-
-            /**
-             * LOG BLOCK
-             */
-            elapsedTime = System.currentTimeMillis() - startedTime;
-            messageLog = new StringBuilder(stepCounter.toString())
-                    .append(".(")
-                    .append(servletRequest.getRemoteAddr()).append(":")
-                    .append(servletRequest.getRemotePort()).append(")")
-                    .append(".(")
-                    .append(requestUuid)
-                    .append(") - Handshake packet found.")
-                    .append(" Handshake attrs[")
-                    .append("compressed=").append(ph.getCompressed()).append(",")
-                    .append("data_encoding=").append(ph.getRequestedProtocol()==0?"protostuff,":"json,")
-                    .append("json_numerical=").append(ph.getJsonNumerical()).append("]")
-                    .append(". elapsed=")
-                    .append(elapsedTime)
-                    .append("ms.")
-                    .toString();
-            Logger.getLogger(logName).log(Level.FINE, messageLog);
-            stepCounter++;
-            /**
-             * END LOG BLOCK
+            ProtoHandshake ph = ProtoHandshake.readFrom(is);
+            rec.mark(ProtoRequestRecorder.HANDSHAKE);
+            if (rec.isTraced()) {
+                rec.trace(new StringBuilder("Handshake packet found.")
+                        .append(" Handshake attrs[")
+                        .append("compressed=").append(ph.getCompressed()).append(",")
+                        .append("data_encoding=").append(ph.getRequestedProtocol()==0?"protostuff,":"json,")
+                        .append("json_numerical=").append(ph.getJsonNumerical()).append("]")
+                        .toString());
+            }
+            /*
+             * Call context, it expires when the client stops waiting
              */
+            ProtoContext context = outer != null ? outer.child(ph.
+                    getTimeoutMillis()) : ProtoContext.withTimeout(ph.
+                    getTimeoutMillis());
+            if (ph.getBatch()) {
+                invokeBatch(rec, ph, is, os, buffer, context);
+                return;
+            }
 
             /**
              * Obtain decompressed input stream
@@ -218,34 +421,17 @@ public class ProtoProxy {
              * Obtain request from decompressed input stream
              */
             RequestEnvelope request = schema.newMessage();
-            if (ph.getRequestedProtocol() == 0) {
+            if (ph.getRequestedProtocol() == 0 && ph.getGraph()) {
+                GraphIOUtil.mergeFrom(sis, request, schema);
+            } else if (ph.getRequestedProtocol() == 0) {
                 ProtostuffIOUtil.mergeFrom(sis, request, schema);
             } else {
                 JsonIOUtil.
                         mergeFrom(sis, request, schema, ph.getJsonNumerical());
             }
             sis.close();
-
-            /**
-             * LOG BLOCK
-             */
-            elapsedTime = System.currentTimeMillis() - startedTime;
-            messageLog = new StringBuilder(stepCounter.toString())
-                    .append(".(")
-                    .append(servletRequest.getRemoteAddr()).append(":")
-                    .append(servletRequest.getRemotePort()).append(")")
-                    .append(".(")
-                    .append(requestUuid)
-                    .append(") - Request data unpacked")
-                    .append(". elapsed=")
-                    .append(elapsedTime)
-                    .append("ms.")
-                    .toString();
-            Logger.getLogger(logName).log(Level.FINE, messageLog);
-            stepCounter++;
-            /**
-             * END LOG BLOCK
-             */
+            rec.mark(ProtoRequestRecorder.DECODED);
+            rec.trace("Request data unpacked");
 
             /**
              * Obtain compressed output stream
@@ -259,416 +445,713 @@ public class ProtoProxy {
             /*
              * Check request validity
              */
-            if (request == null || request.getMethodName() == null || request.
-                    getMethodName().trim().isEmpty()) {
-                ResponseEnvelope response = new ResponseEnvelope(1, null,
-                        new ClientRequestNullException(null));
-                try {
-                    if (ph.getRequestedProtocol() == 0) {
-                        ProtostuffIOUtil.writeTo(sos, response, schemaResp,
-                                buffer);
-                    } else {
-                        JsonIOUtil.writeTo(sos, response, schemaResp,
-                                ph.getJsonNumerical(), buffer);
-                    }
-                } finally {
-                    buffer.clear();
-                    sos.close();
-                }
-
-                /**
-                 * LOG BLOCK
-                 */
-                elapsedTime = System.currentTimeMillis() - startedTime;
-                messageLog = new StringBuilder(stepCounter.toString())
-                        .append(".(")
-                        .append(servletRequest.getRemoteAddr()).append(":")
-                        .append(servletRequest.getRemotePort()).append(")")
-                        .append(".(")
-                        .append(requestUuid)
-                        .append(") - Request data invalid.")
+            if (request == null || (request.getMethodId() == null && (request.
+                    getMethodName() == null || request.getMethodName().trim().
+                    isEmpty()))) {
+                writeResponse(ph, sos, new ResponseEnvelope(1, null,
+                        new ClientRequestNullException(null)), buffer);
+                rec.severe(new StringBuilder("Request data invalid.")
                         .append(" Applied checks=[")
                         .append("request_not_null=").append(request == null?"failed,":"passed,")
                         .append("methodname_not_empty=").append(request == null?"failed"
                                                         :(request.getMethodName()==null?"failed"
                                                         :(request.getMethodName().trim().isEmpty()?"failed":"passed")))
                         .append("]")
-                        .append(". elapsed=")
-                        .append(elapsedTime)
-                        .append("ms.")
-                        .toString();
-                Logger.getLogger(logName).log(Level.SEVERE, messageLog);
-                stepCounter++;
-                /**
-                 * END LOG BLOCK
-                 */
-
+                        .toString(), null);
+                return;
+            }
+            if (ProtoServiceManifest.MANIFEST_METHOD.equals(request.
+                    getMethodName())) {
+                writeResponse(ph, sos, new ResponseEnvelope(0, manifest, null),
+                        buffer);
+                rec.trace("Service manifest sent");
+                return;
+            }
+            /*
+             * Resolve numbered requests through the manifest
+             */
+            String methodHash = methodHash(ph, request);
+            if (methodHash == null) {
+                writeResponse(ph, sos, stale(request), buffer);
+                rec.trace("Request rejected, client manifest is stale");
                 return;
             }
             /*
              * Check if method exists
              */
-            if (methodMap.get(request.getMethodName()) == null) {
-                ResponseEnvelope response = new ResponseEnvelope(1, null,
-                        new MethodDoesntExistsException(request.getMethodName(),
+            ProtoMethodInvoker invoker = request.getMethodId() != null
+                    ? invokersById[request.getMethodId()]
+                    : methodMap.get(methodHash);
+            if (invoker == null) {
+                writeResponse(ph, sos, new ResponseEnvelope(1, null,
+                        new MethodDoesntExistsException(methodHash,
                                 new IllegalArgumentException(
                                         "Protoservice, requested method doesn't exists"
-                                ).fillInStackTrace()));
-                try {
-                    if (ph.getRequestedProtocol() == 0) {
-                        ProtostuffIOUtil.writeTo(sos, response, schemaResp,
-                                buffer);
-                    } else {
-                        JsonIOUtil.writeTo(sos, response, schemaResp,
-                                ph.getJsonNumerical(), buffer);
-                    }
-                } finally {
-                    buffer.clear();
-                    sos.close();
+                                ).fillInStackTrace())), buffer);
+                rec.severe(new StringBuilder("Service with hash='")
+                        .append(methodHash).append("' ")
+                        .append(" is not registered at this server")
+                        .toString(), null);
+                return;
+            }
+            /*
+             * Enforce in-flight limits before any further work
+             */
+            ProtoConcurrencyLimiter rejectedBy = acquire(methodHash);
+            if (rejectedBy != null) {
+                writeResponse(ph, sos, reject(rejectedBy, invoker), buffer);
+                if (rec.isTraced()) {
+                    rec.trace(new StringBuilder("Request rejected, '")
+                            .append(srvDescriptor.getName()).append(".")
+                            .append(invoker.getMethod().getName())
+                            .append("' is over its in-flight limit")
+                            .toString());
                 }
-
-                /**
-                 * LOG BLOCK
-                 */
-                elapsedTime = System.currentTimeMillis() - startedTime;
-                messageLog = new StringBuilder(stepCounter.toString())
-                        .append(".(")
-                        .append(servletRequest.getRemoteAddr()).append(":")
-                        .append(servletRequest.getRemotePort()).append(")")
-                        .append(".(")
-                        .append(requestUuid)
-                        .append(") - Service with hash='")
-                        .append(request.getMethodName()).append("' ")
-                        .append(" is not registered at this server.")
-                        .append(". elapsed=")
-                        .append(elapsedTime)
-                        .append("ms.")
-                        .toString();
-                Logger.getLogger(logName).log(Level.SEVERE, messageLog);
-                stepCounter++;
-                /**
-                 * END LOG BLOCK
-                 */
                 return;
             }
+            methodLimiter = metricsRegistry.get(methodHash).getLimiter();
 
             /**
              * Obtain request attributes
              */
-            Object[] values = request.getValues();
-            Method method = methodMap.get(request.getMethodName());
-            Class<?>[] args = method.getParameterTypes();
-
-            /**
-             * LOG BLOCK
-             */
-            elapsedTime = System.currentTimeMillis() - startedTime;
-            messageLog = new StringBuilder(stepCounter.toString())
-                    .append(".(")
-                    .append(servletRequest.getRemoteAddr()).append(":")
-                    .append(servletRequest.getRemotePort()).append(")")
-                    .append(".(")
-                    .append(requestUuid)
-                    .append(") - Requested service '")
-                    .append(srvDescriptor.getName()).append(".")
-                    .append(method.getName()).append("' with [")
-                    .append("local_parameter_count=").append(args.length)
-                    .append(",request_parameter_count=").append(values.length)
-                    .append("]. elapsed=")
-                    .append(elapsedTime)
-                    .append("ms.")
-                    .toString();
-            Logger.getLogger(logName).log(Level.FINE, messageLog);
-            stepCounter++;
-            /**
-             * END LOG BLOCK
-             */
-
+            Object[] values = values(invoker, request);
+            Method method = invoker.getMethod();
+            rec.setMethod(srvDescriptor, method);
+            metrics = metricsRegistry.get(methodHash);
+            rec.mark(ProtoRequestRecorder.RESOLVED);
+            if (rec.isTraced()) {
+                rec.trace(new StringBuilder("Requested service '")
+                        .append(srvDescriptor.getName()).append(".")
+                        .append(method.getName()).append("' with [")
+                        .append("local_parameter_count=").append(invoker.getParameterCount())
+                        .append(",request_parameter_count=").append(values == null
+                                ? "undecodable" : String.valueOf(values.length))
+                        .append("]")
+                        .toString());
+            }
 
             /*
              * Check if number of arguments are equal to number of attrs on the
              * stored method
              */
-            if (values.length != args.length) {
-                ResponseEnvelope response = new ResponseEnvelope(1, null,
-                        new WrongNumberOfArgumentsException(request.
-                                getMethodName(),
+            if (values == null || values.length != invoker.getParameterCount()) {
+                writeResponse(ph, sos, new ResponseEnvelope(1, null,
+                        new WrongNumberOfArgumentsException(methodHash,
                                 new IllegalArgumentException(
                                         "Protoservice, wrong number of arguments in request"
-                                ).fillInStackTrace()));
-                try {
-                    if (ph.getRequestedProtocol() == 0) {
-                        ProtostuffIOUtil.writeTo(sos, response, schemaResp,
-                                buffer);
-                    } else {
-                        JsonIOUtil.writeTo(sos, response, schemaResp,
-                                ph.getJsonNumerical(), buffer);
-                    }
-                } finally {
-                    buffer.clear();
-                    sos.close();
-                }
-
-                /**
-                 * LOG BLOCK
-                 */
-                elapsedTime = System.currentTimeMillis() - startedTime;
-                messageLog = new StringBuilder(stepCounter.toString())
-                        .append(".(")
-                        .append(servletRequest.getRemoteAddr()).append(":")
-                        .append(servletRequest.getRemotePort()).append(")")
-                        .append(".(")
-                        .append(requestUuid)
-                        .append(") - Requested service has a different argument count than local implementation.")
-                        .append(" Maybe the remote server uses a different API version")
-                        .append(". elapsed=")
-                        .append(elapsedTime)
-                        .append("ms.")
-                        .toString();
-                Logger.getLogger(logName).log(Level.SEVERE, messageLog);
-                stepCounter++;
-                /**
-                 * END LOG BLOCK
-                 */
-
+                                ).fillInStackTrace())), buffer);
+                rec.severe("Requested service has a different argument count than local implementation."
+                        + " Maybe the remote server uses a different API version", null);
                 return;
             }
+            /*
+             * Resolve sessions sent by token, a cached session passed its
+             * validations already unless the client changed it
+             */
+            ProtoSession session = request.getSession();
+            Long sessionToken = request.getSessionToken();
+            boolean validated = false;
+            if (sessionToken != null && sessionToken != 0) {
+                ProtoSession cached = sessionCache != null ? sessionCache.
+                        get(sessionToken) : null;
+                if (cached == null) {
+                    writeResponse(ph, sos, staleSession(), buffer);
+                    rec.trace("Request rejected, session token expired");
+                    return;
+                }
+                ProtoSessionDelta delta = request.getSessionDelta();
+                validated = delta == null || delta.isEmpty();
+                session = validated ? cached : delta.applyTo(cached);
+                if (validated) {
+                    rec.trace("Request session found in session cache");
+                }
+            }
+            /* Sessions validated here get a token if the client uses them */
+            ProtoSession issuing = !validated && sessionToken != null
+                    && sessionCache != null && !ph.getStreamed() ? session
+                    : null;
             /**
              * Process session validators
              */
-            if (sessionValidators != null && sessionValidators.length > 0) {
+            if (!validated && sessionValidators != null
+                    && sessionValidators.length > 0) {
                 try {
                     for (SessionValidator sv : sessionValidators) {
-                        sv.checkSessionValid(request.getSession());
+                        sv.checkSessionValid(session);
                     }
-                    /**
-                     * LOG BLOCK
-                     */
-                    elapsedTime = System.currentTimeMillis() - startedTime;
-                    messageLog = new StringBuilder(stepCounter.toString())
-                            .append(".(")
-                            .append(servletRequest.getRemoteAddr()).append(":")
-                            .append(servletRequest.getRemotePort()).append(")")
-                            .append(".(")
-                            .append(requestUuid)
-                            .append(") - Request passed all session validations.")
-                            .append(". elapsed=")
-                            .append(elapsedTime)
-                            .append("ms.")
-                            .toString();
-                    Logger.getLogger(logName).log(Level.FINE, messageLog);
-                    stepCounter++;
-                    /**
-                     * END LOG BLOCK
-                     */
+                    rec.trace("Request passed all session validations");
                 } catch (ProtoException ex) {
                     /**
                      * Si ocurre algun error se devuelve el motivo
                      */
-                    ResponseEnvelope response = new ResponseEnvelope(1, null, ex);
-                    try {
-                        if (ph.getRequestedProtocol() == 0) {
-                            ProtostuffIOUtil.writeTo(sos, response, schemaResp,
-                                    buffer);
-                        } else {
-                            JsonIOUtil.writeTo(sos, response, schemaResp,
-                                    ph.getJsonNumerical(), buffer);
-                        }
-                    } finally {
-                        buffer.clear();
-                        sos.close();
-                    }
-                    /**
-                     * LOG BLOCK
-                     */
-                    elapsedTime = System.currentTimeMillis() - startedTime;
-                    messageLog = new StringBuilder(stepCounter.toString())
-                            .append(".(")
-                            .append(servletRequest.getRemoteAddr()).append(":")
-                            .append(servletRequest.getRemotePort()).append(")")
-                            .append(".(")
-                            .append(requestUuid)
-                            .append(") - Request invalid. Session validations not passed.")
-                            .append(". elapsed=")
-                            .append(elapsedTime)
-                            .append("ms.")
-                            .toString();
-                    Logger.getLogger(logName).log(Level.SEVERE, messageLog, ex);
-                    stepCounter++;
-                    /**
-                     * END LOG BLOCK
-                     */
+                    writeResponse(ph, sos, new ResponseEnvelope(1, null, ex),
+                            buffer);
+                    rec.severe("Request invalid. Session validations not passed",
+                            ex);
                     return;
                 }
             }
+            rec.mark(ProtoRequestRecorder.VALIDATED);
+            /*
+             * Skip calls the client isn't waiting for anymore
+             */
+            if (context.isCancelled()) {
+                metrics.recordExpired();
+                writeResponse(ph, sos, abandoned(context), buffer);
+                rec.trace("Request abandoned by the client before invocation");
+                return;
+            }
+            /*
+             * Serve cacheable methods from the encoded response cache
+             */
+            ProtoResultCache cache = ph.getStreamed() ? null
+                    : metricsRegistry.getCache(methodHash);
+            byte[] cacheArgs = null;
+            int cacheEncoding = 0;
+            if (cache != null && request.getArguments() != null) {
+                /* Typed arguments are already a canonical encoding */
+                cacheArgs = request.getArguments();
+                cacheEncoding = 3;
+            } else if (cache != null) {
+                try {
+                    /* Graph arguments may hold cycles */
+                    cacheArgs = ph.getGraph() ? GraphIOUtil.toByteArray(
+                            new PacketEnvelope(values), schemaPacket, buffer)
+                            : ProtostuffIOUtil.toByteArray(
+                            new PacketEnvelope(values), schemaPacket, buffer);
+                } finally {
+                    buffer.clear();
+                }
+                cacheEncoding = ph.getRequestedProtocol() != 0
+                        ? (ph.getJsonNumerical() ? 2 : 1)
+                        : (ph.getGraph() ? 4 : 0);
+            }
+            byte[] cached = cache != null ? cache.get(cacheEncoding, cacheArgs)
+                    : null;
+            if (cached != null) {
+                rec.mark(ProtoRequestRecorder.INVOKED);
+                rec.trace("Response found in cache");
+                try {
+                    sos.write(cached);
+                } finally {
+                    sos.close();
+                }
+                rec.setResponseBytes(cached.length);
+                rec.mark(ProtoRequestRecorder.WRITTEN);
+                failed = false;
+                rec.complete();
+                return;
+            }
             /*
              * Invoke method
              */
             Object result = null;
             try {
-                /**
-                 * LOG BLOCK
-                 */
-                elapsedTime = System.currentTimeMillis() - startedTime;
-                messageLog = new StringBuilder(stepCounter.toString())
-                        .append(".(")
-                        .append(servletRequest.getRemoteAddr()).append(":")
-                        .append(servletRequest.getRemotePort()).append(")")
-                        .append(".(")
-                        .append(requestUuid)
-                        .append(") - '")
-                        .append(srvDescriptor.getName()).append(".")
-                        .append(method.getName()).append("' execution begins now")
-                        .append(". elapsed=")
-                        .append(elapsedTime)
-                        .append("ms.")
-                        .toString();
-                Logger.getLogger(logName).log(Level.FINE, messageLog);
-                stepCounter++;
-                /**
-                 * END LOG BLOCK
-                 */
-
                 /**
                  * Call proxy method
                  */
-                result = method.invoke(srvImplementation, values);
-
-                /**
-                 * LOG BLOCK
-                 */
-                elapsedTime = System.currentTimeMillis() - startedTime;
-                messageLog = new StringBuilder(stepCounter.toString())
-                        .append(".(")
-                        .append(servletRequest.getRemoteAddr()).append(":")
-                        .append(servletRequest.getRemotePort()).append(")")
-                        .append(".(")
-                        .append(requestUuid)
-                        .append(") - '")
-                        .append(srvDescriptor.getName()).append(".")
-                        .append(method.getName()).append("' executed.")
-                        .append(". elapsed=")
-                        .append(elapsedTime)
-                        .append("ms.")
-                        .toString();
-                Logger.getLogger(logName).log(Level.INFO, messageLog);
-                stepCounter++;
-                /**
-                 * END LOG BLOCK
-                 */
-            } catch (Exception e) {
-                Throwable e1 = e;
-                /**
-                 * Desenvolver ProtoException
-                 */
-                if (e1 instanceof InvocationTargetException) {
-                    e1 = ((InvocationTargetException) e).getTargetException();
-                }
-                /**
-                 * Preparacion de respuesta
-                 */
-                ResponseEnvelope response = new ResponseEnvelope(1, null,
-                        new RemoteServerException(e1));
+                ProtoContext previous = ProtoContext.attach(context);
                 try {
-                    if (ph.getRequestedProtocol() == 0) {
-                        ProtostuffIOUtil.writeTo(sos, response, schemaResp,
-                                buffer);
-                    } else {
-                        JsonIOUtil.writeTo(sos, response, schemaResp,
-                                ph.getJsonNumerical(), buffer);
-                    }
+                    result = invoker.invoke(values);
                 } finally {
-                    buffer.clear();
-                    sos.close();
+                    ProtoContext.detach(previous);
                 }
-
+                if (invoker.isStreaming() && !ph.getStreamed()) {
+                    /*
+                     * Client can't read a stream, send the elements as a list
+                     */
+                    result = ProtoStreamSupport.toList(result);
+                }
+                rec.mark(ProtoRequestRecorder.INVOKED);
+                rec.trace("Service method executed");
+            } catch (Error err) {
+                /* The JVM is in trouble, don't hide it as a remote failure */
+                throw err;
+            } catch (Throwable e1) {
                 /**
-                 * LOG BLOCK
+                 * Preparacion de respuesta
                  */
-                elapsedTime = System.currentTimeMillis() - startedTime;
-                messageLog = new StringBuilder(stepCounter.toString())
-                        .append(".(")
-                        .append(servletRequest.getRemoteAddr()).append(":")
-                        .append(servletRequest.getRemotePort()).append(")")
-                        .append(".(")
-                        .append(requestUuid)
-                        .append(") - '")
+                writeResponse(ph, sos, issue(new ResponseEnvelope(1, null,
+                        new RemoteServerException(e1)), issuing), buffer);
+                rec.severe(new StringBuilder("'")
                         .append(srvDescriptor.getName()).append(".")
                         .append(method.getName()).append("' executed with errors")
-                        .append(". elapsed=")
-                        .append(elapsedTime)
-                        .append("ms.")
-                        .toString();
-                Logger.getLogger(logName).log(Level.SEVERE, messageLog, e1);
-                stepCounter++;
-                /**
-                 * END LOG BLOCK
-                 */
+                        .toString(), e1);
+                return;
+            }
+            /*
+             * Don't encode a result nobody waits for
+             */
+            if (context.isCancelled()) {
+                metrics.recordExpired();
+                ProtoStreamSupport.closeQuietly(result);
+                writeResponse(ph, sos, abandoned(context), buffer);
+                rec.trace("Request abandoned by the client before encoding");
                 return;
             }
             /*
              * Write response to output
              */
-            ResponseEnvelope response = new ResponseEnvelope(0, result, null);
-            Integer outputLength = 0;
+            if (invoker.isStreaming() && ph.getStreamed()) {
+                ResponseEnvelope trailer = writeStream(rec, sos, result,
+                        context, metrics);
+                if (trailer.getStatus() > 0) {
+                    rec.severe(new StringBuilder("'")
+                            .append(srvDescriptor.getName()).append(".")
+                            .append(method.getName())
+                            .append("' failed while streaming its result")
+                            .toString(), trailer.getThrowable());
+                    return;
+                }
+            } else if (cache != null && issuing == null) {
+                byte[] encoded = encodeResponse(ph, success(invoker, request,
+                        result, buffer), buffer);
+                cache.put(cacheEncoding, cacheArgs, encoded);
+                try {
+                    sos.write(encoded);
+                } finally {
+                    sos.close();
+                }
+                rec.setResponseBytes(encoded.length);
+            } else {
+                rec.setResponseBytes(writeResponse(ph, sos,
+                        issue(success(invoker, request, result, buffer),
+                                issuing), buffer));
+            }
+            rec.mark(ProtoRequestRecorder.WRITTEN);
+            failed = false;
+            rec.complete();
+        } finally {
+            if (methodLimiter != null) {
+                methodLimiter.release();
+                limiter.release();
+            }
+            if (metrics != null) {
+                metrics.record(rec, failed);
+            }
+            rec.end();
+            if (buffer != null) {
+                ProtoBufferPool.returnBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Runs a batch of calls sharing one session validation and returns all
+     * responses in one message. Calls run in parallel on the batch executor
+     * and each response carries its own status.
+     */
+    private void invokeBatch(ProtoRequestRecorder rec, final ProtoHandshake ph,
+            InputStream is, OutputStream os, LinkedBuffer buffer,
+            final ProtoContext context) throws IOException {
+        InputStream sis = ph.getCompressed() ? new SnappyInputStream(is) : is;
+        BatchRequestEnvelope batch = schemaBatch.newMessage();
+        if (ph.getRequestedProtocol() == 0 && ph.getGraph()) {
+            GraphIOUtil.mergeFrom(sis, batch, schemaBatch);
+        } else if (ph.getRequestedProtocol() == 0) {
+            ProtostuffIOUtil.mergeFrom(sis, batch, schemaBatch);
+        } else {
+            JsonIOUtil.mergeFrom(sis, batch, schemaBatch, ph.getJsonNumerical());
+        }
+        sis.close();
+        rec.mark(ProtoRequestRecorder.DECODED);
+        OutputStream sos = ph.getCompressed() ? new SnappyOutputStream(os) : os;
+
+        RequestEnvelope[] calls = batch.getRequests() != null ? batch.
+                getRequests() : new RequestEnvelope[0];
+        ResponseEnvelope[] responses = new ResponseEnvelope[calls.length];
+        if (rec.isTraced()) {
+            rec.trace(new StringBuilder("Batch request data unpacked. calls=")
+                    .append(calls.length)
+                    .toString());
+        }
+        /*
+         * Whole batch rejections, every call gets the same response
+         */
+        ResponseEnvelope rejection = null;
+        if (calls.length > ProtoConfig.getBatchMaxSize()) {
+            rejection = new ResponseEnvelope(1, null,
+                    new ClientRequestRejectedException("batch of "
+                            + calls.length + " calls exceeds the limit of "
+                            + ProtoConfig.getBatchMaxSize(), null));
+            rec.severe("Batch rejected, too many calls", null);
+        } else if (sessionValidators != null && sessionValidators.length > 0) {
             try {
-                /**
-                 * LOG BLOCK
-                 */
-                elapsedTime = System.currentTimeMillis() - startedTime;
-                messageLog = new StringBuilder(stepCounter.toString())
-                        .append(".(")
-                        .append(servletRequest.getRemoteAddr()).append(":")
-                        .append(servletRequest.getRemotePort()).append(")")
-                        .append(".(")
-                        .append(requestUuid)
-                        .append(") - Writing data to remote.")
-                        .append(". elapsed=")
-                        .append(elapsedTime)
-                        .append("ms.")
-                        .toString();
-                Logger.getLogger(logName).log(Level.FINE, messageLog);
-                stepCounter++;
-                /**
-                 * END LOG BLOCK
-                 */
-                if (ph.getRequestedProtocol() == 0) {
-                    outputLength = ProtostuffIOUtil.writeTo(sos, response, schemaResp,
-                            buffer);
-                } else {
-                    JsonIOUtil.writeTo(sos, response, schemaResp,
-                            ph.getJsonNumerical(), buffer);
+                for (SessionValidator sv : sessionValidators) {
+                    sv.checkSessionValid(batch.getSession());
+                }
+                rec.trace("Batch passed all session validations");
+            } catch (ProtoException ex) {
+                rejection = new ResponseEnvelope(1, null, ex);
+                rec.severe("Batch invalid. Session validations not passed",
+                        ex);
+            }
+        }
+        rec.mark(ProtoRequestRecorder.VALIDATED);
+        if (rejection != null) {
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = rejection;
+            }
+        } else if (calls.length == 1) {
+            responses[0] = execute(ph, calls[0], context);
+        } else if (calls.length > 1) {
+            List<Callable<ResponseEnvelope>> tasks = new ArrayList<Callable<ResponseEnvelope>>(
+                    calls.length);
+            for (final RequestEnvelope call : calls) {
+                tasks.add(new Callable<ResponseEnvelope>() {
+
+                    @Override
+                    public ResponseEnvelope call() {
+                        return execute(ph, call, context);
+                    }
+                });
+            }
+            try {
+                List<Future<ResponseEnvelope>> results = getBatchExecutor().
+                        invokeAll(tasks);
+                for (int i = 0; i < responses.length; i++) {
+                    try {
+                        responses[i] = results.get(i).get();
+                    } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof Error) {
+                            throw (Error) ex.getCause();
+                        }
+                        responses[i] = new ResponseEnvelope(1, null,
+                                new RemoteServerException(ex.getCause()));
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for (int i = 0; i < responses.length; i++) {
+                    if (responses[i] == null) {
+                        responses[i] = new ResponseEnvelope(1, null,
+                                new RemoteServerException(ex));
+                    }
                 }
+            }
+        }
+        rec.mark(ProtoRequestRecorder.INVOKED);
+        if (rejection == null) {
+            for (int i = 0; i < responses.length; i++) {
+                if (responses[i].getStatus() > 0 && !(responses[i].
+                        getThrowable() instanceof ClientRequestRejectedException)) {
+                    rec.severe(new StringBuilder("Batch call ").append(i)
+                            .append(" executed with errors").toString(),
+                            responses[i].getThrowable());
+                }
+            }
+        }
+        rec.setResponseBytes(writeResponse(ph, sos, new BatchResponseEnvelope(
+                responses), schemaBatchResp, buffer));
+        rec.mark(ProtoRequestRecorder.WRITTEN);
+        rec.complete();
+    }
+
+    /**
+     * Executes a single batched call, session was already validated
+     */
+    private ResponseEnvelope execute(ProtoHandshake ph,
+            RequestEnvelope request, ProtoContext context) {
+        if (request == null || (request.getMethodId() == null && (request.
+                getMethodName() == null || request.getMethodName().trim().
+                isEmpty()))) {
+            return new ResponseEnvelope(1, null,
+                    new ClientRequestNullException(null));
+        }
+        String methodHash = methodHash(ph, request);
+        if (methodHash == null) {
+            return stale(request);
+        }
+        ProtoMethodInvoker invoker = request.getMethodId() != null
+                ? invokersById[request.getMethodId()]
+                : methodMap.get(methodHash);
+        if (invoker == null) {
+            return new ResponseEnvelope(1, null,
+                    new MethodDoesntExistsException(methodHash,
+                            new IllegalArgumentException(
+                                    "Protoservice, requested method doesn't exists"
+                            ).fillInStackTrace()));
+        }
+        Object[] values = values(invoker, request);
+        if (values == null || values.length != invoker.getParameterCount()) {
+            return new ResponseEnvelope(1, null,
+                    new WrongNumberOfArgumentsException(methodHash,
+                            new IllegalArgumentException(
+                                    "Protoservice, wrong number of arguments in request"
+                            ).fillInStackTrace()));
+        }
+        ProtoConcurrencyLimiter rejectedBy = acquire(methodHash);
+        if (rejectedBy != null) {
+            return reject(rejectedBy, invoker);
+        }
+        ProtoMethodMetrics metrics = metricsRegistry.get(methodHash);
+        if (context.isCancelled()) {
+            metrics.getLimiter().release();
+            limiter.release();
+            metrics.recordExpired();
+            return abandoned(context);
+        }
+        long start = System.nanoTime();
+        ResponseEnvelope response;
+        ProtoContext previous = ProtoContext.attach(context);
+        try {
+            Object result = invoker.invoke(values);
+            if (invoker.isStreaming()) {
+                result = ProtoStreamSupport.toList(result);
+            }
+            if (request.getArguments() == null) {
+                response = new ResponseEnvelope(0, result, null);
+            } else {
+                LinkedBuffer buffer = ProtoBufferPool.takeBuffer();
+                try {
+                    response = success(invoker, request, result, buffer);
+                } finally {
+                    ProtoBufferPool.returnBuffer(buffer);
+                }
+            }
+        } catch (Error err) {
+            /* Same as single calls, Errors aren't remote failures */
+            throw err;
+        } catch (Throwable e1) {
+            response = new ResponseEnvelope(1, null,
+                    new RemoteServerException(e1));
+        } finally {
+            ProtoContext.detach(previous);
+            metrics.getLimiter().release();
+            limiter.release();
+        }
+        if (metrics != null) {
+            metrics.recordCall(System.nanoTime() - start,
+                    response.getStatus() > 0);
+        }
+        return response;
+    }
+
+    /**
+     * Arguments of a request, typed requests are decoded with the method
+     * schema
+     *
+     * @return The arguments or null if they couldn't be decoded
+     */
+    private static Object[] values(ProtoMethodInvoker invoker,
+            RequestEnvelope request) {
+        if (request.getArguments() == null) {
+            return request.getValues() != null ? request.getValues()
+                    : new Object[0];
+        }
+        try {
+            return invoker.getCodec().decodeArguments(request.getArguments());
+        } catch (IOException ex) {
+            return null;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Successful response, typed requests are answered with a typed result
+     */
+    private static ResponseEnvelope success(ProtoMethodInvoker invoker,
+            RequestEnvelope request, Object result, LinkedBuffer buffer) {
+        if (request.getArguments() == null) {
+            return new ResponseEnvelope(0, result, null);
+        }
+        return new ResponseEnvelope(invoker.getCodec().encodeResult(result,
+                buffer));
+    }
+
+    /**
+     * Takes a service and a method in-flight slot
+     *
+     * @return Null if both were taken, otherwise the limiter that refused
+     */
+    private ProtoConcurrencyLimiter acquire(String methodHash) {
+        if (!limiter.tryAcquire()) {
+            return limiter;
+        }
+        ProtoConcurrencyLimiter methodLimiter = metricsRegistry.get(methodHash).
+                getLimiter();
+        if (!methodLimiter.tryAcquire()) {
+            limiter.release();
+            return methodLimiter;
+        }
+        return null;
+    }
+
+    private ResponseEnvelope reject(ProtoConcurrencyLimiter rejectedBy,
+            ProtoMethodInvoker invoker) {
+        String reason = rejectedBy == limiter
+                ? "too many concurrent requests to " + srvDescriptor.getName()
+                : "too many concurrent requests to " + srvDescriptor.getName()
+                + "." + invoker.getMethod().getName();
+        return new ResponseEnvelope(1, null,
+                new ClientRequestRejectedException(reason, null));
+    }
+
+    /**
+     * Resolves the hash of the requested method, numbered requests are
+     * resolved by position in the manifest
+     *
+     * @return The method hash or null if the client numbering is stale
+     */
+    private String methodHash(ProtoHandshake ph, RequestEnvelope request) {
+        Integer methodId = request.getMethodId();
+        if (methodId == null) {
+            return request.getMethodName();
+        }
+        if (ph.getManifest() != manifest.getVersion() || methodId < 0
+                || methodId >= manifest.size()) {
+            return null;
+        }
+        return manifest.getMethodHash(methodId);
+    }
+
+    private ResponseEnvelope stale(RequestEnvelope request) {
+        return new ResponseEnvelope(1, null, new StaleManifestException(
+                "method " + request.getMethodId() + " of "
+                + srvDescriptor.getName() + " must be sent by name", null));
+    }
+
+    private ResponseEnvelope staleSession() {
+        return new ResponseEnvelope(1, null, new StaleSessionException(
+                "the session must be sent again to "
+                + srvDescriptor.getName(), null));
+    }
+
+    /**
+     * Adds a token for a validated session to a response
+     *
+     * @param issuing The session or null if the client gets no token
+     */
+    private ResponseEnvelope issue(ResponseEnvelope response,
+            ProtoSession issuing) {
+        return issuing == null ? response : response.withSessionToken(
+                sessionCache.put(issuing));
+    }
+
+    /**
+     * Response of a call whose client stopped waiting for it
+     */
+    private static ResponseEnvelope abandoned(ProtoContext context) {
+        return new ResponseEnvelope(1, null, new DeadlineExceededException(
+                context.isExpired() ? "deadline passed" : "call cancelled",
+                null));
+    }
+
+    /**
+     * Writes a response envelope and closes the output stream
+     *
+     * @param ph Client handshake
+     * @param sos Response output
+     * @param response The response
+     * @param buffer Write buffer
+     * @return Bytes written for protostuff encoding, -1 for json
+     * @throws IOException
+     */
+    private int writeResponse(ProtoHandshake ph, OutputStream sos,
+            ResponseEnvelope response, LinkedBuffer buffer) throws IOException {
+        if (ph.getStreamed()) {
+            /*
+             * Streaming clients read the status as the last packet
+             */
+            try {
+                return ProtostuffIOUtil.writeDelimitedTo(sos,
+                        new PacketEnvelope(null, response), schemaPacket,
+                        buffer);
             } finally {
                 buffer.clear();
                 sos.close();
-                /**
-                 * LOG BLOCK
-                 */
-                elapsedTime = System.currentTimeMillis() - startedTime;
-                messageLog = new StringBuilder(stepCounter.toString())
-                        .append(".(")
-                        .append(servletRequest.getRemoteAddr()).append(":")
-                        .append(servletRequest.getRemotePort()).append(")")
-                        .append(".(")
-                        .append(requestUuid)
-                        .append(") - ")
-                        .append(outputLength).append(" bytes written.")
-
-                        .append(". elapsed=")
-                        .append(elapsedTime)
-                        .append("ms.")
-                        .toString();
-                Logger.getLogger(logName).log(Level.INFO, messageLog);
-                stepCounter++;
-                /**
-                 * END LOG BLOCK
-                 */
             }
+        }
+        return writeResponse(ph, sos, response, schemaResp, buffer);
+    }
+
+    /**
+     * Writes each element of a streamed result as a packet followed by a
+     * packet with the final status, then closes the output stream and the
+     * result. Elements are encoded one by one so the result is never held
+     * in memory, and the stream stops once the client gives up.
+     *
+     * @return The final status
+     */
+    private ResponseEnvelope writeStream(ProtoRequestRecorder rec,
+            OutputStream sos, Object result, ProtoContext context,
+            ProtoMethodMetrics metrics) throws IOException {
+        ProtoPacketOutputStream pos = new ProtoPacketOutputStream(sos);
+        int bytes = 0;
+        int count = 0;
+        ResponseEnvelope trailer;
+        try {
+            try {
+                Iterator<?> it = ProtoStreamSupport.iterator(result);
+                while (it.hasNext() && !context.isCancelled()) {
+                    bytes += pos.writePacket(new PacketEnvelope(it.next()));
+                    count++;
+                }
+                if (context.isCancelled()) {
+                    if (metrics != null) {
+                        metrics.recordExpired();
+                    }
+                    trailer = abandoned(context);
+                } else {
+                    trailer = new ResponseEnvelope(0, null, null);
+                }
+            } catch (RuntimeException ex) {
+                trailer = new ResponseEnvelope(1, null,
+                        new RemoteServerException(ex));
+            } finally {
+                ProtoStreamSupport.closeQuietly(result);
+            }
+            bytes += pos.writePacket(new PacketEnvelope(null, trailer));
         } finally {
-            if (buffer != null) {
-                ProtoBufferPool.returnBuffer(buffer);
+            pos.close();
+        }
+        rec.setResponseBytes(bytes);
+        if (rec.isTraced()) {
+            rec.trace(new StringBuilder("Result streamed. elements=")
+                    .append(count)
+                    .toString());
+        }
+        return trailer;
+    }
+
+    private <T> int writeResponse(ProtoHandshake ph, OutputStream sos,
+            T response, Schema<T> responseSchema, LinkedBuffer buffer) throws IOException {
+        try {
+            if (ph.getRequestedProtocol() == 0 && ph.getGraph()) {
+                return GraphIOUtil.writeTo(sos, response, responseSchema,
+                        buffer);
+            } else if (ph.getRequestedProtocol() == 0) {
+                return ProtostuffIOUtil.writeTo(sos, response, responseSchema,
+                        buffer);
+            } else {
+                JsonIOUtil.writeTo(sos, response, responseSchema,
+                        ph.getJsonNumerical(), buffer);
+                return -1;
             }
+        } finally {
+            buffer.clear();
+            sos.close();
+        }
+    }
+
+    /**
+     * Encodes a response envelope to a byte array
+     */
+    private byte[] encodeResponse(ProtoHandshake ph, ResponseEnvelope response,
+            LinkedBuffer buffer) {
+        try {
+            if (ph.getRequestedProtocol() == 0 && ph.getGraph()) {
+                return GraphIOUtil.toByteArray(response, schemaResp, buffer);
+            } else if (ph.getRequestedProtocol() == 0) {
+                return ProtostuffIOUtil.toByteArray(response, schemaResp,
+                        buffer);
+            } else {
+                return JsonIOUtil.toByteArray(response, schemaResp,
+                        ph.getJsonNumerical(), buffer);
+            }
+        } finally {
+            buffer.clear();
         }
     }
 
@@ -0,0 +1,310 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.util.ProtoConfig;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Per-request event recorder.
+ *
+ * One preallocated instance is reused per thread. Phase timestamps are kept
+ * as primitives and text is only built when the matching log level is
+ * enabled (FINE for traces, INFO for the sampled completion summary) or on
+ * error paths.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoRequestRecorder {
+
+    public static final int RECEIVED = 0;
+    public static final int HANDSHAKE = 1;
+    public static final int DECODED = 2;
+    public static final int RESOLVED = 3;
+    public static final int VALIDATED = 4;
+    public static final int INVOKED = 5;
+    public static final int WRITTEN = 6;
+    public static final int PHASE_COUNT = 7;
+
+    static final Logger LOG = Logger.getLogger("ProtoClient");
+
+    /* Request ids are handed out per thread in blocks of this size */
+    private static final int ID_BLOCK_SIZE = 4096;
+    private static final AtomicLong ID_BLOCKS = new AtomicLong();
+    private static final String NODE_PREFIX = Integer.toHexString(
+            new Random().nextInt());
+    private static final int SAMPLE_RATE = ProtoConfig.getLogSampleRate();
+
+    private static final ThreadLocal<ProtoRequestRecorder> RECORDERS = new ThreadLocal<ProtoRequestRecorder>() {
+
+        @Override
+        protected ProtoRequestRecorder initialValue() {
+            return new ProtoRequestRecorder();
+        }
+
+    };
+
+    private final long[] phaseNanos = new long[PHASE_COUNT];
+    private long nextId;
+    private long idLimit;
+    private long requestId;
+    private int stepCounter;
+    private boolean sampled;
+    private HttpServletRequest servletRequest;
+    private SocketAddress remoteAddress;
+    private Class<?> service;
+    private Method method;
+    private int requestBytes;
+    private int responseBytes;
+
+    private ProtoRequestRecorder() {
+    }
+
+    /**
+     * Starts recording a request on the current thread
+     *
+     * @param servletRequest The client request
+     * @return The thread recorder
+     */
+    public static ProtoRequestRecorder begin(
+            final HttpServletRequest servletRequest) {
+        ProtoRequestRecorder rec = RECORDERS.get();
+        rec.reset();
+        rec.servletRequest = servletRequest;
+        rec.requestBytes = servletRequest.getContentLength();
+        rec.traceBegin();
+        return rec;
+    }
+
+    /**
+     * Starts recording a request received outside a servlet container
+     *
+     * @param remoteAddress The client address
+     * @param requestBytes The request size
+     * @return The thread recorder
+     */
+    public static ProtoRequestRecorder begin(final SocketAddress remoteAddress,
+            final int requestBytes) {
+        ProtoRequestRecorder rec = RECORDERS.get();
+        rec.reset();
+        rec.remoteAddress = remoteAddress;
+        rec.requestBytes = requestBytes;
+        rec.traceBegin();
+        return rec;
+    }
+
+    private void traceBegin() {
+        if (isTraced()) {
+            trace(new StringBuilder("Incoming request (s=")
+                    .append(requestBytes)
+                    .append("B). start=")
+                    .append(System.currentTimeMillis())
+                    .append("ms")
+                    .toString());
+        }
+    }
+
+    private void reset() {
+        if (nextId == idLimit) {
+            nextId = ID_BLOCKS.getAndIncrement() * ID_BLOCK_SIZE;
+            idLimit = nextId + ID_BLOCK_SIZE;
+        }
+        requestId = nextId++;
+        sampled = SAMPLE_RATE > 0 && requestId % SAMPLE_RATE == 0;
+        stepCounter = 0;
+        service = null;
+        method = null;
+        responseBytes = -1;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            phaseNanos[i] = 0l;
+        }
+        phaseNanos[RECEIVED] = System.nanoTime();
+    }
+
+    /**
+     * Releases request references held by the thread recorder
+     */
+    public void end() {
+        servletRequest = null;
+        remoteAddress = null;
+    }
+
+    /**
+     * Records the time a phase finished
+     *
+     * @param phase The phase
+     */
+    public void mark(final int phase) {
+        phaseNanos[phase] = System.nanoTime();
+    }
+
+    /**
+     * Nanos elapsed between the end of a phase and the end of the previous
+     * recorded phase
+     *
+     * @param phase The phase
+     * @return Phase duration, or -1 if the phase wasn't reached
+     */
+    public long getPhaseNanos(final int phase) {
+        if (phaseNanos[phase] == 0l) {
+            return -1l;
+        }
+        for (int i = phase - 1; i >= 0; i--) {
+            if (phaseNanos[i] != 0l) {
+                return phaseNanos[phase] - phaseNanos[i];
+            }
+        }
+        return 0l;
+    }
+
+    /**
+     * Nanos elapsed since the request was received
+     *
+     * @return Elapsed nanos
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - phaseNanos[RECEIVED];
+    }
+
+    public void setMethod(final Class<?> service, final Method method) {
+        this.service = service;
+        this.method = method;
+    }
+
+    public void setResponseBytes(final int responseBytes) {
+        this.responseBytes = responseBytes;
+    }
+
+    public int getRequestBytes() {
+        return requestBytes;
+    }
+
+    public int getResponseBytes() {
+        return responseBytes;
+    }
+
+    /**
+     * Returns true if trace messages will be logged, callers building
+     * messages must check this first
+     *
+     * @return True if FINE is enabled
+     */
+    public boolean isTraced() {
+        return LOG.isLoggable(Level.FINE);
+    }
+
+    /**
+     * Logs a request trace at FINE level
+     *
+     * @param event The event description
+     */
+    public void trace(final String event) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, format(event));
+        }
+    }
+
+    /**
+     * Logs a request failure at SEVERE level
+     *
+     * @param event The event description
+     * @param thr The cause, may be null
+     */
+    public void severe(final String event, final Throwable thr) {
+        if (LOG.isLoggable(Level.SEVERE)) {
+            LOG.log(Level.SEVERE, format(event), thr);
+        }
+    }
+
+    /**
+     * Logs the completion summary at INFO level for sampled requests
+     */
+    public void complete() {
+        if (!sampled || !LOG.isLoggable(Level.INFO)) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (method != null) {
+            sb.append('\'').append(service.getName()).append('.')
+                    .append(method.getName()).append("' ");
+        }
+        sb.append("completed [in=").append(requestBytes)
+                .append("B,out=").append(responseBytes)
+                .append("B,handshake=").append(micros(HANDSHAKE))
+                .append("us,decode=").append(micros(DECODED))
+                .append("us,resolve=").append(micros(RESOLVED))
+                .append("us,validate=").append(micros(VALIDATED))
+                .append("us,invoke=").append(micros(INVOKED))
+                .append("us,encode=").append(micros(WRITTEN))
+                .append("us]");
+        LOG.log(Level.INFO, format(sb.toString()));
+    }
+
+    private long micros(final int phase) {
+        long nanos = getPhaseNanos(phase);
+        return nanos < 0 ? -1 : nanos / 1000l;
+    }
+
+    private String format(final String event) {
+        StringBuilder sb = new StringBuilder(128)
+                .append(stepCounter++)
+                .append(".(");
+        if (servletRequest != null) {
+            sb.append(servletRequest.getRemoteAddr()).append(":")
+                    .append(servletRequest.getRemotePort());
+        } else if (remoteAddress instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) remoteAddress;
+            sb.append(address.getAddress() != null ? address.getAddress().
+                    getHostAddress() : address.getHostName())
+                    .append(":").append(address.getPort());
+        } else if (remoteAddress != null) {
+            sb.append(remoteAddress);
+        }
+        return sb.append(")")
+                .append(".(")
+                .append(NODE_PREFIX).append('-')
+                .append(Long.toHexString(requestId))
+                .append(") - ")
+                .append(event)
+                .append(". elapsed=")
+                .append(getElapsedNanos() / 1000000l)
+                .append("ms.")
+                .toString();
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.api.ProtoCacheable;
+import com.baco.protorpc.util.ProtoStripedCounter;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serialized response cache of a single service method.
+ *
+ * Entries are keyed by the serialized argument bytes and the response
+ * encoding, and hold the already encoded response so a hit is written
+ * straight to the output. The cache is split in segments, each one a
+ * small LRU map under its own lock, entries expire after the ttl.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoResultCache
+        implements ProtoResultCacheMBean {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final String service;
+    private final String method;
+    private final String methodHash;
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final Segment[] segments;
+    private final ProtoStripedCounter hits = new ProtoStripedCounter();
+    private final ProtoStripedCounter misses = new ProtoStripedCounter();
+
+    public ProtoResultCache(final Class<?> service, final Method method,
+            final String methodHash, final ProtoCacheable config) {
+        this.service = service.getName();
+        this.method = method.getName();
+        this.methodHash = methodHash;
+        this.ttlMillis = config.ttlMillis();
+        this.maxEntries = Math.max(1, config.maxEntries());
+        int segmentCount = Math.min(SEGMENT_COUNT, maxEntries);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((maxEntries + segmentCount - 1)
+                    / segmentCount);
+        }
+    }
+
+    /**
+     * Gets a cached response
+     *
+     * @param encoding Response encoding variant
+     * @param arguments Serialized arguments
+     * @return The encoded response or null if it's not cached or expired
+     */
+    public byte[] get(final int encoding, final byte[] arguments) {
+        Key key = new Key(encoding, arguments);
+        byte[] response = segmentFor(key).get(key, System.currentTimeMillis());
+        if (response != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return response;
+    }
+
+    /**
+     * Stores an encoded response
+     *
+     * @param encoding Response encoding variant
+     * @param arguments Serialized arguments
+     * @param response The encoded response
+     */
+    public void put(final int encoding, final byte[] arguments,
+            final byte[] response) {
+        Key key = new Key(encoding, arguments);
+        segmentFor(key).put(key, new CachedResponse(response, System.
+                currentTimeMillis() + ttlMillis));
+    }
+
+    private Segment segmentFor(final Key key) {
+        int h = key.hash ^ (key.hash >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public String getService() {
+        return service;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getMethodHash() {
+        return methodHash;
+    }
+
+    @Override
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0d : (double) h / total;
+    }
+
+    /**
+     * Removes all cached responses
+     */
+    @Override
+    public void invalidate() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Cache key, arguments are compared by content
+     */
+    private static final class Key {
+
+        private final int encoding;
+        private final byte[] arguments;
+        private final int hash;
+
+        Key(int encoding, byte[] arguments) {
+            this.encoding = encoding;
+            this.arguments = arguments;
+            this.hash = 31 * Arrays.hashCode(arguments) + encoding;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && encoding == other.encoding
+                    && Arrays.equals(arguments, other.arguments);
+        }
+
+    }
+
+    private static final class CachedResponse {
+
+        private final byte[] response;
+        private final long expiresAt;
+
+        CachedResponse(byte[] response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    /**
+     * LRU map guarded by its own lock
+     */
+    private static final class Segment
+            extends LinkedHashMap<Key, CachedResponse> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(Key key, long now) {
+            CachedResponse entry = super.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt <= now) {
+                remove(key);
+                return null;
+            }
+            return entry.response;
+        }
+
+        @Override
+        public synchronized CachedResponse put(Key key, CachedResponse entry) {
+            return super.put(key, entry);
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedResponse> eldest) {
+            return size() > capacity;
+        }
+
+    }
+
+}
@@ -35,6 +35,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
 import javax.servlet.GenericServlet;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -96,9 +97,29 @@ public abstract class ProtoServlet
 
     @Override
     public void destroy() {
+        if (proxy != null) {
+            proxy.destroy();
+        }
         super.destroy();
     }
 
+    /**
+     * Removes the cached responses of a @ProtoCacheable service method, to
+     * be called when the data it returns changes
+     *
+     * @param method The service interface method
+     */
+    protected void invalidateCache(Method method) {
+        proxy.invalidateCache(method);
+    }
+
+    /**
+     * Removes the cached responses of all service methods
+     */
+    protected void invalidateCaches() {
+        proxy.invalidateCaches();
+    }
+
     @Override
     public abstract String getServletInfo();
 
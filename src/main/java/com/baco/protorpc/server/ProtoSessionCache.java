@@ -0,0 +1,218 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.api.ProtoSession;
+import com.baco.protorpc.util.ProtoStripedCounter;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sessions of a service that already passed its validations, by token.
+ *
+ * Clients send a full session once and then only its token, plus the keys
+ * that changed. Tokens are random so they can't be guessed. An entry
+ * expires once the ttl has passed since it was cached, whether used or
+ * not, so a session that keeps calling still goes through the validators
+ * again when its token expires. The cache is split in segments, each
+ * one a small LRU map under its own lock.
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoSessionCache {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final Segment[] segments;
+    private final ProtoStripedCounter hits = new ProtoStripedCounter();
+    private final ProtoStripedCounter misses = new ProtoStripedCounter();
+
+    /**
+     * Creates a cache
+     *
+     * @param maxEntries Maximum number of cached sessions
+     * @param ttlMillis Time a session stays cached since it was validated
+     */
+    public ProtoSessionCache(final int maxEntries, final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = Math.max(1, maxEntries);
+        int segmentCount = Math.min(SEGMENT_COUNT, this.maxEntries);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((this.maxEntries + segmentCount - 1)
+                    / segmentCount);
+        }
+    }
+
+    /**
+     * Caches a validated session
+     *
+     * @param session The session
+     * @return The token standing for it, never 0
+     */
+    public long put(final ProtoSession session) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        for (;;) {
+            long token = random.nextLong();
+            if (token != 0 && segmentFor(token).add(token, new CachedSession(
+                    session, expiresAt))) {
+                return token;
+            }
+        }
+    }
+
+    /**
+     * Gets a cached session
+     *
+     * @param token The session token
+     * @return The session or null if the token is unknown or expired
+     */
+    public ProtoSession get(final long token) {
+        ProtoSession session = segmentFor(token).get(token, System.
+                currentTimeMillis());
+        if (session != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return session;
+    }
+
+    private Segment segmentFor(final long token) {
+        int h = (int) (token ^ (token >>> 32));
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Removes all cached sessions, clients send their full session again
+     */
+    public void invalidate() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private static final class CachedSession {
+
+        private final ProtoSession session;
+        private final long expiresAt;
+
+        CachedSession(ProtoSession session, long expiresAt) {
+            this.session = session;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    /**
+     * LRU map guarded by its own lock
+     */
+    private static final class Segment
+            extends LinkedHashMap<Long, CachedSession> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        synchronized ProtoSession get(long token, long now) {
+            CachedSession entry = super.get(token);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt <= now) {
+                remove(token);
+                return null;
+            }
+            return entry.session;
+        }
+
+        /**
+         * Adds an entry unless the token is taken
+         */
+        synchronized boolean add(long token, CachedSession entry) {
+            if (containsKey(token)) {
+                return false;
+            }
+            super.put(token, entry);
+            return true;
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CachedSession> eldest) {
+            return size() > capacity;
+        }
+
+    }
+
+}
@@ -9,13 +9,28 @@ public class PacketEnvelope implements Serializable {
 
     private static final Long serialVersionUID = 8l;
     private final Object packet;
+    private final ResponseEnvelope trailer;
 
     public PacketEnvelope(final Object packet) {
+        this(packet, null);
+    }
+
+    public PacketEnvelope(final Object packet, final ResponseEnvelope trailer) {
         this.packet = packet;
+        this.trailer = trailer;
     }
 
     public final Object getPacket() {
         return packet;
     }
 
+    /**
+     * Final status of a streamed response, only set in its last packet
+     *
+     * @return The status or null if more packets follow
+     */
+    public final ResponseEnvelope getTrailer() {
+        return trailer;
+    }
+
 }
@@ -42,7 +42,7 @@ import java.util.concurrent.TimeUnit;
 public class ProtoBufferPool {
 
     public static final int MAX_CURRENT_BUFFERS = 100;
-    private static ProtoBufferPool instance;
+    private static final ProtoBufferPool instance = new ProtoBufferPool();
     private final LinkedBlockingDeque<LinkedBuffer> bufferDeque; 
 
     private ProtoBufferPool() {
@@ -55,17 +55,11 @@ public class ProtoBufferPool {
     }
     
     public static final LinkedBuffer takeBuffer() throws InterruptedException {
-        if(instance == null) {
-            instance = new ProtoBufferPool();
-        }
         LinkedBuffer buffer = instance.bufferDeque.poll(1, TimeUnit.MINUTES);
         return buffer;
     }
 
     public static final void returnBuffer(LinkedBuffer buffer) throws InterruptedException {
-        if(instance == null) {
-            instance = new ProtoBufferPool();
-        }
         instance.bufferDeque.offer(buffer, 1, TimeUnit.MINUTES);
     }
 
@@ -41,6 +41,8 @@ public final class ProtoConfig {
     public static final String DEFAULT_JSON_NUMERIC_ENABLED = "true";
     public static final String DEFAULT_SERIALIZATION_MODE = BINARY_MODE;
     public static final String DEFAULT_ENABLED_COMPRESSION = "true";
+    /* Domain of the MBeans published by clients and servers */
+    public static final String JMX_DOMAIN = "com.baco.protorpc";
     
     /**
      * Returns enabled serialization mode
@@ -87,4 +89,116 @@ public final class ProtoConfig {
         }
     }
     
+    /**
+     * Returns True if requests start with the length delimited handshake
+     * understood by servers older than the preamble
+     * @return 
+     */
+    public static final Boolean isLegacyHandshake() {
+        if(System.getProperty("protorpc.handshake.legacy") != null &&
+                System.getProperty("protorpc.handshake.legacy").trim().equalsIgnoreCase("true")) {
+            return Boolean.TRUE;
+        } else {
+            return Boolean.FALSE;
+        }
+    }
+    
+    /**
+     * Returns the sampling rate for request summaries, 1 logs every request
+     * and 0 disables them
+     * @return 
+     */
+    public static final Integer getLogSampleRate() {
+        return getIntegerProperty("protorpc.log.sample.rate", 1);
+    }
+    
+    /**
+     * Returns the maximum number of calls accepted in a single batch
+     * @return 
+     */
+    public static final Integer getBatchMaxSize() {
+        return getIntegerProperty("protorpc.batch.max.size", 256);
+    }
+    
+    /**
+     * Returns the number of threads running batched calls in the server
+     * @return 
+     */
+    public static final Integer getBatchThreads() {
+        return getIntegerProperty("protorpc.batch.threads", 16);
+    }
+    
+    /**
+     * Returns the maximum number of requests a service executes at the same
+     * time, 0 means no limit
+     * @return 
+     */
+    public static final Integer getServerMaxInFlight() {
+        return getIntegerProperty("protorpc.server.max.inflight", 0);
+    }
+    
+    /**
+     * Returns the maximum number of http connections the client keeps open
+     * per server
+     * @return 
+     */
+    public static final Integer getHttpPoolSize() {
+        return getIntegerProperty("protorpc.http.pool.size", 32);
+    }
+    
+    /**
+     * Returns the time in milliseconds an unused http connection is kept open
+     * @return 
+     */
+    public static final Integer getHttpPoolIdleMillis() {
+        return getIntegerProperty("protorpc.http.pool.idle.millis", 30000);
+    }
+    
+    /**
+     * Returns the number of threads completing asynchronous client calls
+     * @return 
+     */
+    public static final Integer getClientAsyncThreads() {
+        return getIntegerProperty("protorpc.client.async.threads", 16);
+    }
+    
+    /**
+     * Returns the maximum number of sessions a service keeps for session
+     * tokens, 0 disables session tokens
+     * @return 
+     */
+    public static final Integer getSessionCacheSize() {
+        return getIntegerProperty("protorpc.session.cache.size", 10000);
+    }
+    
+    /**
+     * Returns the time in milliseconds a session token stays valid since
+     * its session passed the validators, its use doesn't extend it
+     * @return 
+     */
+    public static final Integer getSessionCacheTtlMillis() {
+        return getIntegerProperty("protorpc.session.cache.ttl.millis", 1800000);
+    }
+    
+    /**
+     * Returns a non negative integer system property or the default value
+     * @param name The property name
+     * @param defaultValue The default value
+     * @return 
+     */
+    static Integer getIntegerProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if(value != null && !value.trim().isEmpty()) {
+            try {
+                int parsed = Integer.parseInt(value.trim());
+                if(parsed >= 0) {
+                    return parsed;
+                }
+            } catch(NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+    
 }
@@ -0,0 +1,57 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.util;
+
+/**
+ * Wire constants for multiplexed ProtoRpc connections.
+ *
+ * A message is sent as one or more fragments, each one prefixed by a
+ * header: payload length (int), correlation id (int) and flags (byte).
+ * The last fragment of a message carries FLAG_FINAL. Fragments of
+ * different messages may be interleaved on the same connection. A client
+ * that stops waiting for a response sends an empty fragment with
+ * FLAG_CANCEL and the correlation id of the request.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoFraming {
+
+    public static final int HEADER_SIZE = 9;
+    public static final byte FLAG_FINAL = 1;
+    public static final byte FLAG_CANCEL = 2;
+    /* Big messages are split so small ones can be sent in between */
+    public static final int MAX_FRAGMENT_SIZE = 16 * 1024;
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    private ProtoFraming() {
+    }
+
+}
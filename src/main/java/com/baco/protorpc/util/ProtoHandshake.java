@@ -30,24 +30,244 @@
  */
 package com.baco.protorpc.util;
 
+import io.protostuff.ProtostuffIOUtil;
+import io.protostuff.Schema;
+import io.protostuff.runtime.RuntimeSchema;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 /**
- * Protocol requested by client
+ * Protocol requested by client.
+ * 
+ * It's sent as a preamble: a magic byte, the protocol version and a byte of
+ * feature flags, extended by further flag bytes when needed, followed by the
+ * timeout and the manifest version when they are set. Older clients send it as a length delimited message instead, the
+ * magic byte can't start one since those are shorter than 128 bytes.
  * @author deiby.nahuat
  */
 public final class ProtoHandshake implements Serializable {
     
+    public static final int PREAMBLE_MAGIC = 0xB7;
+    public static final int PREAMBLE_VERSION = 1;
+    /* Feature flags */
+    private static final int FLAG_JSON = 0x01;
+    private static final int FLAG_COMPRESSED = 0x02;
+    private static final int FLAG_JSON_NUMERICAL = 0x04;
+    private static final int FLAG_BATCH = 0x08;
+    private static final int FLAG_STREAMED = 0x10;
+    private static final int FLAG_TIMEOUT = 0x20;
+    private static final int FLAG_MANIFEST = 0x40;
+    /* Another byte of flags follows, unknown ones are ignored */
+    private static final int FLAG_MORE = 0x80;
+    /* Extended flags */
+    private static final int FLAG_GRAPH = 0x01;
+    
     private final Integer requestedProtocol;
     private final boolean compressed;
     private final boolean jsonNumerical;
+    private final boolean batch;
+    private final boolean streamed;
+    /* Time the client waits for the response, 0 for no limit */
+    private final long timeoutMillis;
+    /* Version of the service manifest numbering the methods, 0 for none */
+    private final int manifest;
+    /* Payloads are written as object graphs keeping shared references */
+    private final boolean graph;
     
     public ProtoHandshake(final String protocol, 
                                     final Boolean compressed,
                                     final Boolean numerical) {
+        this(protocol, compressed, numerical, false);
+    }
+    
+    public ProtoHandshake(final String protocol, 
+                                    final Boolean compressed,
+                                    final Boolean numerical,
+                                    final boolean batch) {
+        this(protocol, compressed, numerical, batch, false);
+    }
+    
+    public ProtoHandshake(final String protocol, 
+                                    final Boolean compressed,
+                                    final Boolean numerical,
+                                    final boolean batch,
+                                    final boolean streamed) {
+        this(protocol, compressed, numerical, batch, streamed, 0l);
+    }
+    
+    public ProtoHandshake(final String protocol, 
+                                    final Boolean compressed,
+                                    final Boolean numerical,
+                                    final boolean batch,
+                                    final boolean streamed,
+                                    final long timeoutMillis) {
+        this(protocol, compressed, numerical, batch, streamed, timeoutMillis,
+                0);
+    }
+    
+    public ProtoHandshake(final String protocol, 
+                                    final Boolean compressed,
+                                    final Boolean numerical,
+                                    final boolean batch,
+                                    final boolean streamed,
+                                    final long timeoutMillis,
+                                    final int manifest) {
+        this(protocol, compressed, numerical, batch, streamed, timeoutMillis,
+                manifest, false);
+    }
+    
+    public ProtoHandshake(final String protocol, 
+                                    final Boolean compressed,
+                                    final Boolean numerical,
+                                    final boolean batch,
+                                    final boolean streamed,
+                                    final long timeoutMillis,
+                                    final int manifest,
+                                    final boolean graph) {
         this.requestedProtocol = protocol.trim().equals(ProtoConfig.BINARY_MODE)?0:1;
         this.compressed = compressed;
         this.jsonNumerical = numerical;
+        this.batch = batch;
+        this.streamed = streamed;
+        this.timeoutMillis = timeoutMillis;
+        this.manifest = manifest;
+        this.graph = graph;
+    }
+    
+    private ProtoHandshake(final int flags,
+                                    final int extended,
+                                    final long timeoutMillis,
+                                    final int manifest) {
+        this.requestedProtocol = (flags & FLAG_JSON) != 0 ? 1 : 0;
+        this.compressed = (flags & FLAG_COMPRESSED) != 0;
+        this.jsonNumerical = (flags & FLAG_JSON_NUMERICAL) != 0;
+        this.batch = (flags & FLAG_BATCH) != 0;
+        this.streamed = (flags & FLAG_STREAMED) != 0;
+        this.timeoutMillis = timeoutMillis;
+        this.manifest = manifest;
+        this.graph = (extended & FLAG_GRAPH) != 0;
+    }
+    
+    /**
+     * Writes the handshake as a preamble
+     * @param os The request stream
+     * @throws IOException 
+     */
+    public final void writeTo(OutputStream os) throws IOException {
+        int flags = (requestedProtocol != 0 ? FLAG_JSON : 0)
+                | (compressed ? FLAG_COMPRESSED : 0)
+                | (jsonNumerical ? FLAG_JSON_NUMERICAL : 0)
+                | (batch ? FLAG_BATCH : 0)
+                | (streamed ? FLAG_STREAMED : 0)
+                | (timeoutMillis > 0 ? FLAG_TIMEOUT : 0)
+                | (manifest != 0 ? FLAG_MANIFEST : 0);
+        int extended = graph ? FLAG_GRAPH : 0;
+        byte[] preamble = new byte[18];
+        int length = 0;
+        preamble[length++] = (byte) PREAMBLE_MAGIC;
+        preamble[length++] = (byte) PREAMBLE_VERSION;
+        preamble[length++] = (byte) (extended != 0 ? flags | FLAG_MORE : flags);
+        if (extended != 0) {
+            preamble[length++] = (byte) extended;
+        }
+        if (timeoutMillis > 0) {
+            long value = timeoutMillis;
+            while ((value & ~0x7FL) != 0) {
+                preamble[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            preamble[length++] = (byte) value;
+        }
+        if (manifest != 0) {
+            preamble[length++] = (byte) (manifest >>> 24);
+            preamble[length++] = (byte) (manifest >>> 16);
+            preamble[length++] = (byte) (manifest >>> 8);
+            preamble[length++] = (byte) manifest;
+        }
+        os.write(preamble, 0, length);
+    }
+    
+    /**
+     * Reads a preamble or a length delimited handshake
+     * @param is The request stream
+     * @return The handshake
+     * @throws IOException If the stream ends or the version is unknown
+     */
+    public static ProtoHandshake readFrom(InputStream is) throws IOException {
+        int first = readByte(is);
+        if (first != PREAMBLE_MAGIC) {
+            return readDelimited(is, first);
+        }
+        int version = readByte(is);
+        if (version != PREAMBLE_VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        int flags = readByte(is);
+        int extended = 0;
+        if ((flags & FLAG_MORE) != 0) {
+            extended = readByte(is);
+            for (int more = extended; (more & FLAG_MORE) != 0;) {
+                more = readByte(is);
+            }
+        }
+        long timeoutMillis = 0;
+        if ((flags & FLAG_TIMEOUT) != 0) {
+            for (int shift = 0;; shift += 7) {
+                if (shift > 63) {
+                    throw new IOException("Malformed handshake timeout");
+                }
+                int b = readByte(is);
+                timeoutMillis |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+        }
+        int manifest = 0;
+        if ((flags & FLAG_MANIFEST) != 0) {
+            manifest = readByte(is) << 24 | readByte(is) << 16
+                    | readByte(is) << 8 | readByte(is);
+        }
+        return new ProtoHandshake(flags, extended, timeoutMillis, manifest);
+    }
+    
+    /**
+     * Reads a handshake sent as a length delimited message
+     */
+    private static ProtoHandshake readDelimited(InputStream is, int first)
+            throws IOException {
+        int size = first & 0x7F;
+        for (int b = first, shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (shift > 28) {
+                throw new IOException("Malformed handshake length");
+            }
+            b = readByte(is);
+            size |= (b & 0x7F) << shift;
+        }
+        byte[] data = new byte[size];
+        for (int read = 0; read < size;) {
+            int n = is.read(data, read, size - read);
+            if (n < 0) {
+                throw new EOFException("Truncated handshake");
+            }
+            read += n;
+        }
+        Schema<ProtoHandshake> schema = RuntimeSchema.getSchema(
+                ProtoHandshake.class);
+        ProtoHandshake ph = schema.newMessage();
+        ProtostuffIOUtil.mergeFrom(data, ph, schema);
+        return ph;
+    }
+    
+    private static int readByte(InputStream is) throws IOException {
+        int b = is.read();
+        if (b < 0) {
+            throw new EOFException("Truncated handshake");
+        }
+        return b;
     }
     
     public final Integer getRequestedProtocol() {
@@ -62,4 +282,46 @@ public final class ProtoHandshake implements Serializable {
         return this.jsonNumerical;
     }
     
+    /**
+     * True if the payload is a BatchRequestEnvelope
+     * @return 
+     */
+    public final Boolean getBatch() {
+        return this.batch;
+    }
+    
+    /**
+     * True if the client reads the response as a sequence of packets
+     * @return 
+     */
+    public final Boolean getStreamed() {
+        return this.streamed;
+    }
+    
+    /**
+     * Time the client waits for the response from the moment it was sent,
+     * 0 for no limit
+     * @return 
+     */
+    public final long getTimeoutMillis() {
+        return this.timeoutMillis;
+    }
+    
+    /**
+     * Version of the service manifest used by the requests, 0 if they carry
+     * method names
+     * @return 
+     */
+    public final int getManifest() {
+        return this.manifest;
+    }
+    
+    /**
+     * True if request and response are written as object graphs
+     * @return 
+     */
+    public final boolean getGraph() {
+        return this.graph;
+    }
+    
 }
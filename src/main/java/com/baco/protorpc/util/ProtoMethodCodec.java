@@ -0,0 +1,426 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.util;
+
+import io.protostuff.ByteArrayInput;
+import io.protostuff.Input;
+import io.protostuff.LinkedBuffer;
+import io.protostuff.Output;
+import io.protostuff.ProtostuffException;
+import io.protostuff.ProtostuffIOUtil;
+import io.protostuff.Schema;
+import io.protostuff.runtime.RuntimeSchema;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Encodes the arguments and the result of a service method with schemas
+ * derived from its declared types.
+ *
+ * Every value gets two field numbers. Values of exactly the declared type
+ * use the first one and are written without type information, primitives
+ * and strings as plain protobuf scalars; any other value (a subclass, or
+ * the value of an interface, Object or JDK type) uses the second one and
+ * is written with its class name like the polymorphic envelopes do.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoMethodCodec {
+
+    private static final int DYNAMIC = 0;
+    private static final int BOOLEAN = 1;
+    private static final int BYTE = 2;
+    private static final int SHORT = 3;
+    private static final int CHAR = 4;
+    private static final int INT = 5;
+    private static final int LONG = 6;
+    private static final int FLOAT = 7;
+    private static final int DOUBLE = 8;
+    private static final int STRING = 9;
+    private static final int BYTES = 10;
+    private static final int ENUM = 11;
+    private static final int MESSAGE = 12;
+
+    private static final Schema<PacketEnvelope> PACKET_SCHEMA = RuntimeSchema.
+            getSchema(PacketEnvelope.class);
+
+    private final TypedSchema arguments;
+    private final TypedSchema result;
+
+    public ProtoMethodCodec(final Method method) {
+        this.arguments = new TypedSchema(method.getName() + "Arguments",
+                method.getParameterTypes());
+        Class<?> returnType = method.getReturnType();
+        this.result = new TypedSchema(method.getName() + "Result",
+                returnType == void.class ? new Class<?>[0]
+                        : new Class<?>[]{returnType});
+    }
+
+    /**
+     * Encodes call arguments
+     *
+     * @param values The arguments, may be null for methods without
+     * parameters
+     * @param buffer Write buffer, cleared on return
+     * @return The encoded arguments
+     */
+    public byte[] encodeArguments(final Object[] values,
+            final LinkedBuffer buffer) {
+        return encode(arguments, values != null ? values : new Object[0],
+                buffer);
+    }
+
+    /**
+     * Decodes call arguments
+     *
+     * @param data The encoded arguments
+     * @return The arguments, one per parameter
+     * @throws IOException If the data doesn't match the schema
+     */
+    public Object[] decodeArguments(final byte[] data) throws IOException {
+        Object[] values = arguments.newMessage();
+        merge(data, values, arguments);
+        return values;
+    }
+
+    /**
+     * Encodes a call result
+     *
+     * @param value The result
+     * @param buffer Write buffer, cleared on return
+     * @return The encoded result
+     */
+    public byte[] encodeResult(final Object value, final LinkedBuffer buffer) {
+        return encode(result, result.size() == 0 ? new Object[0]
+                : new Object[]{value}, buffer);
+    }
+
+    /**
+     * Decodes a call result
+     *
+     * @param data The encoded result
+     * @return The result, null for void methods
+     * @throws IOException If the data doesn't match the schema
+     */
+    public Object decodeResult(final byte[] data) throws IOException {
+        Object[] values = result.newMessage();
+        merge(data, values, result);
+        return values.length > 0 ? values[0] : null;
+    }
+
+    /**
+     * Same as ProtostuffIOUtil.mergeFrom, which wraps malformed data in a
+     * RuntimeException instead of throwing an IOException
+     */
+    private static void merge(byte[] data, Object[] values,
+            TypedSchema schema) throws IOException {
+        ByteArrayInput input = new ByteArrayInput(data, true);
+        try {
+            schema.mergeFrom(input, values);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new ProtostuffException("Truncated message", ex);
+        }
+        input.checkLastTagWas(0);
+    }
+
+    private static byte[] encode(TypedSchema schema, Object[] values,
+            LinkedBuffer buffer) {
+        try {
+            return ProtostuffIOUtil.toByteArray(values, schema, buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == boolean.class || type == Boolean.class) {
+            return BOOLEAN;
+        } else if (type == byte.class || type == Byte.class) {
+            return BYTE;
+        } else if (type == short.class || type == Short.class) {
+            return SHORT;
+        } else if (type == char.class || type == Character.class) {
+            return CHAR;
+        } else if (type == int.class || type == Integer.class) {
+            return INT;
+        } else if (type == long.class || type == Long.class) {
+            return LONG;
+        } else if (type == float.class || type == Float.class) {
+            return FLOAT;
+        } else if (type == double.class || type == Double.class) {
+            return DOUBLE;
+        } else if (type == String.class) {
+            return STRING;
+        } else if (type == byte[].class) {
+            return BYTES;
+        } else if (type.isEnum()) {
+            return ENUM;
+        }
+        /*
+         * Plain application classes, JDK types keep their own encoding
+         */
+        if (type.isArray() || type.isInterface() || type.isPrimitive()
+                || Modifier.isAbstract(type.getModifiers())
+                || type.getName().startsWith("java.")
+                || type.getName().startsWith("javax.")) {
+            return DYNAMIC;
+        }
+        return MESSAGE;
+    }
+
+    private static Object defaultOf(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return null;
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0l;
+        } else if (type == float.class) {
+            return 0f;
+        }
+        return 0d;
+    }
+
+    /**
+     * Message with one slot per declared type
+     */
+    private static final class TypedSchema
+            implements Schema<Object[]> {
+
+        private final String name;
+        private final Class<?>[] types;
+        private final int[] kinds;
+        private final Object[] defaults;
+        private final Schema<?>[] schemas;
+
+        TypedSchema(String name, Class<?>[] types) {
+            this.name = name;
+            this.types = types;
+            this.kinds = new int[types.length];
+            this.defaults = new Object[types.length];
+            this.schemas = new Schema<?>[types.length];
+            for (int i = 0; i < types.length; i++) {
+                kinds[i] = kindOf(types[i]);
+                defaults[i] = defaultOf(types[i]);
+                if (kinds[i] == MESSAGE) {
+                    schemas[i] = RuntimeSchema.getSchema(types[i]);
+                }
+            }
+        }
+
+        int size() {
+            return types.length;
+        }
+
+        /**
+         * Schema of a message slot, its values are of exactly that type
+         */
+        @SuppressWarnings("unchecked")
+        private Schema<Object> schemaOf(int slot) {
+            return (Schema<Object>) schemas[slot];
+        }
+
+        /**
+         * Constant of an enum slot, the other side may know more constants
+         */
+        private Object enumOf(int slot, int ordinal) throws IOException {
+            Object[] constants = types[slot].getEnumConstants();
+            if (ordinal < 0 || ordinal >= constants.length) {
+                throw new ProtostuffException("Unknown constant " + ordinal
+                        + " of " + types[slot].getName());
+            }
+            return constants[ordinal];
+        }
+
+        @Override
+        public String getFieldName(int number) {
+            return ((number & 1) == 1 ? "v" : "d") + ((number - 1) >> 1);
+        }
+
+        @Override
+        public int getFieldNumber(String fieldName) {
+            int slot = Integer.parseInt(fieldName.substring(1));
+            return fieldName.charAt(0) == 'v' ? 2 * slot + 1 : 2 * slot + 2;
+        }
+
+        @Override
+        public boolean isInitialized(Object[] message) {
+            return true;
+        }
+
+        @Override
+        public Object[] newMessage() {
+            return defaults.clone();
+        }
+
+        @Override
+        public String messageName() {
+            return name;
+        }
+
+        @Override
+        public String messageFullName() {
+            return name;
+        }
+
+        @Override
+        public Class<? super Object[]> typeClass() {
+            return Object[].class;
+        }
+
+        @Override
+        public void writeTo(Output output, Object[] values) throws IOException {
+            for (int i = 0; i < types.length && i < values.length; i++) {
+                Object value = values[i];
+                if (value == null) {
+                    continue;
+                }
+                int number = 2 * i + 1;
+                switch (kinds[i]) {
+                    case BOOLEAN:
+                        output.writeBool(number, (Boolean) value, false);
+                        break;
+                    case BYTE:
+                        output.writeSInt32(number, (Byte) value, false);
+                        break;
+                    case SHORT:
+                        output.writeSInt32(number, (Short) value, false);
+                        break;
+                    case CHAR:
+                        output.writeUInt32(number, (Character) value, false);
+                        break;
+                    case INT:
+                        output.writeSInt32(number, (Integer) value, false);
+                        break;
+                    case LONG:
+                        output.writeSInt64(number, (Long) value, false);
+                        break;
+                    case FLOAT:
+                        output.writeFloat(number, (Float) value, false);
+                        break;
+                    case DOUBLE:
+                        output.writeDouble(number, (Double) value, false);
+                        break;
+                    case STRING:
+                        output.writeString(number, (String) value, false);
+                        break;
+                    case BYTES:
+                        output.writeByteArray(number, (byte[]) value, false);
+                        break;
+                    case ENUM:
+                        output.writeEnum(number, ((Enum<?>) value).ordinal(),
+                                false);
+                        break;
+                    case MESSAGE:
+                        if (value.getClass() == types[i]) {
+                            output.writeObject(number, value, schemaOf(i),
+                                    false);
+                            break;
+                        }
+                        output.writeObject(number + 1, new PacketEnvelope(
+                                value), PACKET_SCHEMA, false);
+                        break;
+                    default:
+                        output.writeObject(number + 1, new PacketEnvelope(
+                                value), PACKET_SCHEMA, false);
+                }
+            }
+        }
+
+        @Override
+        public void mergeFrom(Input input, Object[] values) throws IOException {
+            for (int number = input.readFieldNumber(this); number != 0;
+                    number = input.readFieldNumber(this)) {
+                int slot = (number - 1) >> 1;
+                if (slot >= types.length) {
+                    input.handleUnknownField(number, this);
+                    continue;
+                }
+                if ((number & 1) == 0) {
+                    values[slot] = input.mergeObject(null, PACKET_SCHEMA).
+                            getPacket();
+                    continue;
+                }
+                switch (kinds[slot]) {
+                    case BOOLEAN:
+                        values[slot] = input.readBool();
+                        break;
+                    case BYTE:
+                        values[slot] = (byte) input.readSInt32();
+                        break;
+                    case SHORT:
+                        values[slot] = (short) input.readSInt32();
+                        break;
+                    case CHAR:
+                        values[slot] = (char) input.readUInt32();
+                        break;
+                    case INT:
+                        values[slot] = input.readSInt32();
+                        break;
+                    case LONG:
+                        values[slot] = input.readSInt64();
+                        break;
+                    case FLOAT:
+                        values[slot] = input.readFloat();
+                        break;
+                    case DOUBLE:
+                        values[slot] = input.readDouble();
+                        break;
+                    case STRING:
+                        values[slot] = input.readString();
+                        break;
+                    case BYTES:
+                        values[slot] = input.readByteArray();
+                        break;
+                    case ENUM:
+                        values[slot] = enumOf(slot, input.readEnum());
+                        break;
+                    case MESSAGE:
+                        values[slot] = input.mergeObject(null, schemaOf(slot));
+                        break;
+                    default:
+                        input.handleUnknownField(number, this);
+                }
+            }
+        }
+
+    }
+
+}
@@ -10,6 +10,7 @@ import org.iq80.snappy.SnappyInputStream;
 
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Date;
@@ -36,16 +37,40 @@ public class ProtoPacketInputStream implements Closeable {
                 PacketEnvelope.class);
     }
 
+    /**
+     * Reads the next length delimited packet
+     *
+     * @return The packet or null at the end of the stream
+     * @throws IOException
+     */
     public PacketEnvelope readPacket() throws IOException {
         if (!closed) {
-            if(is.available() > 0) {
-                PacketEnvelope packet = null;
-                packet = schema.newMessage();
-                ProtostuffIOUtil.mergeFrom(is, packet, schema);
-                return packet;
-            } else {
+            int b = is.read();
+            if (b == -1) {
                 return null;
             }
+            /*
+             * Packet size as a varint
+             */
+            int size = b & 0x7f;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = is.read();
+                if (b == -1 || shift > 28) {
+                    throw new EOFException("Truncated packet size");
+                }
+                size |= (b & 0x7f) << shift;
+            }
+            byte[] data = new byte[size];
+            for (int read = 0; read < size;) {
+                int n = is.read(data, read, size - read);
+                if (n == -1) {
+                    throw new EOFException("Truncated packet");
+                }
+                read += n;
+            }
+            PacketEnvelope packet = schema.newMessage();
+            ProtostuffIOUtil.mergeFrom(data, packet, schema);
+            return packet;
         } else {
             throw new IOException("ProtoPacketOutputStream is already closed.");
         }
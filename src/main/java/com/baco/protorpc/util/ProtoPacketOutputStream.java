@@ -33,7 +33,14 @@ public class ProtoPacketOutputStream implements Closeable {
                 PacketEnvelope.class);
     }
 
-    public void writePacket(PacketEnvelope packet) throws IOException {
+    /**
+     * Writes a length delimited packet
+     *
+     * @param packet The packet
+     * @return The bytes written
+     * @throws IOException
+     */
+    public int writePacket(PacketEnvelope packet) throws IOException {
         try {
             if (!closed) {
                 if (buffer == null) {
@@ -41,7 +48,8 @@ public class ProtoPacketOutputStream implements Closeable {
                 }
                 buffer.clear();
                 try {
-                    ProtostuffIOUtil.writeDelimitedTo(os, packet, schema, buffer);
+                    return ProtostuffIOUtil.writeDelimitedTo(os, packet, schema,
+                            buffer);
                 } finally {
                     buffer.clear();
                 }
@@ -60,11 +68,15 @@ public class ProtoPacketOutputStream implements Closeable {
             this.os.flush();
             this.os.close();
         } finally {
-            buffer.clear();
-            try {
-                ProtoBufferPool.returnBuffer(buffer);
-            } catch (InterruptedException ex) {
-                throw new IOException("Couldn't return proto buffer to pool.");
+            if (buffer != null) {
+                buffer.clear();
+                try {
+                    ProtoBufferPool.returnBuffer(buffer);
+                } catch (InterruptedException ex) {
+                    throw new IOException("Couldn't return proto buffer to pool.");
+                } finally {
+                    buffer = null;
+                }
             }
         }
     }
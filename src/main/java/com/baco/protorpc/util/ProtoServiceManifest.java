@@ -0,0 +1,114 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.util;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Numeric identifiers of the methods of a service.
+ *
+ * Methods are numbered by the order of their hashes, so a server and a
+ * client built from the same interface agree on them. The server publishes
+ * its manifest and clients send the number of a method instead of its
+ * hash along with the manifest version; a server whose version differs
+ * answers with StaleManifestException and the client goes back to hashes.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoServiceManifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Method name of the request asking for the manifest */
+    public static final String MANIFEST_METHOD = "protorpc.manifest";
+
+    private final int version;
+    private final String[] methods;
+
+    public ProtoServiceManifest(final Class<?> service) {
+        TreeSet<String> hashes = new TreeSet<String>();
+        for (Method method : service.getMethods()) {
+            hashes.add(ProtoEncoders.getMethodNameAsSha1(method));
+        }
+        this.methods = hashes.toArray(new String[hashes.size()]);
+        StringBuilder sb = new StringBuilder(methods.length * 40);
+        for (String hash : methods) {
+            sb.append(hash);
+        }
+        int digest = (int) Long.parseLong(ProtoEncoders.getSha1FromString(sb.
+                toString()).substring(0, 8), 16);
+        /* 0 is sent by clients without manifest */
+        this.version = digest != 0 ? digest : 1;
+    }
+
+    /**
+     * Version of the method numbering
+     *
+     * @return The version, never 0
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Number of methods
+     *
+     * @return The method count
+     */
+    public int size() {
+        return methods.length;
+    }
+
+    /**
+     * Returns the hash of a method
+     *
+     * @param id The method number
+     * @return The method hash
+     */
+    public String getMethodHash(final int id) {
+        return methods[id];
+    }
+
+    /**
+     * Returns the number of a method
+     *
+     * @param methodHash The method hash
+     * @return The method number or -1 if it's not in the manifest
+     */
+    public int indexOf(final String methodHash) {
+        int id = Arrays.binarySearch(methods, methodHash);
+        return id >= 0 ? id : -1;
+    }
+
+}
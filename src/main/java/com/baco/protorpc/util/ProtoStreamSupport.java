@@ -0,0 +1,162 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.util;
+
+import com.baco.protorpc.api.ProtoStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helpers for methods whose result is streamed.
+ *
+ * Methods declaring Iterator, Iterable or ProtoStream as return type are
+ * streamed when the binary encoding is used. With json or inside a batch
+ * the elements are sent as a list and converted back on the client. Only
+ * ProtoStream callers read elements as they arrive, Iterator and Iterable
+ * results are read whole because their callers can't close them.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoStreamSupport {
+
+    private static final Logger LOG = Logger.getLogger("ProtoClient");
+
+    private ProtoStreamSupport() {
+    }
+
+    /**
+     * Returns true if results of this type are streamed
+     *
+     * @param type The method return type
+     * @return True for Iterator, Iterable and ProtoStream
+     */
+    public static boolean isStreamType(final Class<?> type) {
+        return type == Iterator.class || type == Iterable.class
+                || type == ProtoStream.class;
+    }
+
+    /**
+     * Gets the iterator of a streamed result
+     *
+     * @param result An Iterator or Iterable, may be null
+     * @return The iterator
+     */
+    public static Iterator<?> iterator(final Object result) {
+        if (result == null) {
+            return Collections.emptyList().iterator();
+        }
+        if (result instanceof Iterable) {
+            return ((Iterable<?>) result).iterator();
+        }
+        return (Iterator<?>) result;
+    }
+
+    /**
+     * Reads all elements of a streamed result, closing it
+     *
+     * @param result An Iterator or Iterable, may be null
+     * @return The elements
+     */
+    public static List<Object> toList(final Object result) {
+        List<Object> elements = new ArrayList<Object>();
+        try {
+            Iterator<?> it = iterator(result);
+            while (it.hasNext()) {
+                elements.add(it.next());
+            }
+        } finally {
+            closeQuietly(result);
+        }
+        return elements;
+    }
+
+    /**
+     * Converts a list of elements to a streamed method return type
+     *
+     * @param elements The elements, may be null
+     * @param type The method return type
+     * @return The value to return to the caller
+     */
+    public static Object fromList(final List<?> elements, final Class<?> type) {
+        final List<?> list = elements != null ? elements : Collections.
+                emptyList();
+        if (type == Iterable.class) {
+            return list;
+        }
+        if (type == ProtoStream.class) {
+            final Iterator<?> it = list.iterator();
+            return new ProtoStream<Object>() {
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Object next() {
+                    return it.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+        return list.iterator();
+    }
+
+    /**
+     * Closes a result if it holds resources
+     *
+     * @param result The result
+     */
+    public static void closeQuietly(final Object result) {
+        if (result instanceof Closeable) {
+            try {
+                ((Closeable) result).close();
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Error closing streamed result", ex);
+            }
+        }
+    }
+
+}
@@ -31,6 +31,7 @@
 package com.baco.protorpc.util;
 
 import com.baco.protorpc.api.ProtoSession;
+import com.baco.protorpc.api.ProtoSessionDelta;
 import java.io.Serializable;
 
 /**
@@ -45,17 +46,78 @@ public class RequestEnvelope implements Serializable {
     private final String methodName;
     private final ProtoSession session;
     private final Object[] paramValues;
+    /* Method number from the service manifest, replaces the method name */
+    private final Integer methodId;
+    /* Arguments encoded with the method schema, replaces paramValues */
+    private final byte[] arguments;
+    /*
+     * Token of a session cached by the server, 0 asks for a token for the
+     * session sent. The delta holds the changes against the cached session.
+     */
+    private final Long sessionToken;
+    private final ProtoSessionDelta sessionDelta;
 
     public RequestEnvelope(final String methodName, 
                             final ProtoSession session, 
                             final Object[] values) {
+        this(methodName, null, session, values);
+    }
+
+    public RequestEnvelope(final String methodName,
+                            final Integer methodId,
+                            final ProtoSession session,
+                            final Object[] values) {
         this.methodName = methodName;
+        this.methodId = methodId;
         this.session = session;
         if (values != null) {
             this.paramValues = values;
         } else {
             this.paramValues = new Object[]{};
         }
+        this.arguments = null;
+        this.sessionToken = null;
+        this.sessionDelta = null;
+    }
+
+    public RequestEnvelope(final String methodName,
+                            final Integer methodId,
+                            final ProtoSession session,
+                            final byte[] arguments) {
+        this.methodName = methodName;
+        this.methodId = methodId;
+        this.session = session;
+        this.paramValues = null;
+        this.arguments = arguments;
+        this.sessionToken = null;
+        this.sessionDelta = null;
+    }
+
+    private RequestEnvelope(final RequestEnvelope request,
+                            final ProtoSession session,
+                            final Long sessionToken,
+                            final ProtoSessionDelta sessionDelta) {
+        this.methodName = request.methodName;
+        this.methodId = request.methodId;
+        this.paramValues = request.paramValues;
+        this.arguments = request.arguments;
+        this.session = session;
+        this.sessionToken = sessionToken;
+        this.sessionDelta = sessionDelta;
+    }
+
+    /**
+     * Copy of this request with other session fields
+     *
+     * @param session The full session or null if the token stands for it
+     * @param sessionToken The session token, 0 asks for one
+     * @param sessionDelta Changes against the session of the token
+     * @return The new request
+     */
+    public final RequestEnvelope withSession(final ProtoSession session,
+                                             final Long sessionToken,
+                                             final ProtoSessionDelta sessionDelta) {
+        return new RequestEnvelope(this, session, sessionToken, sessionDelta);
     }
 
     /**
@@ -76,6 +138,15 @@ public class RequestEnvelope implements Serializable {
         return methodName;
     }
 
+    /**
+     * Requested method number from the service manifest
+     *
+     * @return The method number or null if the request carries its name
+     */
+    public final Integer getMethodId() {
+        return methodId;
+    }
+
     /**
      * Method parameter values
      *
@@ -85,4 +156,33 @@ public class RequestEnvelope implements Serializable {
         return paramValues;
     }
 
+    /**
+     * Method parameter values encoded with the method schema
+     *
+     * @return The encoded values or null if the request carries them as
+     * objects
+     */
+    public final byte[] getArguments() {
+        return arguments;
+    }
+
+    /**
+     * Token of the session cached by the server
+     *
+     * @return The token, 0 if the request asks for one or null if the
+     * request doesn't use session tokens
+     */
+    public final Long getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Changes against the session of the token
+     *
+     * @return The changes or null if the session didn't change
+     */
+    public final ProtoSessionDelta getSessionDelta() {
+        return sessionDelta;
+    }
+
 }
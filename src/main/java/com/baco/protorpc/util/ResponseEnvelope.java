@@ -49,6 +49,10 @@ public class ResponseEnvelope implements Serializable {
     private final Integer opStatus;
     private final Object result;
     private final ProtoException throwable;
+    /* Result encoded with the method schema, replaces result */
+    private final byte[] encodedResult;
+    /* Token issued for the session of the request */
+    private final Long sessionToken;
 
     public ResponseEnvelope(final Integer opStatus, 
                             final Object result, 
@@ -56,6 +60,35 @@ public class ResponseEnvelope implements Serializable {
         this.opStatus = opStatus;
         this.result = result;
         this.throwable = throwable;
+        this.encodedResult = null;
+        this.sessionToken = null;
+    }
+
+    public ResponseEnvelope(final byte[] encodedResult) {
+        this.opStatus = 0;
+        this.result = null;
+        this.throwable = null;
+        this.encodedResult = encodedResult;
+        this.sessionToken = null;
+    }
+
+    private ResponseEnvelope(final ResponseEnvelope response,
+                             final Long sessionToken) {
+        this.opStatus = response.opStatus;
+        this.result = response.result;
+        this.throwable = response.throwable;
+        this.encodedResult = response.encodedResult;
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * Copy of this response carrying a session token
+     *
+     * @param sessionToken The token issued for the request session
+     * @return The new response
+     */
+    public final ResponseEnvelope withSessionToken(final Long sessionToken) {
+        return new ResponseEnvelope(this, sessionToken);
     }
 
     /**
@@ -85,4 +118,23 @@ public class ResponseEnvelope implements Serializable {
         return throwable;
     }
 
+    /**
+     * Gets the operation result encoded with the method schema
+     *
+     * @return The encoded result or null if the response carries it as an
+     * object
+     */
+    public final byte[] getEncodedResult() {
+        return encodedResult;
+    }
+
+    /**
+     * Gets the token issued for the session of the request
+     *
+     * @return The token or null if none was issued
+     */
+    public final Long getSessionToken() {
+        return sessionToken;
+    }
+
 }
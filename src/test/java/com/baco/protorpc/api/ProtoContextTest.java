@@ -0,0 +1,147 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.api;
+
+import java.util.concurrent.CancellationException;
+import junit.framework.TestCase;
+
+/**
+ * Deadlines and cancellation of call contexts
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoContextTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        ProtoContext.detach(null);
+    }
+
+    public void testNoDeadline() {
+        ProtoContext context = ProtoContext.withTimeout(0);
+        assertEquals(0, context.getDeadlineNanos());
+        assertEquals(Long.MAX_VALUE, context.getRemainingMillis());
+        assertFalse(context.isExpired());
+        assertFalse(context.isCancelled());
+        context.checkCancelled();
+    }
+
+    public void testDeadlineExpires() throws Exception {
+        ProtoContext context = ProtoContext.withTimeout(50);
+        assertTrue(context.getDeadlineNanos() != 0);
+        long remaining = context.getRemainingMillis();
+        assertTrue(remaining > 0 && remaining <= 50);
+        assertFalse(context.isCancelled());
+        Thread.sleep(80);
+        assertTrue(context.isExpired());
+        assertTrue(context.isCancelled());
+        assertEquals(0, context.getRemainingMillis());
+        try {
+            context.checkCancelled();
+            fail("Expected the deadline to be exceeded");
+        } catch (CancellationException ex) {
+            assertEquals("Call deadline exceeded", ex.getMessage());
+        }
+    }
+
+    public void testCancel() {
+        ProtoContext context = ProtoContext.withTimeout(60000);
+        context.cancel();
+        assertTrue(context.isCancelled());
+        assertFalse(context.isExpired());
+        try {
+            context.checkCancelled();
+            fail("Expected the call to be cancelled");
+        } catch (CancellationException ex) {
+            assertEquals("Call cancelled", ex.getMessage());
+        }
+    }
+
+    public void testChildKeepsTheEarlierDeadline() {
+        ProtoContext parent = ProtoContext.withTimeout(100);
+        ProtoContext longer = parent.child(60000);
+        assertEquals(parent.getDeadlineNanos(), longer.getDeadlineNanos());
+        ProtoContext unbounded = parent.child(0);
+        assertEquals(parent.getDeadlineNanos(), unbounded.
+                getDeadlineNanos());
+        ProtoContext shorter = parent.child(10);
+        assertTrue(shorter.getDeadlineNanos() - parent.getDeadlineNanos()
+                < 0);
+        /* A parent without deadline leaves the child its own */
+        ProtoContext free = ProtoContext.withTimeout(0).child(100);
+        assertTrue(free.getDeadlineNanos() != 0);
+    }
+
+    public void testParentCancellationCancelsChildren() {
+        ProtoContext parent = ProtoContext.withTimeout(0);
+        ProtoContext child = parent.child(0);
+        ProtoContext grandChild = child.child(60000);
+        assertFalse(grandChild.isCancelled());
+        parent.cancel();
+        assertTrue(child.isCancelled());
+        assertTrue(grandChild.isCancelled());
+        /* Cancelling a child leaves its parent running */
+        ProtoContext other = ProtoContext.withTimeout(0);
+        other.child(0).cancel();
+        assertFalse(other.isCancelled());
+    }
+
+    public void testParentExpiryCancelsChildren() throws Exception {
+        ProtoContext child = ProtoContext.withTimeout(30).child(0);
+        Thread.sleep(60);
+        assertTrue(child.isExpired());
+        assertTrue(child.isCancelled());
+    }
+
+    public void testWithTimeoutInheritsTheCurrentContext() {
+        assertNull(ProtoContext.current());
+        assertFalse(ProtoContext.isCurrentCancelled());
+        ProtoContext outer = ProtoContext.withTimeout(100);
+        ProtoContext previous = ProtoContext.attach(outer);
+        assertNull(previous);
+        try {
+            assertSame(outer, ProtoContext.current());
+            ProtoContext inner = ProtoContext.withTimeout(60000);
+            assertEquals(outer.getDeadlineNanos(), inner.getDeadlineNanos());
+            ProtoContext restore = ProtoContext.attach(inner);
+            assertSame(outer, restore);
+            outer.cancel();
+            assertTrue(inner.isCancelled());
+            assertTrue(ProtoContext.isCurrentCancelled());
+            ProtoContext.detach(restore);
+            assertSame(outer, ProtoContext.current());
+        } finally {
+            ProtoContext.detach(previous);
+        }
+        assertNull(ProtoContext.current());
+    }
+
+}
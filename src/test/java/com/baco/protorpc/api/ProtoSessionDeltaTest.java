@@ -0,0 +1,90 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Session changes sent along a session token
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoSessionDeltaTest extends TestCase {
+
+    private static Map<String, String> values(String... pairs) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            values.put(pairs[i], pairs[i + 1]);
+        }
+        return values;
+    }
+
+    public void testEqualVersionsAreEmpty() {
+        ProtoSessionDelta delta = ProtoSessionDelta.between(
+                values("user", "ana", "role", "admin"),
+                values("role", "admin", "user", "ana"));
+        assertTrue(delta.isEmpty());
+        assertEquals(0, delta.size());
+    }
+
+    public void testAppliesChangesAndRemovals() {
+        Map<String, String> base = values("user", "ana", "role", "admin",
+                "tmp", "x");
+        Map<String, String> current = values("user", "ana", "role", "guest",
+                "lang", "es");
+        ProtoSessionDelta delta = ProtoSessionDelta.between(base, current);
+        /* role and lang changed, tmp removed */
+        assertEquals(3, delta.size());
+        assertEquals(current, delta.applyTo(base));
+        ProtoSession session = delta.applyTo(ProtoSessionDelta.snapshot(base));
+        assertEquals(current, session.getValues());
+    }
+
+    public void testBaseIsNotModified() {
+        Map<String, String> base = values("user", "ana");
+        ProtoSession baseSession = ProtoSessionDelta.snapshot(base);
+        ProtoSessionDelta delta = ProtoSessionDelta.between(base,
+                values("user", "bob"));
+        assertEquals("bob", delta.applyTo(baseSession).getValue("user"));
+        assertEquals("ana", baseSession.getValue("user"));
+        assertEquals(values("user", "bob"), delta.applyTo(base));
+        assertEquals(values("user", "ana"), base);
+    }
+
+    public void testSnapshotCopiesValues() {
+        Map<String, String> values = values("user", "ana");
+        ProtoSession session = ProtoSessionDelta.snapshot(values);
+        values.put("user", "bob");
+        assertEquals("ana", session.getValue("user"));
+    }
+}
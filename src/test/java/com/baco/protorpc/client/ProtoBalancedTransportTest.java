@@ -0,0 +1,215 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Endpoint selection, ejection and probing of the balanced transport
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoBalancedTransportTest extends TestCase {
+
+    private final Map<URL, Backend> backends = new HashMap<URL, Backend>();
+    private URL first;
+    private URL second;
+    private ProtoBalancedTransport transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        first = new URL("http://127.0.0.1:1/first");
+        second = new URL("http://127.0.0.1:2/second");
+        backends.put(first, new Backend());
+        backends.put(second, new Backend());
+        transport = new ProtoBalancedTransport(Arrays.asList(first, second),
+                new ProtoTransport() {
+                    @Override
+                    public InputStream exchange(URL url, byte[] request,
+                            int timeoutMillis) throws IOException {
+                        return backends.get(url).exchange();
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                });
+        transport.setFailureThreshold(2);
+        transport.setEjectionMillis(100);
+    }
+
+    public void testPicksTheFasterEndpoint() throws Exception {
+        backends.get(first).delayMillis = 20;
+        for (int i = 0; i < 50; i++) {
+            call();
+        }
+        /* Each endpoint got some calls until its estimate was known */
+        assertTrue(backends.get(second).calls > 40);
+        assertTrue(endpoint(first).getLatencyMillis()
+                > endpoint(second).getLatencyMillis());
+    }
+
+    public void testFailingEndpointIsEjected() throws Exception {
+        backends.get(first).failure = new ConnectException("refused");
+        for (int i = 0; i < 20; i++) {
+            try {
+                call();
+            } catch (IOException ex) {
+                /* Calls to the failing endpoint */
+            }
+        }
+        assertEquals(2, backends.get(first).calls);
+        assertTrue(endpoint(first).isEjected());
+        assertFalse(endpoint(second).isEjected());
+    }
+
+    public void testProbeRestoresTheEndpoint() throws Exception {
+        eject(first);
+        backends.get(first).failure = null;
+        Thread.sleep(150);
+        /* The first call after the ejection probes it */
+        int before = backends.get(first).calls;
+        call();
+        assertEquals(before + 1, backends.get(first).calls);
+        assertFalse(endpoint(first).isEjected());
+    }
+
+    public void testFailedProbeEjectsAgain() throws Exception {
+        eject(first);
+        Thread.sleep(150);
+        try {
+            call();
+            fail("Expected the probe to fail");
+        } catch (IOException ex) {
+            /* The probe */
+        }
+        assertTrue(endpoint(first).isEjected());
+        /* Ejected for twice as long this time */
+        Thread.sleep(150);
+        int before = backends.get(first).calls;
+        call();
+        assertEquals(before, backends.get(first).calls);
+    }
+
+    public void testUnexpectedProbeFailureEjectsAgain() throws Exception {
+        eject(first);
+        backends.get(first).failure = null;
+        backends.get(first).unexpected = new IllegalStateException("broken");
+        Thread.sleep(150);
+        try {
+            call();
+            fail("Expected the probe to fail");
+        } catch (IllegalStateException ex) {
+            /* The probe */
+        }
+        assertTrue(endpoint(first).isEjected());
+    }
+
+    public void testLastEndpointUpIsKeptWhenSlow() throws Exception {
+        transport.setSlowThresholdMillis(1);
+        backends.get(first).delayMillis = 5;
+        backends.get(second).delayMillis = 5;
+        for (int i = 0; i < 10; i++) {
+            call();
+        }
+        /* One of them was ejected, the other one is the last one up */
+        assertTrue(endpoint(first).isEjected() ^ endpoint(second).
+                isEjected());
+    }
+
+    private void eject(URL url) throws Exception {
+        backends.get(url).failure = new ConnectException("refused");
+        while (!endpoint(url).isEjected()) {
+            try {
+                call();
+            } catch (IOException ex) {
+                /* Calls to the failing endpoint */
+            }
+        }
+    }
+
+    private void call() throws IOException {
+        InputStream response = transport.exchange(first, new byte[]{1},
+                1000);
+        try {
+            while (response.read() >= 0) {
+                /* Drain */
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private ProtoBalancedTransport.Endpoint endpoint(URL url) {
+        for (ProtoBalancedTransport.Endpoint endpoint : transport.
+                getEndpoints()) {
+            if (endpoint.getUrl().equals(url)) {
+                return endpoint;
+            }
+        }
+        throw new IllegalArgumentException(url.toString());
+    }
+
+    private static final class Backend {
+
+        private volatile long delayMillis;
+        private volatile IOException failure;
+        private volatile RuntimeException unexpected;
+        private volatile int calls;
+
+        InputStream exchange() throws IOException {
+            calls++;
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (unexpected != null) {
+                throw unexpected;
+            }
+            return new ByteArrayInputStream(new byte[]{1, 2});
+        }
+
+    }
+}
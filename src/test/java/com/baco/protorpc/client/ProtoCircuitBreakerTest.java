@@ -0,0 +1,188 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.exceptions.ProtoException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Circuit breaker states and how proxies report open breakers
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoCircuitBreakerTest extends TestCase {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicInteger sent = new AtomicInteger();
+    private final List<ProtoException> reported = new ArrayList<ProtoException>();
+    private ProtoCircuitBreakerTransport transport;
+    private URL url;
+
+    @Override
+    protected void setUp() throws Exception {
+        transport = new ProtoCircuitBreakerTransport(new ProtoTransport() {
+            @Override
+            public InputStream exchange(URL url, byte[] request,
+                    int timeoutMillis) throws IOException {
+                sent.incrementAndGet();
+                throw new ConnectException("Connection refused");
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        transport.setWindowSize(10);
+        transport.setMinimumCalls(4);
+        transport.setFailureRatePercent(50);
+        transport.setSlowCalls(100, 50);
+        transport.setOpenMillis(1000);
+        transport.setHalfOpenCalls(2);
+        transport.setExceptionHandler(new ProtoRemoteExceptionHandler() {
+            @Override
+            public void processException(ProtoException exception) {
+                reported.add(exception);
+            }
+        });
+        url = new URL("http://localhost:1/service");
+    }
+
+    public void testOpensOnFailureRate() {
+        ProtoCircuitBreaker breaker = transport.getBreaker(url);
+        long now = 0;
+        record(breaker, now, false, 1);
+        record(breaker, now, true, 1);
+        record(breaker, now, false, 1);
+        assertEquals(ProtoCircuitBreaker.State.CLOSED, breaker.getState());
+        /* Two failures out of four calls */
+        record(breaker, now, true, 1);
+        assertEquals(ProtoCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.acquire(now + 999 * MS));
+        assertEquals(1, breaker.getRejectedCalls());
+        assertEquals(1, reported.size());
+        ProtoCircuitStateException change
+                = (ProtoCircuitStateException) reported.get(0);
+        assertEquals(ProtoCircuitBreaker.State.CLOSED,
+                change.getPreviousState());
+        assertEquals(ProtoCircuitBreaker.State.OPEN, change.getState());
+    }
+
+    public void testOpensOnSlowCalls() {
+        ProtoCircuitBreaker breaker = transport.getBreaker(url);
+        for (int i = 0; i < 3; i++) {
+            record(breaker, 0, false, 1);
+        }
+        for (int i = 0; i < 3; i++) {
+            record(breaker, 0, false, 150);
+        }
+        assertEquals(ProtoCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(0.5d, breaker.getSlowCallRate());
+    }
+
+    public void testHalfOpenClosesAfterTrials() {
+        ProtoCircuitBreaker breaker = open();
+        long now = 1000 * MS;
+        assertTrue(breaker.acquire(now));
+        assertEquals(ProtoCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.acquire(now));
+        assertFalse(breaker.acquire(now));
+        breaker.record(MS, false, now);
+        assertEquals(ProtoCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.record(MS, false, now);
+        assertEquals(ProtoCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0d, breaker.getFailureRate());
+    }
+
+    public void testHalfOpenReopensOnFailure() {
+        ProtoCircuitBreaker breaker = open();
+        long now = 1000 * MS;
+        assertTrue(breaker.acquire(now));
+        breaker.record(MS, true, now);
+        assertEquals(ProtoCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.acquire(now + 999 * MS));
+        assertTrue(breaker.acquire(now + 1000 * MS));
+    }
+
+    public void testProxyRetriesRefusedCallsAndFailsFast() throws Exception {
+        ProtoProxyFactory factory = new ProtoProxyFactory();
+        factory.setTransport(transport);
+        factory.setRetries(1, 100);
+        Echo echo = factory.create(Echo.class, "localhost:1/service",
+                new ProtoRemoteExceptionHandler() {
+                    @Override
+                    public void processException(ProtoException exception) {
+                        reported.add(exception);
+                    }
+                }, null);
+        /* A refused call was never sent, so it's retried once */
+        assertNull(echo.echo("a"));
+        assertEquals(2, sent.get());
+        echo.echo("b");
+        assertEquals(4, sent.get());
+        /* The breaker opened and calls fail without being sent */
+        reported.clear();
+        assertNull(echo.echo("c"));
+        assertEquals(4, sent.get());
+        assertEquals(1, reported.size());
+        assertTrue(reported.get(0) instanceof ProtoCircuitOpenException);
+        assertEquals(url, ((ProtoCircuitOpenException) reported.get(0))
+                .getEndpoint());
+    }
+
+    private ProtoCircuitBreaker open() {
+        ProtoCircuitBreaker breaker = transport.getBreaker(url);
+        for (int i = 0; i < 4; i++) {
+            record(breaker, 0, true, 1);
+        }
+        assertEquals(ProtoCircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private static void record(ProtoCircuitBreaker breaker, long now,
+            boolean failed, long millis) {
+        assertTrue(breaker.acquire(now));
+        breaker.record(millis * MS, failed, now);
+    }
+
+    public interface Echo {
+
+        String echo(String value);
+    }
+}
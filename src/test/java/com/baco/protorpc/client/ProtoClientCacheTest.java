@@ -0,0 +1,145 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoClientCacheable;
+import com.baco.protorpc.server.ProtoNioServer;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the client side result cache
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoClientCacheTest extends TestCase {
+
+    public interface Service {
+
+        @ProtoClientCacheable(ttlMillis = 60000)
+        String cached(String key);
+
+    }
+
+    public static class ServiceImpl implements Service {
+
+        static final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String cached(String key) {
+            return key + calls.incrementAndGet();
+        }
+
+    }
+
+    public void testKeysAreComparedByContent() {
+        ProtoClientCache cache = new ProtoClientCache(60000, 16, 0);
+        cache.put(new byte[]{1, 2, 3}, new byte[]{9});
+        assertEquals(9, cache.get(new byte[]{1, 2, 3})[0]);
+        assertNull(cache.get(new byte[]{1, 2}));
+        assertNull(cache.get(new byte[]{1, 2, 4}));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1d / 3, cache.getHitRate(), 1e-9);
+        cache.resetStatistics();
+        assertEquals(0, cache.getHits());
+        assertEquals(0d, cache.getHitRate());
+    }
+
+    public void testEntriesExpire() throws Exception {
+        ProtoClientCache cache = new ProtoClientCache(50, 16, 0);
+        cache.put(new byte[]{1}, new byte[]{1});
+        assertNotNull(cache.get(new byte[]{1}));
+        Thread.sleep(80);
+        assertNull(cache.get(new byte[]{1}));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+    }
+
+    public void testLeastRecentlyUsedEntriesAreEvicted() {
+        /* A small byte budget keeps every entry in one segment */
+        ProtoClientCache cache = new ProtoClientCache(60000, 2, 1000);
+        cache.put(new byte[]{1}, new byte[]{1});
+        cache.put(new byte[]{2}, new byte[]{2});
+        /* Using the first entry leaves the second as the eldest */
+        assertNotNull(cache.get(new byte[]{1}));
+        cache.put(new byte[]{3}, new byte[]{3});
+        assertNotNull(cache.get(new byte[]{1}));
+        assertNull(cache.get(new byte[]{2}));
+        assertNotNull(cache.get(new byte[]{3}));
+        assertEquals(1, cache.getEvictions());
+        ProtoClientCache bounded = new ProtoClientCache(60000, 32, 0);
+        for (int i = 0; i < 1000; i++) {
+            bounded.put(new byte[]{(byte) i, (byte) (i >> 8)}, new byte[]{1});
+        }
+        assertTrue(bounded.getSize() <= bounded.getMaxEntries());
+    }
+
+    public void testBytesAreBounded() {
+        /* Each entry weighs its request plus its response, 40 bytes */
+        ProtoClientCache cache = new ProtoClientCache(60000, 100, 100);
+        cache.put(new byte[]{1}, new byte[39]);
+        cache.put(new byte[]{2}, new byte[39]);
+        assertEquals(80, cache.getBytes());
+        cache.put(new byte[]{3}, new byte[39]);
+        assertEquals(2, cache.getSize());
+        assertEquals(80, cache.getBytes());
+        assertNull(cache.get(new byte[]{1}));
+        assertEquals(1, cache.getEvictions());
+        /* Responses larger than the whole budget aren't cached */
+        cache.put(new byte[]{4}, new byte[200]);
+        assertNull(cache.get(new byte[]{4}));
+        assertEquals(2, cache.getSize());
+        cache.invalidate();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+    }
+
+    public void testProxyAnswersFromTheCache() throws Exception {
+        ProtoNioServer server = new ProtoNioServer(new ServiceImpl(),
+                Service.class, null, new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        try {
+            Service client = new ProtoProxyFactory().createMultiplexed(
+                    Service.class, "127.0.0.1:" + server.getLocalAddress().
+                    getPort(), null, null);
+            ServiceImpl.calls.set(0);
+            assertEquals("a1", client.cached("a"));
+            assertEquals("a1", client.cached("a"));
+            assertEquals("b2", client.cached("b"));
+            assertEquals(2, ServiceImpl.calls.get());
+        } finally {
+            server.close();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoCoalesced;
+import com.baco.protorpc.exceptions.ProtoException;
+import com.baco.protorpc.exceptions.ProtoTransportException;
+import com.baco.protorpc.server.ProtoNioServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Sharing of one request between identical concurrent calls
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoCoalescedCallTest extends TestCase {
+
+    private static final int CALLERS = 3;
+
+    private final AtomicInteger exchanges = new AtomicInteger();
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final List<ProtoException> reported = new CopyOnWriteArrayList<ProtoException>();
+    private volatile Exception failure;
+    private ProtoNioServer server;
+    private ProtoMultiplexedConnection connection;
+    private ProtoProxy handler;
+    private Service client;
+
+    public interface Service {
+
+        @ProtoCoalesced
+        String greet(String name);
+
+    }
+
+    public static class ServiceImpl implements Service {
+
+        @Override
+        public String greet(String name) {
+            return "hi " + name;
+        }
+
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new ProtoNioServer(new ServiceImpl(), Service.class, null,
+                new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        connection = new ProtoMultiplexedConnection(server.getLocalAddress());
+        ProtoProxyFactory factory = new ProtoProxyFactory();
+        factory.setTransport(new ProtoTransport() {
+            @Override
+            public InputStream exchange(URL url, byte[] request,
+                    int timeoutMillis) throws IOException {
+                exchanges.incrementAndGet();
+                try {
+                    gate.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                } else if (failure != null) {
+                    throw (RuntimeException) failure;
+                }
+                return new ByteArrayInputStream(connection.exchange(request,
+                        timeoutMillis));
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        client = factory.create(Service.class, "localhost/service",
+                new ProtoRemoteExceptionHandler() {
+                    @Override
+                    public void processException(ProtoException exception) {
+                        reported.add(exception);
+                    }
+                }, null);
+        handler = (ProtoProxy) Proxy.getInvocationHandler(client);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        gate.countDown();
+        connection.close();
+        server.close();
+    }
+
+    public void testCallsShareTheResponse() throws Exception {
+        String[] results = callTogether();
+        for (String result : results) {
+            assertEquals("hi ana", result);
+        }
+        assertEquals(1, exchanges.get());
+        assertEquals(CALLERS - 1, handler.getCoalescedCalls());
+        assertTrue(reported.isEmpty());
+        /* Later calls send their own request */
+        assertEquals("hi ana", client.greet("ana"));
+        assertEquals(2, exchanges.get());
+    }
+
+    public void testCallsShareTheFailure() throws Exception {
+        failure = new IOException("Connection reset");
+        String[] results = callTogether();
+        for (String result : results) {
+            assertNull(result);
+        }
+        assertEquals(1, exchanges.get());
+        assertEquals(CALLERS, reported.size());
+        for (ProtoException reportedEx : reported) {
+            assertTrue(reportedEx instanceof ProtoTransportException);
+        }
+    }
+
+    public void testWaitersDontHangOnUnexpectedFailures() throws Exception {
+        failure = new IllegalStateException("Broken transport");
+        long start = System.nanoTime();
+        callTogether();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("Waited " + elapsed, elapsed < 5000);
+        /* The leader got the exception, the others a transport failure */
+        assertEquals(CALLERS - 1, reported.size());
+    }
+
+    /**
+     * Starts identical calls and lets the request through once all of them
+     * wait for it
+     */
+    private String[] callTogether() throws Exception {
+        final String[] results = new String[CALLERS];
+        Thread[] callers = new Thread[CALLERS];
+        for (int i = 0; i < callers.length; i++) {
+            final int index = i;
+            callers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = client.greet("ana");
+                    } catch (RuntimeException ex) {
+                        /* Checked by the caller */
+                    }
+                }
+            });
+            callers[i].start();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (handler.getCoalescedCalls() < CALLERS - 1
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        gate.countDown();
+        for (Thread caller : callers) {
+            caller.join(10000);
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoGraph;
+import com.baco.protorpc.server.ProtoNioServer;
+import java.net.InetSocketAddress;
+import junit.framework.TestCase;
+
+/**
+ * Shared and cyclic references of calls sent as object graphs
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoGraphTest extends TestCase {
+
+    private ProtoNioServer server;
+    private Service client;
+
+    public static class Node {
+
+        private String name;
+        private Node next;
+
+        public Node() {
+        }
+
+        public Node(String name) {
+            this.name = name;
+        }
+
+    }
+
+    public static class Pair {
+
+        private Node left;
+        private Node right;
+
+    }
+
+    public interface Service {
+
+        @ProtoGraph
+        Node cycle(Node node);
+
+        @ProtoGraph
+        Pair pair(Node node);
+
+        @ProtoGraph
+        boolean same(Node left, Node right);
+
+        Pair copies(Node node);
+
+    }
+
+    public static class ServiceImpl implements Service {
+
+        @Override
+        public Node cycle(Node node) {
+            if (node.next.next != node) {
+                throw new IllegalArgumentException("Cycle lost");
+            }
+            return node.next;
+        }
+
+        @Override
+        public Pair pair(Node node) {
+            Pair pair = new Pair();
+            pair.left = node;
+            pair.right = node;
+            return pair;
+        }
+
+        @Override
+        public boolean same(Node left, Node right) {
+            return left == right;
+        }
+
+        @Override
+        public Pair copies(Node node) {
+            return pair(node);
+        }
+
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new ProtoNioServer(new ServiceImpl(), Service.class, null,
+                new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        client = new ProtoProxyFactory().createMultiplexed(Service.class,
+                "127.0.0.1:" + server.getLocalAddress().getPort(), null,
+                null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+    }
+
+    public void testCyclesRoundTrip() {
+        Node first = new Node("first");
+        Node second = new Node("second");
+        first.next = second;
+        second.next = first;
+        Node result = client.cycle(first);
+        assertEquals("second", result.name);
+        assertEquals("first", result.next.name);
+        assertSame(result, result.next.next);
+    }
+
+    public void testSharedReferencesStayShared() {
+        Pair pair = client.pair(new Node("shared"));
+        assertEquals("shared", pair.left.name);
+        assertSame(pair.left, pair.right);
+        /* Arguments share the graph of the whole call */
+        Node node = new Node("argument");
+        assertTrue(client.same(node, node));
+        assertFalse(client.same(node, new Node("argument")));
+    }
+
+    public void testTreesAreCopiedWithoutTheAnnotation() {
+        Pair pair = client.copies(new Node("copied"));
+        assertEquals("copied", pair.left.name);
+        assertEquals("copied", pair.right.name);
+        assertNotSame(pair.left, pair.right);
+    }
+
+}
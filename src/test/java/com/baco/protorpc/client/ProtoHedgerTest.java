@@ -0,0 +1,170 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import junit.framework.TestCase;
+
+/**
+ * Racing of a call against its hedge
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoHedgerTest extends TestCase {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final FakeTransport transport = new FakeTransport();
+    private ProtoHedger hedger;
+
+    @Override
+    protected void setUp() throws Exception {
+        ProtoProxy proxy = new ProtoProxy(new URL("http://localhost/"),
+                transport, null, null) {
+        };
+        hedger = new ProtoHedger(proxy, 50, 100);
+        /* Enough fast calls to compute the hedge delay */
+        for (int i = 0; i < 20; i++) {
+            assertEquals("primary", fetch(1000));
+        }
+        assertTrue(hedger.getHedgeDelayMillis() >= 0);
+        assertEquals(0, hedger.getHedges());
+    }
+
+    public void testPrimaryRunsOnCallingThread() throws Exception {
+        transport.primaryDelay = 200;
+        transport.hedgeDelay = 1000;
+        assertEquals("primary", fetch(2000));
+        assertSame(Thread.currentThread(), transport.primaryThread);
+        assertEquals(1, hedger.getHedges());
+        assertEquals(0, hedger.getHedgesWon());
+    }
+
+    public void testHedgeAnswersFailedPrimary() throws Exception {
+        transport.primaryDelay = 200;
+        transport.primaryFails = true;
+        assertEquals("hedge", fetch(2000));
+        assertEquals(1, hedger.getHedgesWon());
+    }
+
+    public void testLoserIsClosedUnread() throws Exception {
+        transport.primaryDelay = 200;
+        assertEquals("hedge", fetch(2000));
+        assertTrue(transport.primaryStream.closed);
+        assertFalse(transport.primaryStream.read);
+    }
+
+    public void testHedgeGetsTheTimeLeft() throws Exception {
+        transport.primaryDelay = 300;
+        transport.primaryFails = true;
+        transport.hedgeDelay = 5000;
+        long start = System.nanoTime();
+        try {
+            fetch(600);
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException ex) {
+            /* Expected */
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("Waited " + elapsed, elapsed < 1000);
+    }
+
+    private String fetch(int timeoutMillis) throws IOException {
+        return new String(hedger.fetch(new byte[]{1}, timeoutMillis), ASCII);
+    }
+
+    private static final class FakeTransport
+            implements ProtoTransport {
+
+        private volatile long primaryDelay;
+        private volatile boolean primaryFails;
+        private volatile long hedgeDelay;
+        private volatile Thread primaryThread;
+        private volatile TrackedStream primaryStream;
+
+        @Override
+        public InputStream exchange(URL url, byte[] request, int timeoutMillis)
+                throws IOException {
+            boolean hedge = Thread.currentThread().getName().startsWith(
+                    "protorpc-hedge");
+            sleep(hedge ? hedgeDelay : primaryDelay);
+            if (hedge) {
+                return new TrackedStream("hedge");
+            }
+            primaryThread = Thread.currentThread();
+            if (primaryFails) {
+                throw new IOException("Primary failed");
+            }
+            primaryStream = new TrackedStream("primary");
+            return primaryStream;
+        }
+
+        private static void sleep(long millis) throws IOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static final class TrackedStream extends ByteArrayInputStream {
+
+        private volatile boolean closed;
+        private volatile boolean read;
+
+        TrackedStream(String body) {
+            super(body.getBytes(ASCII));
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            read = true;
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoSession;
+import com.baco.protorpc.util.RequestEnvelope;
+import com.baco.protorpc.util.ResponseEnvelope;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Gathering of concurrent calls into batches
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoMicroBatcherTest extends TestCase {
+
+    private final AtomicInteger singles = new AtomicInteger();
+    private final AtomicInteger batched = new AtomicInteger();
+
+    public void testGathersEqualSessions() throws Exception {
+        /* Each call brings its own session object with the same values */
+        ProtoMicroBatcher batcher = newBatcher(2000000);
+        String[] results = callConcurrently(batcher, new UserSession("ana"),
+                new UserSession("ana"));
+        assertEquals("a", results[0]);
+        assertEquals("b", results[1]);
+        assertEquals(1, batched.get());
+        assertEquals(0, singles.get());
+        assertEquals(1L, batcher.getBatches());
+        assertEquals(2L, batcher.getBatchedCalls());
+    }
+
+    public void testKeepsDifferentSessionsApart() throws Exception {
+        ProtoMicroBatcher batcher = newBatcher(100000);
+        String[] results = callConcurrently(batcher, new UserSession("ana"),
+                new UserSession("bob"));
+        assertEquals("a", results[0]);
+        assertEquals("b", results[1]);
+        assertEquals(0, batched.get());
+        assertEquals(2, singles.get());
+    }
+
+    private ProtoMicroBatcher newBatcher(long windowMicros) throws Exception {
+        ProtoProxy proxy = new ProtoProxy(new URL("http://localhost/"),
+                (ProtoTransport) null, null, null) {
+            @Override
+            ResponseEnvelope exchangeRequest(RequestEnvelope request) {
+                singles.incrementAndGet();
+                return respond(request);
+            }
+
+            @Override
+            ResponseEnvelope[] invokeBatch(ProtoSession session,
+                    RequestEnvelope[] calls) {
+                batched.incrementAndGet();
+                ResponseEnvelope[] responses = new ResponseEnvelope[calls.length];
+                for (int i = 0; i < calls.length; i++) {
+                    responses[i] = respond(calls[i]);
+                }
+                return responses;
+            }
+        };
+        return new ProtoMicroBatcher(proxy, windowMicros, 2, 10000);
+    }
+
+    private static ResponseEnvelope respond(RequestEnvelope request) {
+        return new ResponseEnvelope(0, request.getMethodName(), null);
+    }
+
+    private static String[] callConcurrently(final ProtoMicroBatcher batcher,
+            ProtoSession first, ProtoSession second) throws Exception {
+        final String[] results = new String[2];
+        final ProtoSession[] sessions = {first, second};
+        final String[] names = {"a", "b"};
+        Thread[] callers = new Thread[2];
+        for (int i = 0; i < callers.length; i++) {
+            final int index = i;
+            callers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = (String) batcher.call(
+                                new RequestEnvelope(names[index],
+                                        sessions[index], new Object[0]))
+                                .getResult();
+                    } catch (Exception ex) {
+                        /* Checked by the caller */
+                    }
+                }
+            });
+            callers[i].start();
+        }
+        for (Thread caller : callers) {
+            caller.join(10000);
+        }
+        return results;
+    }
+
+    private static final class UserSession extends ProtoSession {
+
+        private static final long serialVersionUID = 1L;
+
+        UserSession(String user) {
+            setValue("user", user);
+        }
+
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.util.ProtoFraming;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Framing of multiplexed calls against a loopback server
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoMultiplexedConnectionTest extends TestCase {
+
+    private ServerSocket server;
+    private ProtoMultiplexedConnection connection;
+    private final AtomicInteger cancelled = new AtomicInteger();
+    private final CountDownLatch cancelSeen = new CountDownLatch(1);
+    private volatile int fragmentsSeen;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        connection = new ProtoMultiplexedConnection(new InetSocketAddress(
+                server.getInetAddress(), server.getLocalPort()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connection.close();
+        server.close();
+    }
+
+    public void testLargeMessageRoundTrip() throws Exception {
+        serve(1);
+        byte[] request = new byte[ProtoFraming.MAX_FRAGMENT_SIZE * 2 + 100];
+        for (int i = 0; i < request.length; i++) {
+            request[i] = (byte) i;
+        }
+        assertTrue(Arrays.equals(request, connection.exchange(request, 5000)));
+        assertEquals(3, fragmentsSeen);
+        assertTrue(Arrays.equals(new byte[0],
+                connection.exchange(new byte[0], 5000)));
+    }
+
+    public void testResponsesOutOfOrder() throws Exception {
+        /* The server answers each pair of calls in reverse order */
+        serve(2);
+        final byte[][] responses = new byte[2][];
+        Thread[] callers = new Thread[2];
+        for (int i = 0; i < callers.length; i++) {
+            final int index = i;
+            callers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        responses[index] = connection.exchange(
+                                new byte[]{(byte) index}, 5000);
+                    } catch (IOException ex) {
+                        /* Checked below */
+                    }
+                }
+            });
+            callers[i].start();
+        }
+        for (Thread caller : callers) {
+            caller.join(10000);
+        }
+        assertTrue(Arrays.equals(new byte[]{0}, responses[0]));
+        assertTrue(Arrays.equals(new byte[]{1}, responses[1]));
+    }
+
+    public void testTimeoutCancelsCall() throws Exception {
+        /* A single call never gets its pair, so it's never answered */
+        serve(2);
+        try {
+            connection.exchange(new byte[]{1}, 200);
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException ex) {
+            /* Expected */
+        }
+        assertTrue(cancelSeen.await(5, TimeUnit.SECONDS));
+        assertEquals(1, cancelled.get());
+        assertTrue(connection.isOpen());
+    }
+
+    /**
+     * Echoes requests in fragments once the given number of them is
+     * complete, last request first
+     */
+    private void serve(final int group) {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    try {
+                        handle(socket, group);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException ex) {
+                    /* Server or client closed */
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void handle(Socket socket, int group) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        Map<Integer, ByteArrayOutputStream> partials = new HashMap<Integer, ByteArrayOutputStream>();
+        List<Integer> ready = new ArrayList<Integer>();
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        for (;;) {
+            int length = in.readInt();
+            int correlationId = in.readInt();
+            byte flags = in.readByte();
+            byte[] data = new byte[length];
+            in.readFully(data);
+            if ((flags & ProtoFraming.FLAG_CANCEL) != 0) {
+                cancelled.set(correlationId);
+                cancelSeen.countDown();
+                continue;
+            }
+            fragmentsSeen++;
+            ByteArrayOutputStream partial = partials.get(correlationId);
+            if (partial == null) {
+                partial = new ByteArrayOutputStream();
+                partials.put(correlationId, partial);
+            }
+            partial.write(data);
+            if ((flags & ProtoFraming.FLAG_FINAL) == 0) {
+                continue;
+            }
+            ready.add(correlationId);
+            bodies.add(partials.remove(correlationId).toByteArray());
+            if (ready.size() < group) {
+                continue;
+            }
+            for (int i = ready.size() - 1; i >= 0; i--) {
+                write(out, ready.get(i), bodies.get(i));
+            }
+            ready.clear();
+            bodies.clear();
+        }
+    }
+
+    private static void write(DataOutputStream out, int correlationId,
+            byte[] body) throws IOException {
+        int offset = 0;
+        do {
+            int length = Math.min(body.length - offset,
+                    ProtoFraming.MAX_FRAGMENT_SIZE);
+            boolean last = offset + length == body.length;
+            out.writeInt(length);
+            out.writeInt(correlationId);
+            out.writeByte(last ? ProtoFraming.FLAG_FINAL : 0);
+            out.write(body, offset, length);
+            offset += length;
+        } while (offset < body.length);
+        out.flush();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Pooled transport against a loopback http server
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoPooledHttpTransportTest extends TestCase {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ServerSocket server;
+    private ProtoPooledHttpTransport transport;
+    private URL url;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        url = new URL("http", "127.0.0.1", server.getLocalPort(), "/rpc");
+        transport = new ProtoPooledHttpTransport(2, 60000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.close();
+        server.close();
+    }
+
+    public void testReusesConnection() throws Exception {
+        serve(Integer.MAX_VALUE, -1);
+        assertEquals("a", call("a", 2000));
+        assertEquals("b", call("b", 2000));
+        assertEquals(1, connections.get());
+        assertEquals(1L, transport.getReusedConnections());
+    }
+
+    public void testRetriesConnectionClosedByServer() throws Exception {
+        /* The server drops each connection after one response */
+        serve(1, -1);
+        assertEquals("a", call("a", 2000));
+        Thread.sleep(200);
+        assertEquals("b", call("b", 2000));
+        assertEquals(2, connections.get());
+        assertEquals(2, requests.get());
+    }
+
+    public void testDoesNotRetryReadTimeout() throws Exception {
+        /* The second request on the connection never gets an answer */
+        serve(Integer.MAX_VALUE, 2);
+        assertEquals("a", call("a", 2000));
+        try {
+            call("b", 300);
+            fail("Expected a read timeout");
+        } catch (SocketTimeoutException ex) {
+            /* Expected */
+        }
+        Thread.sleep(300);
+        assertEquals(1, connections.get());
+        assertEquals(2, requests.get());
+    }
+
+    private String call(String body, int timeoutMillis) throws IOException {
+        InputStream in = transport.exchange(url, body.getBytes(ASCII),
+                timeoutMillis);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+            return new String(out.toByteArray(), ASCII);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Echoes request bodies, closing each connection after the given number
+     * of responses and leaving the given request number unanswered
+     */
+    private void serve(final int responsesPerConnection, final int silentRequest) {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        Thread worker = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket, responsesPerConnection,
+                                        silentRequest);
+                            }
+                        });
+                        worker.setDaemon(true);
+                        worker.start();
+                    }
+                } catch (IOException ex) {
+                    /* Server closed */
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void handle(Socket socket, int responses, int silentRequest) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < responses; i++) {
+                byte[] body = readRequest(in);
+                if (body == null) {
+                    break;
+                }
+                if (requests.incrementAndGet() == silentRequest) {
+                    in.read();
+                    break;
+                }
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length
+                        + "\r\n\r\n").getBytes(ASCII));
+                out.write(body);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            /* Client went away */
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                /* Ignored */
+            }
+        }
+    }
+
+    private static byte[] readRequest(InputStream in) throws IOException {
+        int length = 0;
+        String line;
+        boolean first = true;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            first = false;
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        if (line == null || first) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n == -1) {
+                return null;
+            }
+            read += n;
+        }
+        return body;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
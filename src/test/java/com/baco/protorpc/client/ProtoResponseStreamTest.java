@@ -0,0 +1,204 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.client;
+
+import com.baco.protorpc.api.ProtoStream;
+import com.baco.protorpc.server.ProtoNioServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import junit.framework.TestCase;
+
+/**
+ * Streamed results read by the client proxy
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoResponseStreamTest extends TestCase {
+
+    private ProtoNioServer server;
+    private ProtoMultiplexedConnection connection;
+    private volatile TrackedStream response;
+    private Service client;
+
+    public interface Service {
+
+        ProtoStream<String> stream(int count);
+
+        Iterator<String> iterator(int count);
+
+        Iterable<String> iterable(int count);
+
+    }
+
+    public static class ServiceImpl implements Service {
+
+        @Override
+        public ProtoStream<String> stream(final int count) {
+            return new ProtoStream<String>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < count;
+                }
+
+                @Override
+                public String next() {
+                    if (next >= count) {
+                        throw new NoSuchElementException();
+                    }
+                    return "row" + next++;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public Iterator<String> iterator(int count) {
+            return rows(count).iterator();
+        }
+
+        @Override
+        public Iterable<String> iterable(int count) {
+            return rows(count);
+        }
+
+        private static List<String> rows(int count) {
+            List<String> rows = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                rows.add("row" + i);
+            }
+            return rows;
+        }
+
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new ProtoNioServer(new ServiceImpl(), Service.class, null,
+                new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        connection = new ProtoMultiplexedConnection(server.getLocalAddress());
+        ProtoProxyFactory factory = new ProtoProxyFactory();
+        factory.setTransport(new ProtoTransport() {
+            @Override
+            public InputStream exchange(URL url, byte[] request,
+                    int timeoutMillis) throws IOException {
+                response = new TrackedStream(connection.exchange(request,
+                        timeoutMillis));
+                return response;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        client = factory.create(Service.class, "localhost/service", null,
+                null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connection.close();
+        server.close();
+    }
+
+    public void testStreamRoundTrip() {
+        ProtoStream<String> stream = client.stream(500);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(stream.hasNext());
+            assertEquals("row" + i, stream.next());
+        }
+        assertFalse(stream.hasNext());
+        /* Reading the status packet releases the connection */
+        assertTrue(response.closed);
+    }
+
+    public void testEarlyCloseReleasesTheConnection() throws Exception {
+        ProtoStream<String> stream = client.stream(500);
+        assertEquals("row0", stream.next());
+        assertEquals("row1", stream.next());
+        assertFalse(response.closed);
+        stream.close();
+        assertTrue(response.closed);
+        assertFalse(stream.hasNext());
+    }
+
+    public void testIteratorsAreReadWhole() {
+        Iterator<String> it = client.iterator(300);
+        /* Nothing left for an abandoned iteration to hold */
+        assertTrue(response.closed);
+        assertEquals("row0", it.next());
+        Iterable<String> rows = client.iterable(3);
+        assertTrue(response.closed);
+        List<String> read = new ArrayList<String>();
+        for (String row : rows) {
+            read.add(row);
+        }
+        assertEquals(Arrays.asList("row0", "row1", "row2"), read);
+    }
+
+    public void testEmptyStream() {
+        assertFalse(client.stream(0).hasNext());
+        assertFalse(client.iterator(0).hasNext());
+    }
+
+    private static final class TrackedStream extends ByteArrayInputStream {
+
+        private volatile boolean closed;
+
+        TrackedStream(byte[] body) {
+            super(body);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+
+    }
+}
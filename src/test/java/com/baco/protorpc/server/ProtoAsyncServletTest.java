@@ -0,0 +1,289 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.api.SessionValidator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the asynchronous servlet against a fake container
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoAsyncServletTest extends TestCase {
+
+    public interface Ping {
+
+        String ping();
+
+    }
+
+    public static class PingServlet extends ProtoAsyncServlet
+            implements Ping {
+
+        private static final long serialVersionUID = 1L;
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Throwable writeFailure;
+
+        @Override
+        public String ping() {
+            return "pong";
+        }
+
+        @Override
+        public String getServletInfo() {
+            return "ping";
+        }
+
+        @Override
+        public SessionValidator[] getSessionValidators() {
+            return null;
+        }
+
+        @Override
+        protected void invoke(HttpServletRequest request, InputStream is,
+                OutputStream os) throws Exception {
+            entered.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            try {
+                os.write(new byte[]{1, 2, 3});
+            } catch (IOException ex) {
+                writeFailure = ex;
+                throw ex;
+            } finally {
+                done.countDown();
+            }
+        }
+
+    }
+
+    /**
+     * Container stand-in recording what the servlet does with a request
+     */
+    private static final class Container implements InvocationHandler {
+
+        final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+        final AtomicInteger completions = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final List<Integer> errors = new ArrayList<Integer>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final CountDownLatch writing = new CountDownLatch(1);
+        /* Holds writes until opened, like a client that doesn't read */
+        volatile CountDownLatch writeGate;
+        volatile long timeout;
+        HttpServletRequest request;
+        HttpServletResponse response;
+        AsyncContext ctx;
+
+        Container() {
+            request = proxy(HttpServletRequest.class);
+            response = proxy(HttpServletResponse.class);
+            ctx = proxy(AsyncContext.class);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T proxy(Class<T> type) {
+            return (T) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{type}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (name.equals("getMethod")) {
+                return "POST";
+            } else if (name.equals("isAsyncSupported")) {
+                return true;
+            } else if (name.equals("startAsync")) {
+                return ctx;
+            } else if (name.equals("getRequest")) {
+                return request;
+            } else if (name.equals("getResponse")) {
+                return response;
+            } else if (name.equals("addListener")) {
+                listeners.add((AsyncListener) args[0]);
+            } else if (name.equals("setTimeout")) {
+                timeout = (Long) args[0];
+            } else if (name.equals("complete")) {
+                completions.incrementAndGet();
+                completed.countDown();
+            } else if (name.equals("sendError")) {
+                synchronized (errors) {
+                    errors.add((Integer) args[0]);
+                }
+            } else if (name.equals("isCommitted")) {
+                return false;
+            } else if (name.equals("getInputStream")) {
+                final InputStream is = new ByteArrayInputStream(new byte[0]);
+                return new ServletInputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        return is.read();
+                    }
+                };
+            } else if (name.equals("getOutputStream")) {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        writing.countDown();
+                        if (writeGate != null) {
+                            try {
+                                writeGate.await();
+                            } catch (InterruptedException ex) {
+                                throw new IOException(ex);
+                            }
+                        }
+                        body.write(b);
+                    }
+                };
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            return null;
+        }
+
+    }
+
+    private static ServletConfig config(final String timeout) {
+        return (ServletConfig) Proxy.newProxyInstance(
+                ProtoAsyncServletTest.class.getClassLoader(),
+                new Class<?>[]{ServletConfig.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        if (method.getName().equals("getServletName")) {
+                            return "ping";
+                        } else if (method.getName().equals("getInitParameter")
+                        && ProtoAsyncServlet.ASYNC_TIMEOUT_PARAM.equals(
+                                args[0])) {
+                            return timeout;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    public void testCompletesOnce() throws Exception {
+        PingServlet servlet = new PingServlet();
+        servlet.init(config(null));
+        Container container = new Container();
+        servlet.service(container.request, container.response);
+        assertEquals(ProtoAsyncServlet.DEFAULT_ASYNC_TIMEOUT,
+                container.timeout);
+        servlet.release.countDown();
+        assertTrue(servlet.done.await(5, TimeUnit.SECONDS));
+        assertTrue(container.completed.await(5, TimeUnit.SECONDS));
+        servlet.destroy();
+        assertNull(servlet.writeFailure);
+        assertEquals(3, container.body.size());
+        assertEquals(1, container.completions.get());
+        assertTrue(container.errors.isEmpty());
+    }
+
+    public void testTimeoutStopsTheWorker() throws Exception {
+        PingServlet servlet = new PingServlet();
+        servlet.init(config("5000000000"));
+        Container container = new Container();
+        servlet.service(container.request, container.response);
+        assertEquals(5000000000L, container.timeout);
+        assertTrue(servlet.entered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, container.listeners.size());
+        container.listeners.get(0).onTimeout(new AsyncEvent(container.ctx));
+        servlet.release.countDown();
+        assertTrue(servlet.done.await(5, TimeUnit.SECONDS));
+        assertTrue(container.completed.await(5, TimeUnit.SECONDS));
+        servlet.destroy();
+        assertNotNull(servlet.writeFailure);
+        assertEquals(0, container.body.size());
+        assertEquals(1, container.completions.get());
+        assertEquals(1, container.errors.size());
+        assertEquals(503, (int) container.errors.get(0));
+    }
+
+    public void testTimeoutDoesntWaitForBlockedWrites() throws Exception {
+        PingServlet servlet = new PingServlet();
+        servlet.init(config(null));
+        final Container container = new Container();
+        container.writeGate = new CountDownLatch(1);
+        servlet.service(container.request, container.response);
+        servlet.release.countDown();
+        assertTrue(container.writing.await(5, TimeUnit.SECONDS));
+        Thread timeout = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    container.listeners.get(0).onTimeout(new AsyncEvent(
+                            container.ctx));
+                } catch (IOException ex) {
+                    /* Not thrown by the servlet */
+                }
+            }
+        });
+        timeout.start();
+        timeout.join(2000);
+        assertFalse(timeout.isAlive());
+        assertEquals(1, container.completions.get());
+        /* The worker was writing, the error can't be sent */
+        assertTrue(container.errors.isEmpty());
+        container.writeGate.countDown();
+        assertTrue(servlet.done.await(5, TimeUnit.SECONDS));
+        servlet.destroy();
+        assertEquals(1, container.completions.get());
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import java.lang.reflect.Method;
+
+/**
+ * Compares a bare Method.invoke with the invoker, which should add no
+ * measurable cost. Run it with its main method, it isn't part of the test
+ * suite.
+ *
+ * @author deiby.nahuat
+ */
+public final class ProtoMethodInvokerBenchmark {
+
+    private static final int CALLS = 5000000;
+    private static final int ROUNDS = 5;
+
+    private ProtoMethodInvokerBenchmark() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        ProtoMethodInvokerTest.ServiceImpl service
+                = new ProtoMethodInvokerTest.ServiceImpl();
+        Method method = ProtoMethodInvokerTest.Service.class.getMethod("add",
+                int.class, int.class);
+        ProtoMethodInvoker invoker = new ProtoMethodInvoker(service, method);
+        Object[] values = {1, 2};
+        long sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                sink += (Integer) method.invoke(service, values);
+            }
+            long reflective = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                sink += (Integer) invoker.invoke(values);
+            }
+            long invoked = System.nanoTime() - start;
+            System.out.println(new StringBuilder("round ").append(round)
+                    .append(": Method.invoke ")
+                    .append((double) reflective / CALLS)
+                    .append(" ns/call, ProtoMethodInvoker ")
+                    .append((double) invoked / CALLS)
+                    .append(" ns/call").toString());
+        }
+        System.out.println(sink);
+    }
+
+}
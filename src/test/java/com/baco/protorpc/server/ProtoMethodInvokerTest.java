@@ -0,0 +1,137 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the service method invoker
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoMethodInvokerTest extends TestCase {
+
+    public interface Service {
+
+        int add(int a, int b);
+
+        String echo(String value);
+
+        void store(String value);
+
+        void fail(String message) throws IOException;
+
+        void crash();
+
+    }
+
+    public static class ServiceImpl implements Service {
+
+        String stored;
+
+        @Override
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        @Override
+        public String echo(String value) {
+            return value;
+        }
+
+        @Override
+        public void store(String value) {
+            stored = value;
+        }
+
+        @Override
+        public void fail(String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        @Override
+        public void crash() {
+            throw new StackOverflowError("deep");
+        }
+
+    }
+
+    private static ProtoMethodInvoker invoker(String name, Class<?>... types)
+            throws Exception {
+        return new ProtoMethodInvoker(new ServiceImpl(), Service.class.
+                getMethod(name, types));
+    }
+
+    public void testInvokesWithBoxedArguments() throws Throwable {
+        ProtoMethodInvoker invoker = invoker("add", int.class, int.class);
+        assertEquals(2, invoker.getParameterCount());
+        assertEquals(5, invoker.invoke(new Object[]{2, 3}));
+        assertEquals("x", invoker("echo", String.class).invoke(
+                new Object[]{"x"}));
+    }
+
+    public void testVoidMethodsReturnNull() throws Throwable {
+        ServiceImpl service = new ServiceImpl();
+        ProtoMethodInvoker invoker = new ProtoMethodInvoker(service,
+                Service.class.getMethod("store", String.class));
+        assertNull(invoker.invoke(new Object[]{"kept"}));
+        assertEquals("kept", service.stored);
+    }
+
+    public void testServiceExceptionsAreNotWrapped() throws Throwable {
+        try {
+            invoker("fail", String.class).invoke(new Object[]{"no"});
+            fail();
+        } catch (IOException ex) {
+            assertEquals("no", ex.getMessage());
+        }
+    }
+
+    public void testErrorsPropagate() throws Throwable {
+        try {
+            invoker("crash").invoke(new Object[0]);
+            fail();
+        } catch (StackOverflowError ex) {
+            assertEquals("deep", ex.getMessage());
+        }
+    }
+
+    public void testWrongArgumentCountFails() throws Throwable {
+        try {
+            invoker("add", int.class, int.class).invoke(new Object[]{1});
+            fail();
+        } catch (IllegalArgumentException ex) {
+            /* Method.invoke rejects the array */
+        }
+    }
+
+}
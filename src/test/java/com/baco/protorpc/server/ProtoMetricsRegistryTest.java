@@ -0,0 +1,77 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Set;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the JMX publication of service metrics
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoMetricsRegistryTest extends TestCase {
+
+    public interface Service {
+
+        void work();
+
+    }
+
+    public void testSameServiceTwiceStaysVisible() throws Exception {
+        Method method = Service.class.getMethod("work");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName(
+                "com.baco.protorpc:type=ServiceMethod,service="
+                + Service.class.getName() + ",*");
+        ProtoMetricsRegistry first = new ProtoMetricsRegistry();
+        ProtoMetricsRegistry second = new ProtoMetricsRegistry();
+        try {
+            first.register(new ProtoMethodMetrics(Service.class, method,
+                    "hash"));
+            second.register(new ProtoMethodMetrics(Service.class, method,
+                    "hash"));
+            Set<ObjectName> names = server.queryNames(pattern, null);
+            assertEquals(2, names.size());
+            first.unregisterAll();
+            assertEquals(1, server.queryNames(pattern, null).size());
+        } finally {
+            first.unregisterAll();
+            second.unregisterAll();
+        }
+        assertTrue(server.queryNames(pattern, null).isEmpty());
+    }
+
+}
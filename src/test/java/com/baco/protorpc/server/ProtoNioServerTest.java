@@ -0,0 +1,253 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.client.ProtoBatch;
+import com.baco.protorpc.client.ProtoProxyFactory;
+import com.baco.protorpc.client.ProtoTransport;
+import com.baco.protorpc.exceptions.ProtoTransportException;
+import com.baco.protorpc.util.ProtoFraming;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the multiplexed NIO server
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoNioServerTest extends TestCase {
+
+    private static final int ROW_SIZE = 64 * 1024;
+
+    public interface Service {
+
+        byte[] echo(byte[] data);
+
+        Iterator<byte[]> rows(int count);
+
+        void crash();
+
+    }
+
+    public static class ServiceImpl implements Service {
+
+        static final AtomicInteger produced = new AtomicInteger();
+
+        @Override
+        public byte[] echo(byte[] data) {
+            return data;
+        }
+
+        @Override
+        public Iterator<byte[]> rows(final int count) {
+            return new Iterator<byte[]>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < count;
+                }
+
+                @Override
+                public byte[] next() {
+                    if (next >= count) {
+                        throw new NoSuchElementException();
+                    }
+                    next++;
+                    produced.incrementAndGet();
+                    return new byte[ROW_SIZE];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void crash() {
+            throw new LinkageError("crash");
+        }
+
+    }
+
+    /**
+     * Keeps the encoded request instead of sending it
+     */
+    private static final class Recorder implements ProtoTransport {
+
+        byte[] request;
+
+        @Override
+        public InputStream exchange(URL url, byte[] request,
+                int timeoutMillis) throws IOException {
+            this.request = request;
+            throw new IOException("recorded");
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private ProtoNioServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new ProtoNioServer(new ServiceImpl(), Service.class, null,
+                new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+    }
+
+    private String hostAndPort() {
+        return "127.0.0.1:" + server.getLocalAddress().getPort();
+    }
+
+    private static void writeFragment(DataOutputStream out, int correlationId,
+            byte flags, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.writeInt(correlationId);
+        out.writeByte(flags);
+        out.write(data);
+    }
+
+    public void testLargeResponseIsFragmented() throws Exception {
+        Service client = new ProtoProxyFactory().createMultiplexed(
+                Service.class, hostAndPort(), null, null);
+        byte[] data = new byte[1024 * 1024 + 7];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertTrue(Arrays.equals(data, client.echo(data)));
+        assertEquals(3, client.echo(new byte[3]).length);
+    }
+
+    public void testErrorsFailTheCall() throws Exception {
+        Service client = new ProtoProxyFactory().createMultiplexed(Service.class,
+                hostAndPort(), null, null);
+        long start = System.nanoTime();
+        try {
+            client.crash();
+            fail("Expected the call to fail");
+        } catch (RuntimeException ex) {
+            /* The server closed the connection */
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        /* The connection is closed, the client doesn't wait its timeout */
+        assertTrue("Waited " + elapsed, elapsed < 5000);
+        assertEquals(3, client.echo(new byte[3]).length);
+    }
+
+    public void testErrorsFailTheBatch() throws Exception {
+        ProtoBatch batch = new ProtoProxyFactory().createMultiplexedBatch(
+                hostAndPort(), null, null);
+        Service service = batch.getProxy(Service.class);
+        service.echo(new byte[3]);
+        service.crash();
+        batch.execute();
+        /* Like a single call, the whole request fails */
+        assertTrue(batch.isFailed(0));
+        assertTrue(batch.getException(0) instanceof ProtoTransportException);
+        assertTrue(batch.isFailed(1));
+        service.crash();
+        batch.execute();
+        assertTrue(batch.getException(0) instanceof ProtoTransportException);
+    }
+
+    public void testStreamedResultWaitsForTheClient() throws Exception {
+        Recorder recorder = new Recorder();
+        ProtoProxyFactory factory = new ProtoProxyFactory();
+        factory.setTransport(recorder);
+        try {
+            factory.create(Service.class, hostAndPort() + "/rows", null, null).
+                    rows(4096);
+        } catch (RuntimeException ex) {
+            /* Only the request bytes are needed */
+        }
+        assertNotNull(recorder.request);
+        ServiceImpl.produced.set(0);
+        Socket socket = new Socket("127.0.0.1", server.getLocalAddress().
+                getPort());
+        try {
+            socket.setReceiveBufferSize(64 * 1024);
+            DataOutputStream out = new DataOutputStream(socket.
+                    getOutputStream());
+            writeFragment(out, 1, ProtoFraming.FLAG_FINAL, recorder.request);
+            out.flush();
+            /* The client doesn't read, the worker must stop producing */
+            Thread.sleep(1000);
+            int held = ServiceImpl.produced.get();
+            assertTrue("rows produced " + held, held > 0 && held < 256);
+            Thread.sleep(500);
+            assertEquals(held, ServiceImpl.produced.get());
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testUnfinishedMessagesAreBounded() throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.getLocalAddress().
+                getPort());
+        try {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.
+                    getOutputStream());
+            try {
+                for (int id = 1; id <= 1000; id++) {
+                    writeFragment(out, id, (byte) 0, new byte[1]);
+                }
+                out.flush();
+            } catch (IOException ex) {
+                /* Server already closed the connection */
+            }
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+}
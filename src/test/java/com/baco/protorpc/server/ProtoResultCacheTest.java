@@ -0,0 +1,133 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.api.ProtoCacheable;
+import com.baco.protorpc.client.ProtoProxyFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the server side encoded response cache
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoResultCacheTest extends TestCase {
+
+    public interface Service {
+
+        @ProtoCacheable(ttlMillis = 50, maxEntries = 1)
+        String shortLived(String key);
+
+        @ProtoCacheable(maxEntries = 16)
+        String bounded(String key);
+
+    }
+
+    public static class ServiceImpl implements Service {
+
+        static final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String shortLived(String key) {
+            calls.incrementAndGet();
+            return key;
+        }
+
+        @Override
+        public String bounded(String key) {
+            calls.incrementAndGet();
+            return key + calls.get();
+        }
+
+    }
+
+    private static ProtoResultCache cache(String name) throws Exception {
+        Method method = Service.class.getMethod(name, String.class);
+        return new ProtoResultCache(Service.class, method, "hash", method.
+                getAnnotation(ProtoCacheable.class));
+    }
+
+    public void testKeysIncludeTheEncoding() throws Exception {
+        ProtoResultCache cache = cache("bounded");
+        byte[] args = {1, 2, 3};
+        cache.put(0, args, new byte[]{9});
+        assertEquals(9, cache.get(0, new byte[]{1, 2, 3})[0]);
+        assertNull(cache.get(1, args));
+        assertNull(cache.get(0, new byte[]{1, 2}));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    public void testEntriesExpire() throws Exception {
+        ProtoResultCache cache = cache("shortLived");
+        cache.put(0, new byte[]{1}, new byte[]{1});
+        assertNotNull(cache.get(0, new byte[]{1}));
+        Thread.sleep(80);
+        assertNull(cache.get(0, new byte[]{1}));
+    }
+
+    public void testSizeIsBounded() throws Exception {
+        ProtoResultCache cache = cache("bounded");
+        for (int i = 0; i < 1000; i++) {
+            cache.put(0, new byte[]{(byte) i, (byte) (i >> 8)}, new byte[]{1});
+        }
+        assertTrue(cache.getSize() <= cache.getMaxEntries());
+        cache.invalidate();
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testTypedArgumentsHitTheCache() throws Exception {
+        ProtoNioServer server = new ProtoNioServer(new ServiceImpl(),
+                Service.class, null, new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        try {
+            /* Numbered methods send typed arguments */
+            ProtoProxyFactory factory = new ProtoProxyFactory();
+            factory.setManifest(true);
+            Service client = factory.createMultiplexed(Service.class,
+                    "127.0.0.1:" + server.getLocalAddress().getPort(), null,
+                    null);
+            ServiceImpl.calls.set(0);
+            String first = client.bounded("key");
+            assertEquals(first, client.bounded("key"));
+            assertEquals(1, ServiceImpl.calls.get());
+            assertFalse(first.equals(client.bounded("other")));
+            assertEquals(2, ServiceImpl.calls.get());
+            factory.closeConnections();
+        } finally {
+            server.close();
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.server;
+
+import com.baco.protorpc.api.ProtoSession;
+import com.baco.protorpc.api.ProtoSessionDelta;
+import java.util.Collections;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the validated session cache
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoSessionCacheTest extends TestCase {
+
+    private static ProtoSession session(String user) {
+        return ProtoSessionDelta.snapshot(Collections.singletonMap("user",
+                user));
+    }
+
+    public void testTokensFindTheirSession() {
+        ProtoSessionCache cache = new ProtoSessionCache(100, 60000);
+        ProtoSession ana = session("ana");
+        long token = cache.put(ana);
+        assertTrue(token != 0);
+        assertSame(ana, cache.get(token));
+        assertNull(cache.get(token + 1));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testEntriesExpire() throws Exception {
+        ProtoSessionCache cache = new ProtoSessionCache(100, 50);
+        long token = cache.put(session("ana"));
+        Thread.sleep(80);
+        assertNull(cache.get(token));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testUseDoesNotExtendTheLife() throws Exception {
+        ProtoSessionCache cache = new ProtoSessionCache(100, 300);
+        long token = cache.put(session("ana"));
+        Thread.sleep(200);
+        assertNotNull(cache.get(token));
+        /* Expires from insertion, so the session is validated again */
+        Thread.sleep(200);
+        assertNull(cache.get(token));
+    }
+
+    public void testEldestEntriesAreEvicted() {
+        ProtoSessionCache cache = new ProtoSessionCache(1, 60000);
+        long first = cache.put(session("ana"));
+        long second = cache.put(session("bob"));
+        assertNull(cache.get(first));
+        assertEquals("bob", cache.get(second).getValue("user"));
+        ProtoSessionCache bounded = new ProtoSessionCache(32, 60000);
+        for (int i = 0; i < 1000; i++) {
+            bounded.put(session("user" + i));
+        }
+        assertTrue(bounded.getSize() <= bounded.getMaxEntries());
+    }
+
+    public void testInvalidate() {
+        ProtoSessionCache cache = new ProtoSessionCache(100, 60000);
+        long token = cache.put(session("ana"));
+        cache.invalidate();
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get(token));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.util;
+
+import io.protostuff.LinkedBuffer;
+import io.protostuff.ProtostuffIOUtil;
+import io.protostuff.runtime.RuntimeSchema;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import junit.framework.TestCase;
+
+/**
+ * Binary preamble and legacy handshake reading
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoHandshakeTest extends TestCase {
+
+    private static ProtoHandshake roundTrip(ProtoHandshake ph)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ph.writeTo(bos);
+        bos.write(42);
+        InputStream in = new ByteArrayInputStream(bos.toByteArray());
+        ProtoHandshake read = ProtoHandshake.readFrom(in);
+        /* The payload starts right after the preamble */
+        assertEquals(42, in.read());
+        assertEquals(-1, in.read());
+        return read;
+    }
+
+    public void testDefaultsFitInThreeBytes() throws Exception {
+        ProtoHandshake ph = new ProtoHandshake(ProtoConfig.BINARY_MODE, false,
+                false);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ph.writeTo(bos);
+        assertEquals(3, bos.size());
+        ProtoHandshake read = roundTrip(ph);
+        assertEquals(0, read.getRequestedProtocol().intValue());
+        assertFalse(read.getCompressed());
+        assertFalse(read.getJsonNumerical());
+        assertFalse(read.getBatch());
+        assertFalse(read.getStreamed());
+        assertEquals(0, read.getTimeoutMillis());
+        assertEquals(0, read.getManifest());
+        assertFalse(read.getGraph());
+    }
+
+    public void testEveryFieldRoundTrips() throws Exception {
+        ProtoHandshake read = roundTrip(new ProtoHandshake(
+                ProtoConfig.JSON_MODE, true, true, true, true,
+                Long.MAX_VALUE, 0x81020304, true));
+        assertEquals(1, read.getRequestedProtocol().intValue());
+        assertTrue(read.getCompressed());
+        assertTrue(read.getJsonNumerical());
+        assertTrue(read.getBatch());
+        assertTrue(read.getStreamed());
+        assertEquals(Long.MAX_VALUE, read.getTimeoutMillis());
+        assertEquals(0x81020304, read.getManifest());
+        assertTrue(read.getGraph());
+    }
+
+    public void testTimeouts() throws Exception {
+        long[] timeouts = {1, 127, 128, 30000, 1l << 35};
+        for (long timeout : timeouts) {
+            assertEquals(timeout, roundTrip(new ProtoHandshake(
+                    ProtoConfig.BINARY_MODE, false, false, false, false,
+                    timeout)).getTimeoutMillis());
+        }
+    }
+
+    public void testReadsLegacyDelimitedHandshake() throws Exception {
+        ProtoHandshake ph = new ProtoHandshake(ProtoConfig.JSON_MODE, true,
+                false, true);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ProtostuffIOUtil.writeDelimitedTo(bos, ph, RuntimeSchema.getSchema(
+                ProtoHandshake.class), LinkedBuffer.allocate(256));
+        bos.write(42);
+        InputStream in = new ByteArrayInputStream(bos.toByteArray());
+        ProtoHandshake read = ProtoHandshake.readFrom(in);
+        assertEquals(1, read.getRequestedProtocol().intValue());
+        assertTrue(read.getCompressed());
+        assertTrue(read.getBatch());
+        assertEquals(42, in.read());
+    }
+
+    public void testRejectsUnknownVersion() {
+        try {
+            ProtoHandshake.readFrom(new ByteArrayInputStream(new byte[]{
+                (byte) ProtoHandshake.PREAMBLE_MAGIC, 9, 0}));
+            fail("Expected an unsupported version");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("version"));
+        }
+    }
+
+    public void testRejectsTruncatedPreamble() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ProtoHandshake(ProtoConfig.BINARY_MODE, false, false, false,
+                false, 30000, 7).writeTo(bos);
+        byte[] data = bos.toByteArray();
+        for (int length = 1; length < data.length; length++) {
+            try {
+                ProtoHandshake.readFrom(new ByteArrayInputStream(data, 0,
+                        length));
+                fail("Read a handshake from " + length + " bytes");
+            } catch (EOFException ex) {
+                /* Expected */
+            }
+        }
+    }
+}
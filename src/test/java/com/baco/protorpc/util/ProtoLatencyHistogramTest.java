@@ -0,0 +1,93 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Bucketing and percentiles of the latency histogram
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoLatencyHistogramTest extends TestCase {
+
+    public void testBucketsCoverTheirValues() {
+        int last = -1;
+        for (long value = 0; value < 1 << 20; value += 1 + value / 64) {
+            int index = ProtoLatencyHistogram.bucketIndex(value);
+            assertTrue(index >= last);
+            last = index;
+            long upper = ProtoLatencyHistogram.bucketUpperBound(index);
+            assertTrue(value + " above " + upper, value <= upper);
+            /* Within 12.5% of the value */
+            assertTrue(value + " bound " + upper, upper - value <= value / 8);
+            if (index > 0) {
+                assertTrue(value > ProtoLatencyHistogram.bucketUpperBound(
+                        index - 1));
+            }
+        }
+    }
+
+    public void testHugeValuesGoToTheLastBucket() {
+        assertEquals(ProtoLatencyHistogram.bucketIndex(1l << 41),
+                ProtoLatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    public void testPercentiles() {
+        ProtoLatencyHistogram histogram = new ProtoLatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(0.05));
+    }
+
+    public void testReset() {
+        ProtoLatencyHistogram histogram = new ProtoLatencyHistogram();
+        histogram.record(42);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected
+                && actual <= expected + expected / 8);
+    }
+}
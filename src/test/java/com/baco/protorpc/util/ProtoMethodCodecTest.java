@@ -0,0 +1,204 @@
+/*
+ *   Copyright (c) 2012, Deiby Dathat Nahuat Uc
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ *  3. All advertising materials mentioning features or use of this software
+ *  must display the following acknowledgement:
+ *  This product includes software developed by Deiby Dathat Nahuat.
+ *  4. Neither the name of Deiby Dathat Nahuat Uc nor the
+ *  names of its contributors may be used to endorse or promote products
+ *  derived from this software without specific prior written permission.
+
+ *  THIS SOFTWARE IS PROVIDED BY DEIBY DATHAT NAHUAT UC ''AS IS'' AND ANY
+ *  EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL DEIBY DATHAT NAHUAT UC BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package com.baco.protorpc.util;
+
+import io.protostuff.LinkedBuffer;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Typed encoding of method arguments and results
+ *
+ * @author deiby.nahuat
+ */
+public class ProtoMethodCodecTest extends TestCase {
+
+    private final LinkedBuffer buffer = LinkedBuffer.allocate(512);
+
+    public void testScalarArguments() throws Exception {
+        ProtoMethodCodec codec = codec("scalars");
+        Object[] args = {true, (byte) -3, (short) 300, 'x', -7, 1l << 40,
+            1.5f, 2.25d, "text", new byte[]{1, 2, 3}, Color.GREEN};
+        Object[] decoded = roundTrip(codec, args);
+        assertEquals(args.length, decoded.length);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof byte[]) {
+                assertTrue(Arrays.equals((byte[]) args[i], (byte[]) decoded[i]));
+            } else {
+                assertEquals(args[i], decoded[i]);
+            }
+        }
+    }
+
+    public void testUnsetPrimitivesGetTheirDefaults() throws Exception {
+        ProtoMethodCodec codec = codec("primitives");
+        Object[] decoded = roundTrip(codec, new Object[]{0, false, null});
+        assertEquals(0, decoded[0]);
+        assertEquals(Boolean.FALSE, decoded[1]);
+        assertNull(decoded[2]);
+    }
+
+    public void testMessagesAndSubclasses() throws Exception {
+        ProtoMethodCodec codec = codec("messages");
+        Point point = new Point(3, 4);
+        Point labeled = new LabeledPoint(5, 6, "label");
+        List<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+        Object[] decoded = roundTrip(codec, new Object[]{point, labeled, list,
+            new BigDecimal("1.25")});
+        assertEquals(point, decoded[0]);
+        assertSame(LabeledPoint.class, decoded[1].getClass());
+        assertEquals("label", ((LabeledPoint) decoded[1]).label);
+        assertEquals(labeled, decoded[1]);
+        assertEquals(list, decoded[2]);
+        assertEquals(new BigDecimal("1.25"), decoded[3]);
+    }
+
+    public void testResults() throws Exception {
+        ProtoMethodCodec codec = codec("messages");
+        assertEquals(new Point(1, 2), codec.decodeResult(codec.encodeResult(
+                new Point(1, 2), buffer)));
+        assertNull(codec.decodeResult(codec.encodeResult(null, buffer)));
+        ProtoMethodCodec none = codec("nothing");
+        assertEquals(0, none.encodeArguments(null, buffer).length);
+        assertNull(none.decodeResult(none.encodeResult(null, buffer)));
+        assertEquals(0, none.decodeArguments(new byte[0]).length);
+    }
+
+    public void testUnknownEnumConstantsFail() throws Exception {
+        /* The other side added a constant this one doesn't know */
+        byte[] data = codec("wide").encodeArguments(new Object[]{
+            WideColor.BLUE}, buffer);
+        assertEquals(Color.GREEN, codec("narrow").decodeArguments(codec(
+                "wide").encodeArguments(new Object[]{WideColor.GREEN}, buffer))[0]);
+        try {
+            codec("narrow").decodeArguments(data);
+            fail("Expected an IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("2"));
+        }
+    }
+
+    public void testMalformedDataFails() throws Exception {
+        ProtoMethodCodec codec = codec("primitives");
+        byte[] data = codec.encodeArguments(new Object[]{300, true, null},
+                buffer);
+        try {
+            /* Cut in the middle of the first varint */
+            codec.decodeArguments(Arrays.copyOf(data, 2));
+            fail("Expected an IOException");
+        } catch (IOException ex) {
+            /* Truncated message */
+        }
+    }
+
+    private Object[] roundTrip(ProtoMethodCodec codec, Object[] args)
+            throws IOException {
+        return codec.decodeArguments(codec.encodeArguments(args, buffer));
+    }
+
+    private static ProtoMethodCodec codec(String name) {
+        for (Method method : Service.class.getMethods()) {
+            if (method.getName().equals(name)) {
+                return new ProtoMethodCodec(method);
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    public enum Color {
+
+        RED, GREEN
+    }
+
+    public enum WideColor {
+
+        RED, GREEN, BLUE
+    }
+
+    public static class Point {
+
+        int x;
+        int y;
+
+        public Point() {
+        }
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Point && ((Point) obj).x == x
+                    && ((Point) obj).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+    public static class LabeledPoint extends Point {
+
+        String label;
+
+        public LabeledPoint() {
+        }
+
+        LabeledPoint(int x, int y, String label) {
+            super(x, y);
+            this.label = label;
+        }
+    }
+
+    public interface Service {
+
+        void scalars(boolean a, byte b, short c, char d, int e, long f,
+                float g, double h, String i, byte[] j, Color k);
+
+        void primitives(int a, boolean b, String c);
+
+        Point messages(Point a, Point b, List<String> c, Object d);
+
+        void nothing();
+
+        void narrow(Color a);
+
+        void wide(WideColor a);
+    }
+}